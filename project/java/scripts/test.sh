@@ -0,0 +1,16 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the program and the tests into a scratch directory
+OUT=$(mktemp -d)
+trap 'rm -rf $OUT' EXIT
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $OUT $DIR/../src/Retail.java $DIR/../test/*.java || exit 1
+
+# every test is a main that exits non-zero on its first failed check;
+# none of them needs a database
+for test in $DIR/../test/*Test.java; do
+	java -cp $OUT:$DIR/../lib/pg73jdbc3.jar $(basename $test .java) || exit 1
+done
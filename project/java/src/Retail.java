@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,10 +22,46 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.SecureRandom;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.sql.Timestamp;
+import java.lang.reflect.Method;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import java.util.Collections;
 import java.lang.Math;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 import java.text.*;
 import java.util.Date;
 
@@ -36,12 +73,166 @@ import java.util.Date;
  */
 public class Retail {
 
-   // * Current User ID *
-   static private String retail_user_id;
+   /**
+    * Identity of one logged in user. Every operation receives the session it
+    * runs for instead of reading a global, so the console, the HTTP service
+    * and any other front end can run many users side by side in one JVM.
+    */
+   static class Session {
+      final String userID;
+      final String type;
+      // * storeIDs this user manages, empty for customers and admins *
+      final List<String> managedStores;
+
+      Session(String userID, String type, List<String> managedStores) {
+         this.userID = userID;
+         this.type = type;
+         this.managedStores = managedStores;
+      }
+
+      boolean isCustomer() { return type.equals("customer"); }
+      boolean isManager() { return type.equals("manager"); }
+      boolean isAdmin() { return type.equals("admin"); }
+
+      boolean managesStore(String storeID) {
+         return managedStores.contains(storeID.trim());
+      }
+
+      // * time of this session's last write, for read-your-writes routing *
+      private volatile long lastWriteMillis = 0;
+
+      void markWrite() {
+         lastWriteMillis = System.currentTimeMillis();
+      }
+
+      boolean wroteWithin(long millis) {
+         return System.currentTimeMillis() - lastWriteMillis < millis;
+      }
+   }//end Session
 
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // read-only connections to the replicas in -Dretail.replicas, opened on
+   // first use. Sessions that wrote within -Dretail.replica.lag.ms keep
+   // reading from the primary so they always see their own changes. Shared
+   // connections are read from several threads, so the array is published
+   // once under _replicaLock and the round robin is an AtomicInteger.
+   private volatile Connection[] _replicas = null;
+   private final Object _replicaLock = new Object();
+   private final AtomicInteger _nextReplica = new AtomicInteger();
+   private final String _dbname;
+   private final String _user;
+   private final String _passwd;
+   static final long REPLICA_LAG_MILLIS = Long.getLong("retail.replica.lag.ms", 2000);
+
+   // per-store tables (Product, Orders, ProductUpdates, ProductSupplyRequests)
+   // live in the shard databases listed in -Dretail.shards; a store belongs to
+   // shard storeID % shards. Users, Store and Warehouse stay in this database.
+   // Shard connections are opened on first use; null entries mean unsharded.
+   private Retail[] _shards = null;
+   private final boolean _isShard;
+   private String _url = null;
+
+   // server processes behind this JVM's connections, as "<url>#<pid>", so the
+   // invalidation listener can tell NOTIFYs caused by our own writes (which
+   // were already published locally) from those of other Retail processes
+   static final java.util.Set<String> ownBackends = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+   private String _backend = null;
+
+   // runs the per-shard parts of cross-store reports in parallel
+   static final ExecutorService shardPool = Executors.newCachedThreadPool(new java.util.concurrent.ThreadFactory() {
+      public Thread newThread(Runnable task) {
+         Thread thread = new Thread(task, "shard-query");
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+
+   // identical reads running at the same time in this process share one
+   // database call; -Dretail.coalesce.ttl.ms also reuses results briefly.
+   static final QueryCoalescer sharedReads = new QueryCoalescer(Long.getLong("retail.coalesce.ttl.ms", 0));
+
+   // product name <-> productID dictionary of the ProductCatalog table
+   static final ProductCatalog catalog = new ProductCatalog();
+
+   // prefix and typo-tolerant search over the catalog's product names
+   static final ProductSearch productSearch = new ProductSearch();
+
+   // the stores an order may be split across: for every store, the others
+   // within -Dretail.split.miles (30), nearest first, at most
+   // -Dretail.split.neighbors (16) of them
+   static final StoreNeighbors storeNeighbors = new StoreNeighbors(
+      Double.parseDouble(System.getProperty("retail.split.miles", "30")),
+      Integer.getInteger("retail.split.neighbors", 16));
+
+   // store x warehouse distances, for sending supply requests to the
+   // nearest warehouse; kept current from Store and Warehouse changes
+   static final WarehouseRouter warehouseRouter = new WarehouseRouter();
+
+   // restocks products below their reorder point every
+   // -Dretail.replenish.ms (0 = off, the default); idle until
+   // startReplenisher is called. See Replenisher for the other settings.
+   static final Replenisher replenisher = new Replenisher(
+      Long.getLong("retail.replenish.ms", 0),
+      Integer.getInteger("retail.replenish.batch", 200),
+      Integer.getInteger("retail.reorder.point", 10),
+      Integer.getInteger("retail.reorder.quantity", 50));
+
+   // which product names each store carries, so lookups for products a
+   // store does not have skip the database
+   static final ProductFilter productFilter = new ProductFilter(Long.getLong("retail.product.filter.reload.ms", 5000));
+
+   // runs write transactions and retries them on serialization failures and
+   // deadlocks; see TransactionRetrier for the -Dretail.tx.* settings
+   static final TransactionRetrier retries = new TransactionRetrier(
+      Integer.getInteger("retail.tx.attempts", 5),
+      Long.getLong("retail.tx.backoff.ms", 10),
+      Long.getLong("retail.tx.backoff.max.ms", 1000),
+      Double.parseDouble(System.getProperty("retail.tx.retry.budget", "0.2")));
+
+   // in-memory inventory for the hot products listed in -Dretail.escrow;
+   // idle until startEscrow is called
+   static final EscrowInventory escrow = new EscrowInventory(
+      Integer.getInteger("retail.escrow.block", 50),
+      Long.getLong("retail.escrow.idle.ms", 5000));
+
+   // each active customer's latest orders, for viewRecentOrders
+   static final RecentOrders recentOrders = new RecentOrders(
+      Integer.getInteger("retail.recent.customers", 10000),
+      Integer.getInteger("retail.recent.orders", 5));
+
+   // queues ProductUpdates rows and writes them in batches on its own
+   // connection; null until startAuditWriter is called.
+   static volatile AuditWriter auditWriter = null;
+
+   // fans out "table changed" events to every cache in this process, both
+   // for local writes and for NOTIFYs sent by other Retail processes.
+   static final InvalidationBus invalidations = new InvalidationBus();
+   static {
+      invalidations.register(new InvalidationHandler() {
+         public void invalidate(String table, String key, String tag) {
+            sharedReads.invalidate(table);
+            if (table.equals("users"))
+               userNamesStale = true;
+            else if (table.equals("product"))
+               productFilter.changed(key);
+            else if (table.equals("orders"))
+               recentOrders.changed(key, tag);
+            else if (table.equals("store"))
+               warehouseRouter.storeChanged(key);
+            else if (table.equals("warehouse"))
+               warehouseRouter.warehouseChanged(key);
+         }
+      });
+   }
+
+   // every user name, so logins for names that do not exist are rejected
+   // without a query; null until loadUserNames is called. A Users change
+   // from any process marks it stale, and the next miss reloads it.
+   static volatile BloomFilter userNames = null;
+   static volatile boolean userNamesStale = false;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -57,6 +248,10 @@ public class Retail {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Retail(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this._dbname = dbname;
+      this._user = user;
+      this._passwd = passwd;
+      this._isShard = false;
 
       System.out.print("Connecting to database...");
       try{
@@ -66,6 +261,8 @@ public class Retail {
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+         this._url = url;
+         registerBackend();
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -74,6 +271,16 @@ public class Retail {
       }//end catch
    }//end Retail
 
+   // * Connection to one shard database; shards have no replicas or shards of their own *
+   private Retail(String url, String dbname, String user, String passwd, Connection shardConnection) {
+      this._url = url;
+      this._dbname = dbname;
+      this._user = user;
+      this._passwd = passwd;
+      this._isShard = true;
+      this._connection = shardConnection;
+   }//end Retail
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public static double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
@@ -203,6 +410,355 @@ public class Retail {
        return rowCount;
    }
 
+   /**
+    * Method to execute a parameterized query (i.e. SELECT).  The values are
+    * bound through a PreparedStatement instead of being pasted into the SQL
+    * text, so input coming from the network is never interpreted as SQL.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executePreparedQueryAndReturnResult (String query, Object... params) throws SQLException {
+      return runQuery (this._connection, query, params);
+   }//end executePreparedQueryAndReturnResult
+
+   /**
+    * Method to execute a parameterized update SQL statement (INSERT, UPDATE,
+    * DELETE).
+    *
+    * @param sql the input SQL string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executePreparedUpdate (String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = this._connection.prepareStatement (sql);
+      try {
+         bindParameters (stmt, params);
+         return stmt.executeUpdate ();
+      } finally {
+         stmt.close ();
+      }
+   }//end executePreparedUpdate
+
+   /**
+    * Method to execute one parameterized update SQL statement for many rows
+    * as a single JDBC batch.
+    *
+    * @param sql the input SQL string with ? placeholders
+    * @param rows the values bound to the placeholders, one array per row
+    * @return the number of rows affected by each row of the batch, in order
+    * @throws java.sql.SQLException when update failed
+    */
+   public int[] executePreparedBatch (String sql, List<Object[]> rows) throws SQLException {
+      PreparedStatement stmt = this._connection.prepareStatement (sql);
+      try {
+         for (Object[] params : rows) {
+            bindParameters (stmt, params);
+            stmt.addBatch ();
+         }
+         return stmt.executeBatch ();
+      } finally {
+         stmt.close ();
+      }
+   }//end executePreparedBatch
+
+   /**
+    * Same as executeReadQuery, but concurrent calls with the same query and
+    * parameters are coalesced into one database round trip whose result
+    * every caller shares. Only use it for reads whose records are not
+    * modified by the caller.
+    *
+    * @param session the session the read is done for (null: no writes to honor)
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the (read only) query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeSharedQuery (final Session session, final String query, final Object... params) throws SQLException {
+      // primary, replica and shard results are kept apart so a session that
+      // needs its own writes never picks up a lagging replica's answer and
+      // the same query sent to two shards is not mistaken for one; the
+      // connection is picked once, so the replica round robin advances one
+      // step per query
+      final Connection conn = readConnection(session);
+      String route = this._isShard ? this._url : conn == this._connection ? "primary" : "replica";
+      StringBuilder key = new StringBuilder(route).append('\u0000').append(query);
+      for (Object param : params)
+         key.append('\u0000').append(param);
+      return sharedReads.execute(key.toString(), QueryCoalescer.tablesOf(query), new Callable<List<List<String>>>() {
+         public List<List<String>> call() throws SQLException {
+            return Collections.unmodifiableList(readFrom(conn, query, params));
+         }
+      });
+   }//end executeSharedQuery
+
+   /**
+    * Method to execute a read-only parameterized query on behalf of a
+    * session. The query goes to one of the replicas (round robin) unless no
+    * replica is configured or the session wrote recently, in which case it
+    * goes to the primary. A failing replica falls back to the primary.
+    *
+    * @param session the session the read is done for (null: no writes to honor)
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeReadQuery (Session session, String query, Object... params) throws SQLException {
+      return readFrom (readConnection (session), query, params);
+   }//end executeReadQuery
+
+   // * Runs a read on conn, falling back to the primary when conn is a failing replica *
+   private List<List<String>> readFrom (Connection conn, String query, Object[] params) throws SQLException {
+      if (conn == this._connection) {
+         return runQuery (conn, query, params);
+      }
+      try {
+         return runQuery (conn, query, params);
+      } catch (SQLException e) {
+         System.err.println ("Replica read failed, using primary: " + e.getMessage ());
+         return runQuery (this._connection, query, params);
+      }
+   }
+
+   private Connection readConnection (Session session) throws SQLException {
+      String[] urls = this._isShard ? new String[0] : replicaUrls (this._dbname);
+      if (urls.length == 0 || (session != null && session.wroteWithin (REPLICA_LAG_MILLIS))) {
+         return this._connection;
+      }
+      Connection[] replicas = this._replicas;
+      if (replicas == null) {
+         synchronized (this._replicaLock) {
+            replicas = this._replicas;
+            if (replicas == null) {
+               replicas = new Connection[urls.length];
+               for (int i = 0; i < urls.length; ++i) {
+                  replicas[i] = DriverManager.getConnection (urls[i], this._user, this._passwd);
+                  replicas[i].setReadOnly (true);
+               }
+               this._replicas = replicas;
+            }
+         }
+      }
+      int next = (this._nextReplica.getAndIncrement () & Integer.MAX_VALUE) % replicas.length;
+      return replicas[next];
+   }
+
+   // * -Dretail.replicas=6970,otherhost:5432,6969/otherdb,jdbc:postgresql://... *
+   static String[] replicaUrls (String dbname) {
+      return databaseUrls ("retail.replicas", dbname);
+   }
+
+   // * -Dretail.shards uses the same format as -Dretail.replicas *
+   static String[] shardUrls (String dbname) {
+      return databaseUrls ("retail.shards", dbname);
+   }
+
+   private static String[] databaseUrls (String property, String dbname) {
+      String setting = System.getProperty (property, "").trim();
+      if (setting.isEmpty()) {
+         return new String[0];
+      }
+      String[] entries = setting.split (",");
+      String[] urls = new String[entries.length];
+      for (int i = 0; i < entries.length; ++i) {
+         // entries are a jdbc url, [host:]port or [host:]port/database
+         String entry = entries[i].trim();
+         if (entry.startsWith ("jdbc:")) {
+            urls[i] = entry;
+            continue;
+         }
+         String target = entry.contains ("/") ? entry : entry + "/" + dbname;
+         urls[i] = "jdbc:postgresql://" + (Character.isDigit (target.charAt (0)) ? "localhost:" : "") + target;
+      }
+      return urls;
+   }
+
+   /**
+    * Returns the Retail holding the per-store rows of a store: the shard
+    * database it maps to, or this one when no shards are configured.
+    *
+    * @param storeID the store whose rows are needed
+    * @return the Retail to run store-scoped statements on
+    * @throws java.sql.SQLException when failed to connect to the shard
+    */
+   public Retail shardFor (String storeID) throws SQLException {
+      Retail[] shards = shards ();
+      if (shards.length == 0) {
+         return this;
+      }
+      return shards[shardIndex (Integer.parseInt (storeID.trim()))];
+   }//end shardFor
+
+   // * Position of the store's shard in shards(); 0 when unsharded *
+   int shardIndex (int storeID) throws SQLException {
+      int count = shards ().length;
+      return count == 0 ? 0 : Math.abs (storeID % count);
+   }
+
+   // * The shard at a shardIndex position; this database when unsharded or for MAIN_DATABASE *
+   Retail shardAt (int shardIndex) throws SQLException {
+      Retail[] shards = shards ();
+      return shards.length == 0 || shardIndex == MAIN_DATABASE ? this : shards[shardIndex];
+   }
+
+   Retail[] shards () throws SQLException {
+      if (this._shards == null) {
+         String[] urls = this._isShard ? new String[0] : shardUrls (this._dbname);
+         Retail[] shards = new Retail[urls.length];
+         for (int i = 0; i < urls.length; ++i) {
+            shards[i] = new Retail (urls[i], this._dbname, this._user, this._passwd, DriverManager.getConnection (urls[i], this._user, this._passwd));
+            shards[i].registerBackend ();
+         }
+         this._shards = shards;
+      }
+      return this._shards;
+   }
+
+   /**
+    * Scatter-gather over the shards: runs the query on every shard holding
+    * one of the given stores, in parallel, and returns all records. The
+    * query must contain one %s, which is replaced by the placeholders of
+    * that shard's stores (use it as "storeID IN (%s)"); leading params are
+    * bound before the store ids.
+    *
+    * @param session the session the read is done for
+    * @param storeIDs the stores to query
+    * @param query the query template
+    * @param leading values bound before the store ids
+    * @return the records of every shard, concatenated
+    * @throws java.sql.SQLException when a shard query failed
+    */
+   public List<List<String>> scatterStores (final Session session, List<String> storeIDs, String query, Object... leading) throws SQLException {
+      Map<Retail, List<Object>> byShard = new HashMap<Retail, List<Object>>();
+      for (String storeID : storeIDs) {
+         Retail shard = shardFor (storeID);
+         List<Object> stores = byShard.get (shard);
+         if (stores == null) {
+            stores = new ArrayList<Object>();
+            byShard.put (shard, stores);
+         }
+         stores.add (Integer.parseInt (storeID.trim()));
+      }
+
+      List<Callable<List<List<String>>>> tasks = new ArrayList<Callable<List<List<String>>>>();
+      for (Map.Entry<Retail, List<Object>> entry : byShard.entrySet()) {
+         final Retail shard = entry.getKey();
+         StringBuilder placeholders = new StringBuilder();
+         List<Object> params = new ArrayList<Object>();
+         for (Object param : leading)
+            params.add (param);
+         for (Object storeID : entry.getValue()) {
+            placeholders.append (placeholders.length() == 0 ? "?" : ", ?");
+            params.add (storeID);
+         }
+         final String shardQuery = String.format (query, placeholders);
+         final Object[] shardParams = params.toArray ();
+         tasks.add (new Callable<List<List<String>>>() {
+            public List<List<String>> call() throws SQLException {
+               return shard.executeSharedQuery (session, shardQuery, shardParams);
+            }
+         });
+      }
+      return gather (tasks);
+   }//end scatterStores
+
+   /**
+    * Scatter-gather over every shard (or just this database when unsharded).
+    *
+    * @param session the session the read is done for
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the records of every shard, concatenated
+    * @throws java.sql.SQLException when a shard query failed
+    */
+   public List<List<String>> scatterAll (final Session session, final String query, final Object... params) throws SQLException {
+      Retail[] shards = shards ();
+      if (shards.length == 0) {
+         shards = new Retail[] {this};
+      }
+      List<Callable<List<List<String>>>> tasks = new ArrayList<Callable<List<List<String>>>>();
+      for (final Retail shard : shards)
+         tasks.add (new Callable<List<List<String>>>() {
+            public List<List<String>> call() throws SQLException {
+               return shard.executeSharedQuery (session, query, params);
+            }
+         });
+      return gather (tasks);
+   }//end scatterAll
+
+   private static List<List<String>> gather (List<Callable<List<List<String>>>> tasks) throws SQLException {
+      List<List<String>> result = new ArrayList<List<String>>();
+      if (tasks.size() == 1) {
+         try {
+            result.addAll (tasks.get(0).call());
+         } catch (SQLException e) {
+            throw e;
+         } catch (Exception e) {
+            throw new SQLException (e.getMessage());
+         }
+         return result;
+      }
+      try {
+         for (java.util.concurrent.Future<List<List<String>>> part : shardPool.invokeAll (tasks))
+            result.addAll (part.get());
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException (e.getCause().getMessage());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException ("Interrupted while waiting for the shards");
+      }
+      return result;
+   }
+
+   // * Adds this connection's server process to ownBackends *
+   private void registerBackend () throws SQLException {
+      this._backend = this._url + "#" + runQuery (this._connection, "SELECT pg_backend_pid()", new Object[0]).get(0).get(0).trim();
+      ownBackends.add (this._backend);
+   }
+
+   private static final AtomicLong writeSequence = new AtomicLong();
+
+   // * A tag naming one write of this connection: "<url>#<pid>/<sequence>" *
+   String writeTag () {
+      return this._backend + "/" + writeSequence.incrementAndGet ();
+   }
+
+   // * true when the server process pid (of this connection's server) belongs to this JVM *
+   boolean ownBackend (int pid) {
+      return ownBackends.contains (this._url + "#" + pid);
+   }
+
+   private static List<List<String>> runQuery (Connection conn, String query, Object[] params) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement (query);
+      try {
+         bindParameters (stmt, params);
+         ResultSet rs = stmt.executeQuery ();
+         int numCol = rs.getMetaData ().getColumnCount ();
+
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         return result;
+      } finally {
+         stmt.close ();
+      }
+   }
+
+   private static void bindParameters (PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject (i + 1, params[i]);
+   }
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
@@ -221,45 +777,94 @@ public class Retail {
 	return -1;
    }
 
+   /**
+    * Stops the process-wide background services; each one closes its own
+    * connection. Called once, when the process is done with the database.
+    */
+   public static void shutdownServices(){
+      // stop placing supply requests first, so nothing new gets queued
+      replenisher.stop();
+      // hand reserved units of hot products back to their Product rows
+      escrow.stop();
+      // flush audit records that are still queued before going away
+      AuditWriter writer = auditWriter;
+      if (writer != null){
+         writer.close();
+      }//end if
+      invalidations.stopListening();
+   }//end shutdownServices
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
       try{
          if (this._connection != null){
+            ownBackends.remove (this._backend);
             this._connection.close ();
          }//end if
+         if (this._replicas != null){
+            for (Connection replica : this._replicas)
+               replica.close ();
+         }//end if
+         if (this._shards != null){
+            for (Retail shard : this._shards) {
+               ownBackends.remove (shard._backend);
+               shard._connection.close ();
+            }
+         }//end if
       }catch (SQLException e){
          // ignored.
       }//end try
    }//end cleanup
 
+   // * Registers the postgres JDBC driver; loading the class is enough *
+   static void loadDriver () throws ClassNotFoundException {
+      Class.forName ("org.postgresql.Driver");
+   }
+
    /**
     * The main execution method
     *
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length != 3 && !(args.length == 5 && (args[3].equals("serve") || args[3].equals("ingest")))) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Retail.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [serve <httpport> | ingest <orders.csv|->]");
          return;
       }//end if
 
+      if (args.length == 5 && args[3].equals("serve")) {
+         serve(args[0], args[1], args[2], Integer.parseInt(args[4]));
+         return;
+      }
+      if (args.length == 5) {
+         ingest(args[0], args[1], args[2], args[4]);
+         return;
+      }
+
       Greeting();
       Retail esql = null;
       try{
          // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
+         loadDriver ();
          // instantiate the Retail object and creates a physical
          // connection.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
          esql = new Retail (dbname, dbport, user, "");
+         loadUserNames(esql);
+         recoverShardTransactions(esql);
+         recoverEscrow(esql);
+         startAuditWriter(dbname, dbport, user);
+         startEscrow(dbname, dbport, user);
+         startReplenisher(dbname, dbport, user);
+         invalidations.listen(new Retail(dbname, dbport, user, ""));
 
          boolean keepon = true;
          while(keepon) {
@@ -271,25 +876,23 @@ public class Retail {
             System.out.println("1. Sign up / Create User");
             System.out.println("2. Log in");
             System.out.println("0. < EXIT");
-            String authorisedUser = null;
+            Session session = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: session = LogIn(esql); break;
                case 0: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUser != null) {
+            if (session != null) {
               System.out.println("\nSuccessfully logged in!\n");
               boolean usermenu = true;
-              String customerPrint = "1. View Stores within 30 miles\n2. View Product List\n3. Place a Order\n4. View 5 recent orders";
-              String managerPrint = "1. Update Product\n2. View 5 recent Product Updates Info\n3. View 5 Popular Items\n4. View 5 Popular Customers\n5. Place Product Supply Request to Warehouse\n6. View All Order Information";
-              String adminPrint = "1. View user information\n2. Update user information\n3. View product information\n4. Update product information";
-              String query = "SELECT type from users where userid = '" + retail_user_id + "';";
-              List<List<String>> res = esql.executeQueryAndReturnResult(query);
-              String uType = res.get(0).get(0).replaceAll("\\s+", "");
+              String customerPrint = "1. View Stores within 30 miles\n2. View Product List\n3. Place a Order\n4. View 5 recent orders\n5. Check out a cart of several products\n6. Find stores within 30 miles that have a product\n7. Search products by name\n8. Place an order that nearby stores help fill";
+              String managerPrint = "1. Update Product\n2. View 5 recent Product Updates Info\n3. View 5 Popular Items\n4. View 5 Popular Customers\n5. Place Product Supply Request to Warehouse\n6. View All Order Information\n7. Adjust prices or units across your stores";
+              String adminPrint = "1. View user information\n2. Update user information\n3. View product information\n4. Update product information\n5. Bulk update users or products from a CSV file\n6. Adjust prices or units across stores";
+              String uType = session.type;
               while(usermenu) {
                 System.out.println("---------------------------");
-                System.out.println("MAIN MENU of " + uType + " (" + retail_user_id + ")");
+                System.out.println("MAIN MENU of " + uType + " (" + session.userID + ")");
                 System.out.println("---------------------------\n");
                 if (uType.equals("customer")) {
                   System.out.println(customerPrint);
@@ -323,10 +926,14 @@ public class Retail {
                 System.out.println("0. Log out\n");
                 if (uType.equals("customer")) {
                      switch (readChoice()){
-                        case 1: viewStores(esql); break; // customer
-                        case 2: viewProducts(esql); break; // customer
-                        case 3: placeOrder(esql); break; // customer
-                        case 4: viewRecentOrders(esql); break; // customer
+                        case 1: viewStores(esql, session); break; // customer
+                        case 2: viewProducts(esql, session); break; // customer
+                        case 3: placeOrder(esql, session); break; // customer
+                        case 4: viewRecentOrders(esql, session); break; // customer
+                        case 5: checkoutCart(esql, session); break; // customer
+                        case 6: findProductNearby(esql, session); break; // customer
+                        case 7: searchProducts(esql, session); break; // customer
+                        case 8: placeSplitOrder(esql, session); break; // customer
 
                         case 0: usermenu = false; break;
                         default : System.out.println("Unrecognized choice!"); break;
@@ -334,12 +941,13 @@ public class Retail {
                 }
                 else if (uType.equals("manager")) { 
                   switch (readChoice()){
-                     case 1: updateProduct(esql); break; // manager
-                     case 2: viewRecentUpdates(esql); break; // manager
-                     case 3: viewPopularProducts(esql); break; // manager
-                     case 4: viewPopularCustomers(esql); break; // manager
-                     case 5: placeProductSupplyRequests(esql); break; // manager
-                     case 6: viewOrders(esql); break; // manager
+                     case 1: updateProduct(esql, session); break; // manager
+                     case 2: viewRecentUpdates(esql, session); break; // manager
+                     case 3: viewPopularProducts(esql, session); break; // manager
+                     case 4: viewPopularCustomers(esql, session); break; // manager
+                     case 5: placeProductSupplyRequests(esql, session); break; // manager
+                     case 6: viewOrders(esql, session); break; // manager
+                     case 7: adjustStoreProducts(esql, session); break; // manager
 
                      case 0: usermenu = false; break;
                      default : System.out.println("Unrecognized choice!"); break;
@@ -347,10 +955,12 @@ public class Retail {
                 }
                 else if (uType.equals("admin")) {
                   switch (readChoice()){
-                     case 1: adminViewUsers(esql); break; // admin
-                     case 2: adminUpdateUsers(esql); break; // admin
-                     case 3: adminViewProduct(esql); break; // admin
-                     case 4: adminUpdateProduct(esql); break; // admin
+                     case 1: adminViewUsers(esql, session); break; // admin
+                     case 2: adminUpdateUsers(esql, session); break; // admin
+                     case 3: adminViewProduct(esql, session); break; // admin
+                     case 4: adminUpdateProduct(esql, session); break; // admin
+                     case 5: adminBulkUpdate(esql, session); break; // admin
+                     case 6: adjustStoreProducts(esql, session); break; // admin
 
                      case 0: usermenu = false; break;
                      default : System.out.println("Unrecognized choice!"); break;
@@ -358,19 +968,19 @@ public class Retail {
                 }
                 /*
                 switch (readChoice()){
-                   case 1: viewStores(esql); break; // customer
-                   case 2: viewProducts(esql); break; // customer
-                   case 3: placeOrder(esql); break; // customer
-                   case 4: viewRecentOrders(esql); break; // customer
-                   case 5: updateProduct(esql); break; // manager
-                   case 6: viewRecentUpdates(esql); break; // manager
-                   case 7: viewPopularProducts(esql); break; // manager
-                   case 8: viewPopularCustomers(esql); break; // manager
-                   case 9: placeProductSupplyRequests(esql); break; // manager
-                   case 10: adminViewUsers(esql); break; // admin
-                   case 11: adminUpdateUsers(esql); break; // admin
-                   case 12: adminViewProduct(esql); break; // admin
-                   case 13: adminUpdateProduct(esql); break; // admin
+                   case 1: viewStores(esql, session); break; // customer
+                   case 2: viewProducts(esql, session); break; // customer
+                   case 3: placeOrder(esql, session); break; // customer
+                   case 4: viewRecentOrders(esql, session); break; // customer
+                   case 5: updateProduct(esql, session); break; // manager
+                   case 6: viewRecentUpdates(esql, session); break; // manager
+                   case 7: viewPopularProducts(esql, session); break; // manager
+                   case 8: viewPopularCustomers(esql, session); break; // manager
+                   case 9: placeProductSupplyRequests(esql, session); break; // manager
+                   case 10: adminViewUsers(esql, session); break; // admin
+                   case 11: adminUpdateUsers(esql, session); break; // admin
+                   case 12: adminViewProduct(esql, session); break; // admin
+                   case 13: adminUpdateProduct(esql, session); break; // admin
 
                    case 0: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
@@ -385,7 +995,10 @@ public class Retail {
          // make sure to cleanup the created table and close the connection.
          try{
             if(esql != null) {
+               retries.printStats();
+               replenisher.printStats();
                System.out.print("Disconnecting from database...");
+               shutdownServices ();
                esql.cleanup ();
                System.out.println("Done\n\nBye !");
             }//end if
@@ -395,6 +1008,198 @@ public class Retail {
       }//end try
    }//end main
 
+   /*
+    * Runs the HTTP/JSON service until the process is stopped. The worker and
+    * connection pool size comes from -Dretail.http.threads (default 16).
+    **/
+   public static void serve(String dbname, String dbport, String user, int httpPort) {
+      try {
+         loadDriver ();
+         int threads = Integer.getInteger("retail.http.threads", 16);
+         final RetailService service = new RetailService(dbname, dbport, user, httpPort, threads);
+         startAuditWriter(dbname, dbport, user);
+         startEscrow(dbname, dbport, user);
+         startReplenisher(dbname, dbport, user);
+         invalidations.listen(new Retail(dbname, dbport, user, ""));
+         Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+               service.stop();
+               retries.printStats();
+               replenisher.printStats();
+            }
+         });
+         service.start();
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+      }
+   }//end serve
+
+   /*
+    * Bulk order ingest from a partner feed (a file, or - for stdin) in the
+    * orders.csv format: orderNumber,customerID,storeID,productName,
+    * unitsOrdered,orderTime, where orderNumber is ignored and reassigned.
+    * The feed is read in chunks of -Dretail.ingest.chunk lines (5000). Each
+    * chunk is staged per shard into the UNLOGGED OrderIngest table with one
+    * batched insert. It is then applied in the same transaction: per
+    * product, each line is accepted in feed order if it fits the units left
+    * by the lines accepted before it, so one line that would oversell does
+    * not block smaller later ones. The accepted lines are copied to Orders
+    * and subtracted from Product with one statement each. Lines that would
+    * oversell, name an unknown customer or product, or cannot be parsed
+    * are rejected.
+    **/
+   public static void ingest(String dbname, String dbport, String user, String source) {
+      Retail esql = null;
+      try {
+         loadDriver ();
+         esql = new Retail(dbname, dbport, user, "");
+         BufferedReader feed = source.equals("-") ? in : new BufferedReader(new FileReader(source));
+         int chunkSize = Math.max(1, Integer.getInteger("retail.ingest.chunk", 5000));
+         long ingestID = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+         long[] counts = new long[3]; // accepted, rejected, malformed
+         long started = System.nanoTime();
+
+         List<Object[]> chunk = new ArrayList<Object[]>();
+         int lineNumber = 0;
+         String line;
+         while ((line = feed.readLine()) != null) {
+            ++lineNumber;
+            if (line.trim().isEmpty() || (lineNumber == 1 && line.startsWith("orderNumber"))) {
+               continue;
+            }
+            String[] fields = line.split(",", -1);
+            try {
+               if (fields.length != 6) {
+                  throw new IllegalArgumentException("expected 6 fields");
+               }
+               int store = Integer.parseInt(fields[2].trim());
+               Integer productID = productFilter.mightCarry(esql, fields[2], fields[3]) ? catalog.idOf(esql, fields[3]) : null;
+               if (productID == null) {
+                  ++counts[1];
+                  continue;
+               }
+               chunk.add(new Object[] {ingestID, lineNumber, Integer.parseInt(fields[1].trim()), store, productID,
+                  Integer.parseInt(fields[4].trim()), Timestamp.valueOf(fields[5].trim())});
+            } catch (IllegalArgumentException e) {
+               ++counts[2];
+               System.err.println("line " + lineNumber + " skipped (" + e.getMessage() + "): " + line);
+               continue;
+            }
+            if (chunk.size() == chunkSize) {
+               applyIngestChunk(esql, chunk, counts);
+               chunk.clear();
+            }
+         }
+         applyIngestChunk(esql, chunk, counts);
+         if (feed != in) {
+            feed.close();
+         }
+
+         double seconds = (System.nanoTime() - started) / 1e9;
+         long lines = counts[0] + counts[1] + counts[2];
+         System.out.println(String.format("ingest: %d lines, accepted=%d rejected=%d malformed=%d in %.2fs (%.0f rows/sec)",
+            lines, counts[0], counts[1], counts[2], seconds, seconds == 0 ? 0.0 : lines / seconds));
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+      } finally {
+         shutdownServices();
+         if (esql != null) {
+            esql.cleanup();
+         }
+      }
+   }//end ingest
+
+   // * Stages and applies one chunk of {ingestID, line, customerID, storeID, productID, units, orderTime} rows *
+   private static void applyIngestChunk(Retail esql, List<Object[]> chunk, long[] counts) throws SQLException {
+      if (chunk.isEmpty()) {
+         return;
+      }
+      // * customers live in the main database, so unknown ones are dropped before staging *
+      java.util.Set<Object> customerIDs = new java.util.LinkedHashSet<Object>();
+      for (Object[] row : chunk)
+         customerIDs.add(row[2]);
+      StringBuilder placeholders = new StringBuilder();
+      for (int i = 0; i < customerIDs.size(); ++i)
+         placeholders.append(i == 0 ? "?" : ", ?");
+      java.util.Set<String> known = new java.util.HashSet<String>();
+      for (List<String> customer : esql.executePreparedQueryAndReturnResult(
+            "SELECT userid FROM users WHERE userid IN (" + placeholders + ")", customerIDs.toArray()))
+         known.add(customer.get(0));
+
+      TreeMap<Integer, List<Object[]>> byShard = new TreeMap<Integer, List<Object[]>>();
+      for (Object[] row : chunk) {
+         if (!known.contains(String.valueOf(row[2]))) {
+            ++counts[1];
+            continue;
+         }
+         int shard = esql.shardIndex((Integer) row[3]);
+         if (!byShard.containsKey(shard))
+            byShard.put(shard, new ArrayList<Object[]>());
+         byShard.get(shard).add(row);
+      }
+
+      for (final List<Object[]> rows : byShard.values()) {
+         final Retail shard = esql.shardFor(String.valueOf(rows.get(0)[3]));
+         final Object ingestID = rows.get(0)[0];
+         List<String> applied = retries.execute("ingest", shard, new UnitOfWork<List<String>>() {
+            public List<String> run() throws SQLException {
+               shard.executePreparedBatch(
+                  "INSERT INTO orderingest (ingestid, line, customerid, storeid, productid, unitsordered, ordertime) VALUES (?, ?, ?, ?, ?, ?, ?)", rows);
+               // * lock the chunk's products in key order, then accept lines greedily in feed order *
+               Map<String, Integer> left = new HashMap<String, Integer>();
+               for (List<String> product : shard.executePreparedQueryAndReturnResult(
+                     "SELECT storeid, productid, numberofunits FROM product WHERE (storeid, productid) IN (SELECT storeid, productid FROM orderingest WHERE ingestid = ?) ORDER BY storeid, productid FOR UPDATE", ingestID))
+                  left.put(product.get(0).trim() + ":" + product.get(1).trim(), Integer.valueOf(product.get(2).trim()));
+               List<Object[]> accepted = new ArrayList<Object[]>();
+               for (Object[] row : acceptInFeedOrder(rows, left))
+                  accepted.add(new Object[] {ingestID, row[1]});
+               if (!accepted.isEmpty()) {
+                  shard.executePreparedBatch("UPDATE orderingest SET accepted = true WHERE ingestid = ? AND line = ?", accepted);
+               }
+               shard.executePreparedUpdate(
+                  "INSERT INTO orders (customerid, storeid, productid, unitsordered, ordertime) "
+                  + "SELECT customerid, storeid, productid, unitsordered, ordertime FROM orderingest WHERE ingestid = ? AND accepted ORDER BY line", ingestID);
+               shard.executePreparedUpdate(
+                  "UPDATE product p SET numberofunits = p.numberofunits - t.units FROM ("
+                  + "SELECT storeid, productid, SUM(unitsordered) AS units FROM orderingest WHERE ingestid = ? AND accepted GROUP BY storeid, productid) t "
+                  + "WHERE p.storeid = t.storeid AND p.productid = t.productid", ingestID);
+               List<String> tally = shard.executePreparedQueryAndReturnResult(
+                  "SELECT count(*), SUM(CASE WHEN accepted THEN 1 ELSE 0 END) FROM orderingest WHERE ingestid = ?", ingestID).get(0);
+               shard.executePreparedUpdate("DELETE FROM orderingest WHERE ingestid = ?", ingestID);
+               return tally;
+            }
+         });
+         long staged = Long.parseLong(applied.get(0));
+         long accepted = Long.parseLong(applied.get(1));
+         counts[0] += accepted;
+         counts[1] += staged - accepted;
+      }
+      invalidations.publish("product", null);
+      invalidations.publish("orders", null);
+   }
+
+   /*
+    * Accepts staged ingest rows in feed order while they fit. left maps
+    * "storeID:productID" to the units in stock and loses the units of every
+    * accepted row, so a row that would oversell is rejected without
+    * blocking smaller rows after it. Rows of products missing from left
+    * and rows for less than one unit are rejected.
+    * @return the accepted rows, in feed order
+    **/
+   static List<Object[]> acceptInFeedOrder(List<Object[]> rows, Map<String, Integer> left) {
+      List<Object[]> accepted = new ArrayList<Object[]>();
+      for (Object[] row : rows) {
+         String key = row[3] + ":" + row[4];
+         int units = (Integer) row[5];
+         Integer available = left.get(key);
+         if (units > 0 && available != null && units <= available) {
+            left.put(key, available - units);
+            accepted.add(row);
+         }
+      }
+      return accepted;
+   }
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -468,9 +1273,11 @@ public class Retail {
             return;
          }
 
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
-
-         esql.executeUpdate(query);
+         esql.executePreparedUpdate(
+            "INSERT INTO users (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?)",
+            name, password, new java.math.BigDecimal(latitude.trim()), new java.math.BigDecimal(longitude.trim()), type);
+         rememberUserName(name);
+         invalidations.publish("users", null);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -480,24 +1287,21 @@ public class Retail {
 
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return the user's session or null if the user does not exist
     **/
-   public static String LogIn(Retail esql){
+   public static Session LogIn(Retail esql){
       try{
          System.out.print("\tEnter name: ");
          String name = in.readLine();
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
-         query = "SELECT userid from users where name = '" + name + "' and password = '" + password + "';";
-         List<List<String>> curr = esql.executeQueryAndReturnResult(query);
-         String userID = curr.get(0).get(0);
-         retail_user_id = userID;
-         
-		   return name;
+         List<String> user = authenticate(esql, name, password);
+         if (user == null) {
+            System.out.println("Invalid name or password.");
+            return null;
+         }
+		   return openSession(esql, user);
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return null;
@@ -506,44 +1310,33 @@ public class Retail {
 
 // Rest of the functions definition go in here
    // * (Kobe) helpers *
-   public static boolean isManager(Retail esql) {
-      try {
-         // * uses userID to check *
-         String query = "SELECT type from users where userid = '" + retail_user_id + "';";
-         List<List<String>> currUser = esql.executeQueryAndReturnResult(query);
-         String userType = currUser.get(0).get(0).replaceAll("\\s+", "");
-         if (!userType.equals("manager")) { // Can't use == since that checks if they're same object (reference equality) vs value equality
-            System.out.println("ERR: not manager");
-            return false;
-         }
-         return true;
-      }catch(Exception e){
-         System.err.println(e.getMessage());
-       }
-       return false;
+   public static boolean isManager(Session session) {
+      if (!session.isManager()) { // Can't use == since that checks if they're same object (reference equality) vs value equality
+         System.out.println("ERR: not manager");
+         return false;
+      }
+      return true;
    }
 
-   public static boolean isManagerOwnerStore(Retail esql, String storeID) {
-      try {
-         String query = "SELECT * from store where storeid = '" + storeID + "' AND managerid = '" + retail_user_id + "';";
-         int rowCount = esql.executeQuery(query);
-         if (rowCount < 1){
-            System.out.println("You do not have managerial access to this store or this store does not exist.");
-            return false;
-         }
-         return true;
-      }catch(Exception e){
-         System.err.println(e.getMessage());
+   public static boolean isManagerOwnerStore(Session session, String storeID) {
+      if (!session.managesStore(storeID)) {
+         System.out.println("You do not have managerial access to this store or this store does not exist.");
+         return false;
       }
-      return false;
+      return true;
    }
 
    public static boolean isProductAtStore(Retail esql, String productName, String storeID) {
       try {
-         String query = "SELECT * from product where productname = '" + productName + "' AND storeid = '" + storeID + "';";
-         int rowCount = esql.executeQuery(query);
+         // * only products the store's filter might carry are checked in the database *
+         Integer productID = productFilter.mightCarry(esql, storeID, productName) ? catalog.idOf(esql, productName) : null;
+         int rowCount = 0;
+         if (productID != null) {
+            String query = "SELECT * from product where productid = '" + productID + "' AND storeid = '" + storeID + "';";
+            rowCount = esql.shardFor(storeID).executeQuery(query);
+         }
          if (rowCount < 1) {
-            System.out.println("ERR: This product does not exist at this store.");
+            System.out.println("ERR: This product does not exist at this store." + didYouMean(esql, productName));
             return false;
          }
          return true;
@@ -553,725 +1346,4423 @@ public class Retail {
       return false;
    }
 
-   public static boolean isAdmin(Retail esql) {
-      try {
-         // * uses userID to check *
-         String query = "SELECT type from users where userid = '" + retail_user_id + "';";
-         List<List<String>> currUser = esql.executeQueryAndReturnResult(query);
-         String userType = currUser.get(0).get(0).replaceAll("\\s+", "");
-         if (!userType.equals("admin")) { // Can't use == since that checks if they're same object (reference equality) vs value equality
-            System.out.println("ERR: not admin");
-            return false;
-         }
-         return true;
-      }catch(Exception e){
-         System.err.println(e.getMessage());
-       }
-       return false;
+   public static boolean isAdmin(Session session) {
+      if (!session.isAdmin()) { // Can't use == since that checks if they're same object (reference equality) vs value equality
+         System.out.println("ERR: not admin");
+         return false;
+      }
+      return true;
    }
-   
-   // *----* 
-   // * (Kobe) admin *
-   public static void adminViewUsers(Retail esql) {
-      try {      
-         // * (fxn) Check if user is an admin *
-         if (!isAdmin(esql)) {
-            return;
+
+   // *----*
+   // * Query layer *
+   // Every operation's SQL lives here so the console menus and the HTTP
+   // service (RetailService) run exactly the same statements. Methods return
+   // records instead of printing them and reject bad input by throwing an
+   // IllegalArgumentException whose message is shown to the user.
+   static final String[] STORE_COLUMNS = {"storeid", "name", "latitude", "longitude", "managerid", "dateestablished"};
+   static final String[] PRODUCT_COLUMNS = {"storeid", "productname", "numberofunits", "priceperunit"};
+   static final String[] RECENT_ORDER_COLUMNS = {"storeid", "name", "productname", "unitsordered", "ordertime"};
+   static final String[] ORDER_COLUMNS = {"ordernumber", "customerid", "storeid", "productname", "unitsordered", "ordertime"};
+   static final String[] UPDATE_COLUMNS = {"updatenumber", "managerid", "storeid", "productname", "updatedon"};
+   static final String[] POPULAR_PRODUCT_COLUMNS = {"productname", "sum"};
+   static final String[] POPULAR_CUSTOMER_COLUMNS = {"name", "sum"};
+   static final String[] USER_COLUMNS = {"userid", "name", "latitude", "longitude", "type"};
+   static final String[] ORDER_RECEIPT_COLUMNS = {"storeid", "storename", "productname", "unitsordered", "priceperunit", "totalcost"};
+   static final String[] STOCK_COLUMNS = {"storeid", "name", "distance", "numberofunits", "priceperunit"};
+
+   // * Product rows as shown to users: prices are stored as integer cents, and escrowed units count as stock *
+   static final String PRODUCT_SELECT = "SELECT storeid, productname, numberofunits + " + EscrowInventory.HELD + " AS numberofunits, "
+      + "(pricecents / 100.0)::numeric(12,2) AS priceperunit FROM product JOIN productcatalog USING (productid)";
+
+   // * Returns {userid, type} for matching credentials, or null *
+   public static List<String> authenticate(Retail esql, String name, String password) throws SQLException {
+      // * names the filter has never seen cannot match, so skip the query *
+      BloomFilter known = userNames;
+      if (known != null && !known.mightContain(name.trim())) {
+         if (!userNamesStale) {
+            return null;
          }
+         loadUserNames(esql);
+         if (!userNames.mightContain(name.trim())) {
+            return null;
+         }
+      }
+      List<List<String>> result = esql.executePreparedQueryAndReturnResult(
+         "SELECT userid, type FROM users WHERE name = ? AND password = ?", name, password);
+      if (result.isEmpty()) {
+         return null;
+      }
+      List<String> user = new ArrayList<String>();
+      user.add(result.get(0).get(0));
+      user.add(result.get(0).get(1).trim());
+      return user;
+   }
 
-         System.out.println("Please enter the userid of the user you wish to view:");
-         String userID = in.readLine();
+   // * (Re)builds the user name filter from Users, sized for twice the current count *
+   public static synchronized void loadUserNames(Retail esql) throws SQLException {
+      userNamesStale = false;
+      List<List<String>> names = esql.executePreparedQueryAndReturnResult("SELECT name FROM users");
+      BloomFilter filter = new BloomFilter(Math.max(2 * names.size(), 1024), 0.01);
+      for (List<String> name : names)
+         filter.add(name.get(0).trim());
+      userNames = filter;
+   }
 
-         String query = "SELECT * from users where userid = '" + userID + "';";
-         int rowCount = esql.executeQuery(query);
-         if (rowCount < 1) {
-            System.out.println("User not found, returning to main menu...");
-            return;
-         }
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
-         String reUserID = result.get(0).get(0);
-         String reUserName = result.get(0).get(1).replaceAll("\\s+", ""); ;
-         String reUserPassword = result.get(0).get(2);
-         String reUserLat = result.get(0).get(3);
-         String reUserLong = result.get(0).get(4);
-         String reUserType = result.get(0).get(5);
+   // * Adds a name created or renamed by this process without waiting for a reload *
+   public static void rememberUserName(String name) {
+      BloomFilter known = userNames;
+      if (known != null) {
+         known.add(name.trim());
+      }
+   }
 
-         System.out.println("User: " + reUserName + " (" + reUserID + ") | " + reUserPassword + "\nCoordiates: " + reUserLat + ", " + reUserLong + "\nType: " + reUserType);
-         return;
-      }catch(Exception e){
-         System.err.println(e.getMessage());
+   // * Builds the session for an authenticated {userid, type} pair *
+   public static Session openSession(Retail esql, List<String> user) throws SQLException {
+      List<String> managedStores = new ArrayList<String>();
+      if (user.get(1).equals("manager")) {
+         for (List<String> store : esql.executePreparedQueryAndReturnResult(
+               "SELECT storeid FROM store WHERE managerid = ?", Integer.parseInt(user.get(0))))
+            managedStores.add(store.get(0));
       }
+      return new Session(user.get(0), user.get(1), managedStores);
+   }
 
+   public static List<List<String>> queryStoresWithin(Retail esql, Session session, double miles) throws SQLException {
+      List<List<String>> userresult = esql.executeReadQuery(session,
+         "SELECT latitude, longitude FROM Users WHERE userid = ?", Integer.parseInt(session.userID));
+      double userlat = Double.parseDouble(userresult.get(0).get(0));
+      double userlong = Double.parseDouble(userresult.get(0).get(1));
+
+      List<List<String>> nearby = new ArrayList<List<String>>();
+      for (List<String> i : esql.executeSharedQuery(session, "SELECT * FROM Store"))
+         if (calculateDistance(userlat, userlong, Double.parseDouble(i.get(2)), Double.parseDouble(i.get(3))) < miles)
+            nearby.add(i);
+      return nearby;
    }
-   public static void adminUpdateUsers(Retail esql) {
-      try {
-      // * (fxn) Check if user is an admin *
-      if (!isAdmin(esql)) {
-         return;
-      }
 
-      System.out.println("Please enter the userid of the user you wish to update:");
-      String userID = in.readLine();
+   static final String[] PRODUCT_NAME_COLUMNS = {"productname"};
 
-      String query = "SELECT * from users where userid = '" + userID + "';";
-      int rowCount = esql.executeQuery(query);
-      if (rowCount < 1) {
-         System.out.println("User not found, returning to main menu...");
-         return;
+   // * Product names matching what a user typed, for search as you type *
+   public static List<List<String>> searchProductNames(Retail esql, String typed, int limit) throws SQLException {
+      List<List<String>> records = new ArrayList<List<String>>();
+      for (String name : productSearch.search(esql, typed, limit)) {
+         List<String> record = new ArrayList<String>();
+         record.add(name);
+         records.add(record);
       }
-      List<List<String>> result = esql.executeQueryAndReturnResult(query);
-      String reUserID = result.get(0).get(0);
-      String reUserName = result.get(0).get(1).replaceAll("\\s+", ""); ;
-      String reUserPassword = result.get(0).get(2);
-      String reUserLat = result.get(0).get(3);
-      String reUserLong = result.get(0).get(4);
-      String reUserType = result.get(0).get(5);
+      return records;
+   }
 
-      String choice = "";
-      String update = "";
-      System.out.println("User: " + reUserName + " (" + reUserID + ") | " + reUserPassword);
-      System.out.println("Would you like to update the user's username?");
-      System.out.println("1. Yes\n2. No");
-      choice = in.readLine();
-      if (choice.equals("1")) {
-         System.out.println("Please enter the new user's username: ");
-         update = in.readLine();
-         query = "UPDATE users SET name = '" + update + "' WHERE userid = '" + reUserID + "';";
-         esql.executeUpdate(query); 
+   // * " Did you mean ...?" for a product name missing from the catalog, or "" *
+   public static String didYouMean(Retail esql, String productName) throws SQLException {
+      if (catalog.idOf(esql, productName) != null) {
+         return "";
       }
-
-      System.out.println("Would you like to update the user's password?");
-      System.out.println("1. Yes\n2. No");
-      choice = in.readLine();
-      if (choice.equals("1")) {
-         System.out.println("Please enter the new user's password: ");
-         update = in.readLine();
-         query = "UPDATE users SET password = '" + update + "' WHERE userid = '" + reUserID + "';";
-         esql.executeUpdate(query); 
+      List<String> names = productSearch.search(esql, productName, 3);
+      if (names.isEmpty()) {
+         return "";
       }
+      StringBuilder hint = new StringBuilder(" Did you mean ");
+      for (int i = 0; i < names.size(); ++i)
+         hint.append(i == 0 ? "" : i == names.size() - 1 ? " or " : ", ").append(names.get(i));
+      return hint.append("?").toString();
+   }
 
-      System.out.println("Coordiates: " + reUserLat + ", " + reUserLong);
-      System.out.println("Would you like to update the user's latitude?");
-      System.out.println("1. Yes\n2. No");
-      choice = in.readLine();
-      if (choice.equals("1")) {
-         System.out.println("Please enter the new user's latitude: (00.000000)");
-         update = in.readLine();
-         query = "UPDATE users SET latitude = '" + update + "' WHERE userid = '" + reUserID + "';";
-         esql.executeUpdate(query); 
+   /*
+    * Stores within miles of the session's user that have at least minUnits
+    * of a product, nearest first (cheapest first at the same distance).
+    * Store is searched only in the box of +-miles around the user, through
+    * location_Store_index; the stores in range are then checked for stock
+    * with one query per shard through productID_Product_index. Units held in
+    * escrow count as in stock, as in PRODUCT_SELECT.
+    * @return STOCK_COLUMNS records
+    **/
+   public static List<List<String>> queryStockNearby(Retail esql, Session session, String productName, int minUnits, double miles) throws SQLException {
+      Integer productID = catalog.idOf(esql, productName);
+      if (productID == null) {
+         throw new IllegalArgumentException("ERR: No store sells " + productName + "." + didYouMean(esql, productName));
+      }
+      List<List<String>> userresult = esql.executeReadQuery(session,
+         "SELECT latitude, longitude FROM Users WHERE userid = ?", Integer.parseInt(session.userID));
+      double userlat = Double.parseDouble(userresult.get(0).get(0));
+      double userlong = Double.parseDouble(userresult.get(0).get(1));
+
+      final Map<String, Double> distances = new HashMap<String, Double>();
+      Map<String, String> names = new HashMap<String, String>();
+      for (List<String> store : esql.executeSharedQuery(session,
+            "SELECT storeid, name, latitude, longitude FROM store WHERE latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ?",
+            userlat - miles, userlat + miles, userlong - miles, userlong + miles)) {
+         double distance = calculateDistance(userlat, userlong, Double.parseDouble(store.get(2)), Double.parseDouble(store.get(3)));
+         if (distance < miles) {
+            distances.put(store.get(0).trim(), distance);
+            names.put(store.get(0).trim(), store.get(1).trim());
+         }
+      }
+      List<List<String>> stocked = new ArrayList<List<String>>();
+      if (distances.isEmpty()) {
+         return stocked;
       }
 
-      System.out.println("Would you like to update the user's longitude?");
-      System.out.println("1. Yes\n2. No");
-      choice = in.readLine();
-      if (choice.equals("1")) {
-         System.out.println("Please enter the new user's longitude: (00.000000)");
-         update = in.readLine();
-         query = "UPDATE users SET longitude = '" + update + "' WHERE userid = '" + reUserID + "';";
-         esql.executeUpdate(query); 
+      for (List<String> product : esql.scatterStores(session, new ArrayList<String>(distances.keySet()),
+            "SELECT storeid, numberofunits + " + EscrowInventory.HELD + ", (pricecents / 100.0)::numeric(12,2) FROM product "
+            + "WHERE productid = ? AND numberofunits + " + EscrowInventory.HELD + " >= ? AND storeid IN (%s)",
+            productID, minUnits)) {
+         String storeID = product.get(0).trim();
+         List<String> record = new ArrayList<String>();
+         record.add(storeID);
+         record.add(names.get(storeID));
+         record.add(String.format("%.2f", distances.get(storeID)));
+         record.add(product.get(1));
+         record.add(product.get(2));
+         stocked.add(record);
+      }
+      Collections.sort(stocked, new java.util.Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            int nearer = Double.compare(distances.get(a.get(0)), distances.get(b.get(0)));
+            return nearer != 0 ? nearer : new java.math.BigDecimal(a.get(4).trim()).compareTo(new java.math.BigDecimal(b.get(4).trim()));
+         }
+      });
+      return stocked;
+   }
+
+   public static List<List<String>> queryProducts(Retail esql, Session session, String storeID) throws SQLException {
+      return esql.shardFor(storeID).executeSharedQuery(session,
+         PRODUCT_SELECT + " WHERE storeID = ?", Integer.parseInt(storeID));
+   }
+
+   public static List<List<String>> queryProduct(Retail esql, Session session, String storeID, String productName) throws SQLException {
+      Integer productID = productFilter.mightCarry(esql, storeID, productName) ? catalog.idOf(esql, productName) : null;
+      if (productID == null) {
+         return new ArrayList<List<String>>();
       }
+      return esql.shardFor(storeID).executeReadQuery(session,
+         PRODUCT_SELECT + " WHERE storeid = ? AND productid = ?", Integer.parseInt(storeID), productID);
+   }
 
-      System.out.println("Type: " + reUserType);
-      System.out.println("Would you like to update the user's type?");
-      System.out.println("1. Yes\n2. No");
-      choice = in.readLine();
-      if (choice.equals("1")) {
-         System.out.println("Please choose the user's type: \n1. Customer\n2.Manager\n3.Admin");
-         choice = in.readLine();
-         if (choice.equals("1")) {
-            update = "customer";
+   public static List<List<String>> queryUser(Retail esql, Session session, String userID) throws SQLException {
+      return esql.executeReadQuery(session,
+         "SELECT userid, name, latitude, longitude, type FROM users WHERE userid = ?", Integer.parseInt(userID));
+   }
+
+   // * Store names live with the other global tables, not in the shards *
+   public static String queryStoreName(Retail esql, Session session, String storeID) throws SQLException {
+      List<List<String>> store = esql.executeSharedQuery(session,
+         "SELECT name FROM store WHERE storeid = ?", Integer.parseInt(storeID.trim()));
+      if (store.isEmpty()) {
+         throw new IllegalArgumentException("ERR: Store " + storeID + " does not exist");
+      }
+      return store.get(0).get(0).trim();
+   }
+
+   // * storeid -> name for several stores, read in one query *
+   public static Map<String, String> queryStoreNames(Retail esql, Session session, java.util.Collection<String> storeIDs) throws SQLException {
+      Map<String, String> names = new HashMap<String, String>();
+      if (storeIDs.isEmpty()) {
+         return names;
+      }
+      // sorted, so the same stores always make the same shareable query
+      java.util.SortedSet<Integer> ids = new java.util.TreeSet<Integer>();
+      for (String storeID : storeIDs)
+         ids.add(Integer.parseInt(storeID.trim()));
+      StringBuilder placeholders = new StringBuilder();
+      for (int i = 0; i < ids.size(); ++i)
+         placeholders.append(i == 0 ? "?" : ", ?");
+      for (List<String> store : esql.executeSharedQuery(session,
+            "SELECT storeid, name FROM store WHERE storeid IN (" + placeholders + ")", ids.toArray()))
+         names.put(store.get(0), store.get(1).trim());
+      return names;
+   }
+
+   public static List<List<String>> queryRecentOrders(Retail esql, Session session) throws SQLException {
+      List<List<String>> cached = recentOrders.get(session.userID);
+      if (cached != null) {
+         return cached;
+      }
+      List<List<String>> orders = newestFirst(esql.scatterAll(session,
+         "SELECT storeid, productname, unitsordered, ordertime FROM orders JOIN productcatalog USING (productid) WHERE customerid = ? order by ordertime desc limit 5",
+         Integer.parseInt(session.userID)), 3, 5);
+
+      List<String> storeIDs = new ArrayList<String>();
+      for (List<String> order : orders)
+         storeIDs.add(order.get(0));
+      Map<String, String> storeNames = queryStoreNames(esql, session, storeIDs);
+
+      List<List<String>> recent = new ArrayList<List<String>>();
+      for (List<String> order : orders) {
+         List<String> record = new ArrayList<String>();
+         record.add(order.get(0));
+         record.add(storeNames.get(order.get(0)));
+         record.addAll(order.subList(1, 4));
+         recent.add(record);
+      }
+      recentOrders.fill(session.userID, recent);
+      return recent;
+   }
+
+   public static List<List<String>> queryStoreOrders(Retail esql, Session session) throws SQLException {
+      if (session.managedStores.isEmpty()) {
+         return new ArrayList<List<String>>();
+      }
+      return esql.scatterStores(session, session.managedStores,
+         "SELECT ordernumber, customerid, storeid, productname, unitsordered, ordertime FROM Orders JOIN productcatalog USING (productid) WHERE storeID IN (%s)");
+   }
+
+   public static List<List<String>> queryRecentUpdates(Retail esql, Session session) throws SQLException {
+      return newestFirst(esql.scatterAll(session,
+         "SELECT updatenumber, managerid, storeid, productname, updatedon from productUpdates JOIN productcatalog USING (productid) where managerid = ? order by updatedon desc limit 5",
+         Integer.parseInt(session.userID)), 4, 5);
+   }
+
+   public static List<List<String>> queryPopularProducts(Retail esql, Session session) throws SQLException {
+      if (session.managedStores.isEmpty()) {
+         return new ArrayList<List<String>>();
+      }
+      // * grouped by the integer key; names are decoded from the catalog afterwards *
+      List<List<String>> popular = topBySum(esql.scatterStores(session, session.managedStores,
+         "SELECT productID, SUM(unitsordered) FROM Orders WHERE storeID IN (%s) GROUP BY productID"), 5);
+      for (List<String> product : popular)
+         product.set(0, catalog.nameOf(esql, Integer.parseInt(product.get(0))));
+      return popular;
+   }
+
+   public static List<List<String>> queryPopularCustomers(Retail esql, Session session) throws SQLException {
+      if (session.managedStores.isEmpty()) {
+         return new ArrayList<List<String>>();
+      }
+      List<List<String>> byCustomer = esql.scatterStores(session, session.managedStores,
+         "SELECT customerID, SUM(unitsordered) FROM Orders WHERE storeID IN (%s) GROUP BY customerID");
+      if (byCustomer.isEmpty()) {
+         return byCustomer;
+      }
+
+      // * customer names come from Users, which is not sharded *
+      StringBuilder placeholders = new StringBuilder();
+      Object[] customerIDs = new Object[byCustomer.size()];
+      for (int i = 0; i < byCustomer.size(); ++i) {
+         placeholders.append(i == 0 ? "?" : ", ?");
+         customerIDs[i] = Integer.parseInt(byCustomer.get(i).get(0));
+      }
+      Map<String, String> names = new HashMap<String, String>();
+      for (List<String> user : esql.executeReadQuery(session,
+            "SELECT userid, name FROM users WHERE userid IN (" + placeholders + ")", customerIDs))
+         names.put(user.get(0), user.get(1));
+
+      List<List<String>> byName = new ArrayList<List<String>>();
+      for (List<String> customer : byCustomer) {
+         List<String> record = new ArrayList<String>();
+         record.add(names.get(customer.get(0)));
+         record.add(customer.get(1));
+         byName.add(record);
+      }
+      return topBySum(byName, 5);
+   }
+
+   // * 1234 -> "12.34" *
+   public static String formatCents(long cents) {
+      return new java.math.BigDecimal(cents).movePointLeft(2).toPlainString();
+   }
+
+   // * "12.34" -> 1234; rejects fractions of a cent *
+   public static int parseCents(String dollars) {
+      try {
+         return new java.math.BigDecimal(dollars.trim()).movePointRight(2).intValueExact();
+      } catch (ArithmeticException e) {
+         throw new IllegalArgumentException("ERR: " + dollars + " is not a price in dollars and cents");
+      }
+   }
+
+   // * Merges {key, sum} records from several shards and keeps the largest sums *
+   static List<List<String>> topBySum(List<List<String>> records, int limit) {
+      final Map<String, Long> sums = new HashMap<String, Long>();
+      for (List<String> record : records) {
+         Long sum = sums.get(record.get(0));
+         sums.put(record.get(0), (sum == null ? 0 : sum) + Long.parseLong(record.get(1)));
+      }
+      List<String> keys = new ArrayList<String>(sums.keySet());
+      Collections.sort(keys, new java.util.Comparator<String>() {
+         public int compare(String a, String b) {
+            return sums.get(b).compareTo(sums.get(a));
          }
-         else if (choice.equals("2")) {
-            update = "manager";
+      });
+      List<List<String>> top = new ArrayList<List<String>>();
+      for (String key : keys.subList(0, Math.min(limit, keys.size()))) {
+         List<String> record = new ArrayList<String>();
+         record.add(key);
+         record.add(String.valueOf(sums.get(key)));
+         top.add(record);
+      }
+      return top;
+   }
+
+   // * Sorts records by a timestamp column, newest first, and keeps the first limit *
+   static List<List<String>> newestFirst(List<List<String>> records, final int column, int limit) {
+      List<List<String>> sorted = new ArrayList<List<String>>(records);
+      Collections.sort(sorted, new java.util.Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            return b.get(column).compareTo(a.get(column));
          }
-         else if (choice.equals("3")) {
-            update = "admin";
+      });
+      return sorted.subList(0, Math.min(limit, sorted.size()));
+   }
+
+   /*
+    * Places one order: checks stock, decrements the product and inserts the
+    * order row in a single transaction. The decrement is conditional on the
+    * stock still being there, so two concurrent buyers can not oversell.
+    * @return {storeid, storename, productname, unitsordered, priceperunit, totalcost}
+    **/
+   public static List<String> submitOrder(Retail esql, Session session, String storeID, String productName, String numberofUnits) throws SQLException {
+      int store = Integer.parseInt(storeID);
+      int units = Integer.parseInt(numberofUnits);
+      if (units < 1) {
+         throw new IllegalArgumentException("ERR: You must order at least one unit");
+      }
+
+      Integer productID = productFilter.mightCarry(esql, storeID, productName) ? catalog.idOf(esql, productName) : null;
+      Retail shard = esql.shardFor(storeID);
+      List<List<String>> currProduct = productID == null ? new ArrayList<List<String>>() : shard.executePreparedQueryAndReturnResult(
+         "SELECT numberofunits, pricecents FROM product WHERE storeid = ? AND productid = ?",
+         store, productID);
+      if (currProduct.isEmpty()) {
+         throw new IllegalArgumentException("ERR: The product does not exist at this store or the store does not exist. We apologize for the inconvenience." + didYouMean(esql, productName));
+      }
+      String unitInventory = currProduct.get(0).get(0);
+      long priceCents = Long.parseLong(currProduct.get(0).get(1));
+      String storeName = queryStoreName(esql, session, storeID);
+
+      DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+      final String currDate = dateFormat.format(new Date());
+
+      final Retail tx = shard;
+      final Object[] product = {store, productID};
+      final int customerID = Integer.parseInt(session.userID);
+      final int ordered = units;
+      final String name = productName;
+      final String orderInsert = "INSERT INTO orders (customerid, storeid, productid, unitsordered, ordertime) VALUES (?, ?, ?, ?, CAST(? AS timestamp))";
+      boolean escrowed = false;
+      boolean placed = false;
+      try {
+         // * Hot products sell from units already held in escrow; unless the order is placed, the finally gives them back *
+         escrowed = escrow.take(shard, store, productID, units);
+
+         // * Check if current product inventory has enough for user's number of units *
+         if (!escrowed && Integer.parseInt(unitInventory) < units) {
+            throw new IllegalArgumentException("ERR: You have requested more than what we have at this store, " + unitInventory + " < " + numberofUnits);
          }
-         else {
-            System.out.println("Option unrecognized, changes unsaved.");
-            update = reUserType;
+
+         final boolean fromEscrow = escrowed;
+         final String holder = escrowed ? escrow.holderFor(store) : null;
+         retries.execute("placeOrder", shard, new UnitOfWork<Void>() {
+            public Void run() throws SQLException {
+               if (fromEscrow) {
+                  // * the sale's ledger row rides in the order's own statement *
+                  tx.executePreparedUpdate("WITH sale AS (" + EscrowInventory.LEDGER + ") " + orderInsert,
+                     holder, product[0], product[1], -ordered, customerID, product[0], product[1], ordered, currDate);
+                  return null;
+               }
+               int updated = tx.executePreparedUpdate(
+                  "UPDATE product SET numberofunits = numberofunits - ? WHERE storeid = ? AND productid = ? AND numberofunits >= ?",
+                  ordered, product[0], product[1], ordered);
+               if (updated < 1) {
+                  throw new IllegalArgumentException("ERR: Someone else just bought the remaining units of " + name);
+               }
+               tx.executePreparedUpdate(orderInsert, customerID, product[0], product[1], ordered, currDate);
+               return null;
+            }
+         });
+         placed = true;
+      } finally {
+         if (escrowed && !placed) {
+            escrow.giveBack(store, productID, units);
          }
-         query = "UPDATE users SET type = '" + update + "' WHERE userid = '" + reUserID + "';";
-         esql.executeUpdate(query); 
       }
+      if (escrowed) {
+         escrow.sold(store, productID);
+      }
+      session.markWrite();
+      List<String> placedOrder = new ArrayList<String>();
+      placedOrder.add(storeID);
+      placedOrder.add(storeName);
+      placedOrder.add(productName);
+      placedOrder.add(String.valueOf(units));
+      placedOrder.add(currDate);
+      String tag = shard.writeTag();
+      recentOrders.record(session.userID, Collections.singletonList(placedOrder), tag);
+      invalidations.publish("product", productKey(storeID, productID));
+      invalidations.publish("orders", session.userID, tag);
+
+      List<String> receipt = new ArrayList<String>();
+      receipt.add(storeID);
+      receipt.add(storeName);
+      receipt.add(productName);
+      receipt.add(String.valueOf(units));
+      receipt.add(formatCents(priceCents));
+      receipt.add(formatCents(priceCents * units));
+      return receipt;
+   }
+
+   // * One product of a cart, after lines for the same product were merged *
+   static class CartLine {
+      final String storeID;
+      final int store;
+      final int productID;
+      final String productName;
+      int units;
+      long priceCents;
+
+      CartLine(int store, int productID, String productName, int units) {
+         this.storeID = String.valueOf(store);
+         this.store = store;
+         this.productID = productID;
+         this.productName = productName;
+         this.units = units;
+      }
+   }
 
-      }catch(Exception e){
-         System.err.println(e.getMessage());
+   /*
+    * Checks out a cart of {storeID, productName, units} lines. Inventory of
+    * every line is decremented and every Orders row inserted in one
+    * transaction, with the statements sent as batches; either the whole
+    * cart is ordered or nothing is. A cart spanning several shards opens
+    * one transaction per shard and commits them together with a two-phase
+    * commit (see inShardTransactions).
+    * @return one ORDER_RECEIPT_COLUMNS record per product
+    **/
+   public static List<List<String>> submitCart(Retail esql, Session session, List<List<String>> lines) throws SQLException {
+      if (lines.isEmpty()) {
+         throw new IllegalArgumentException("ERR: The cart is empty");
+      }
+      Map<String, CartLine> merged = new LinkedHashMap<String, CartLine>();
+      for (List<String> line : lines) {
+         int store = Integer.parseInt(line.get(0).trim());
+         String productName = line.get(1).trim();
+         int units = Integer.parseInt(line.get(2).trim());
+         if (units < 1) {
+            throw new IllegalArgumentException("ERR: You must order at least one unit of " + productName);
+         }
+         Integer productID = productFilter.mightCarry(esql, String.valueOf(store), productName) ? catalog.idOf(esql, productName) : null;
+         if (productID == null) {
+            throw new IllegalArgumentException("ERR: Store " + store + " does not sell " + productName + "." + didYouMean(esql, productName));
+         }
+         CartLine same = merged.get(productKey(String.valueOf(store), productID));
+         if (same != null)
+            same.units += units;
+         else
+            merged.put(productKey(String.valueOf(store), productID), new CartLine(store, productID, productName, units));
+      }
+
+      // * lines grouped by shard; shards and rows are always locked in the same order, so carts cannot deadlock *
+      final TreeMap<Integer, List<CartLine>> byShard = new TreeMap<Integer, List<CartLine>>();
+      for (CartLine line : merged.values()) {
+         escrow.release(esql.shardFor(line.storeID), line.store, line.productID);
+         int shard = esql.shardIndex(line.store);
+         if (!byShard.containsKey(shard))
+            byShard.put(shard, new ArrayList<CartLine>());
+         byShard.get(shard).add(line);
+      }
+      for (List<CartLine> group : byShard.values()) {
+         Collections.sort(group, new java.util.Comparator<CartLine>() {
+            public int compare(CartLine a, CartLine b) {
+               return a.store != b.store ? Integer.compare(a.store, b.store) : Integer.compare(a.productID, b.productID);
+            }
+         });
+      }
+
+      DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+      final String orderTime = dateFormat.format(new Date());
+      final int customerID = Integer.parseInt(session.userID);
+      inShardTransactions("checkout", esql, new ArrayList<Integer>(byShard.keySet()), false, new ShardWork() {
+         public void run(Retail shard, int shardIndex) throws SQLException {
+            checkoutShard(shard, byShard.get(shardIndex), customerID, orderTime);
+         }
+      });
+      session.markWrite();
+
+      List<String> storeIDs = new ArrayList<String>();
+      for (CartLine line : merged.values())
+         storeIDs.add(line.storeID);
+      Map<String, String> storeNames = queryStoreNames(esql, session, storeIDs);
+      List<List<String>> receipt = new ArrayList<List<String>>();
+      List<List<String>> placedOrders = new ArrayList<List<String>>();
+      for (CartLine line : merged.values()) {
+         List<String> item = new ArrayList<String>();
+         item.add(line.storeID);
+         item.add(storeNames.get(line.storeID));
+         item.add(line.productName);
+         item.add(String.valueOf(line.units));
+         placedOrders.add(new ArrayList<String>(item));
+         placedOrders.get(placedOrders.size() - 1).add(orderTime);
+         item.add(formatCents(line.priceCents));
+         item.add(formatCents(line.priceCents * line.units));
+         receipt.add(item);
+      }
+      String tag = esql.writeTag();
+      recentOrders.record(session.userID, placedOrders, tag);
+      for (CartLine line : merged.values())
+         invalidations.publish("product", productKey(line.storeID, line.productID));
+      invalidations.publish("orders", session.userID, tag);
+      return receipt;
+   }
+
+   // * Work done on one shard inside inShardTransactions *
+   interface ShardWork {
+      void run(Retail shard, int shardIndex) throws SQLException;
+   }
+
+   // * Participant of inShardTransactions for the main database of a sharded chain *
+   static final int MAIN_DATABASE = -1;
+
+   /*
+    * Runs work on each of the given shards (by shardIndex, ascending) in one
+    * transaction per shard, and either all of them commit or none does.
+    * MAIN_DATABASE may be listed as well, first, for work on the main
+    * database that has to commit together with the shards. With several
+    * participants this is a two-phase commit: every transaction is PREPAREd
+    * first, and COMMIT PREPARED only starts once all of them are (the
+    * servers need max_prepared_transactions > 0, see startPostgreSQL.sh). A
+    * failure before that rolls every participant back. A process that dies
+    * while committing leaves the rest prepared, and recoverShardTransactions
+    * finishes them. With preview set each transaction is rolled back instead.
+    **/
+   static void inShardTransactions(String operation, Retail esql, List<Integer> shardIndexes, boolean preview, ShardWork work) throws SQLException {
+      if (preview) {
+         for (int shardIndex : shardIndexes)
+            previewShardTransaction(esql, shardIndex, work);
+      } else if (shardIndexes.size() == 1) {
+         singleShardTransaction(operation, esql, shardIndexes.get(0), work);
+      } else {
+         prepareShardTransactions(operation, esql, shardIndexes, work);
       }
+   }
+
+   private static void previewShardTransaction(Retail esql, final int shardIndex, final ShardWork work) throws SQLException {
+      final Retail shard = esql.shardAt(shardIndex);
+      retries.preview(shard, new UnitOfWork<Void>() {
+         public Void run() throws SQLException {
+            work.run(shard, shardIndex);
+            return null;
+         }
+      });
+   }
+
+   private static void singleShardTransaction(String operation, Retail esql, final int shardIndex, final ShardWork work) throws SQLException {
+      final Retail shard = esql.shardAt(shardIndex);
+      retries.execute(operation, shard, new UnitOfWork<Void>() {
+         public Void run() throws SQLException {
+            work.run(shard, shardIndex);
+            return null;
+         }
+      });
+   }
 
+   // gids of the prepared shard transactions: "retail:<random>:<shards>",
+   // where <shards> lists the shardIndexes in commit order, e.g. "-1.0.2"
+   static final String PREPARED_GID_PREFIX = "retail:";
+
+   private static void prepareShardTransactions(final String operation, final Retail esql, final List<Integer> shardIndexes, final ShardWork work) throws SQLException {
+      StringBuilder shardList = new StringBuilder();
+      for (int shardIndex : shardIndexes)
+         shardList.append(shardList.length() == 0 ? "" : ".").append(shardIndex);
+      final String gidSuffix = ":" + shardList;
+      retries.retry(operation, new UnitOfWork<Void>() {
+         public Void run() throws SQLException {
+            String gid = PREPARED_GID_PREFIX + Long.toHexString(ThreadLocalRandom.current().nextLong()) + gidSuffix;
+            List<Retail> prepared = new ArrayList<Retail>();
+            try {
+               for (int shardIndex : shardIndexes) {
+                  Retail shard = esql.shardAt(shardIndex);
+                  shard.executeUpdate("BEGIN");
+                  try {
+                     work.run(shard, shardIndex);
+                     shard.executeUpdate("PREPARE TRANSACTION '" + gid + "'");
+                  } catch (SQLException | RuntimeException e) {
+                     endTransaction(shard, "ROLLBACK", gid);
+                     throw e;
+                  }
+                  prepared.add(shard);
+               }
+            } catch (SQLException | RuntimeException e) {
+               // * newest first, so a rollback cut short never leaves the last shard prepared *
+               for (int i = prepared.size() - 1; i >= 0; --i)
+                  endTransaction(prepared.get(i), "ROLLBACK PREPARED '" + gid + "'", gid);
+               throw e;
+            }
+            // * every shard is prepared, so the transaction commits; the last shard goes last *
+            for (Retail shard : prepared)
+               endTransaction(shard, "COMMIT PREPARED '" + gid + "'", gid);
+            return null;
+         }
+      });
    }
-   public static void adminViewProduct(Retail esql) {
+
+   // * A failure here leaves the prepared transaction to recoverShardTransactions *
+   private static void endTransaction(Retail shard, String statement, String gid) {
       try {
-      // * (fxn) Check if user is an admin *
-      if (!isAdmin(esql)) {
-         return;
+         shard.executeUpdate(statement);
+      } catch (SQLException e) {
+         System.err.println(statement + " failed, " + gid + " is left for recovery: " + e.getMessage());
       }
-      System.out.println("Please enter the productname of the product you wish to view:");
-      String productName = in.readLine();
-      System.out.println("Please enter the storeid of the product you wish to view:");
-      String storeID = in.readLine();
-      if (!isProductAtStore(esql, productName, storeID)) {
-         System.out.println("Invalid parameters, returning to main menu...");
-         return;
+   }
+
+   /*
+    * Finishes the prepared shard transactions of processes that died in the
+    * middle of a two-phase commit, on the shards and on the main database.
+    * Participants prepare and commit in the order of their gid, and a failed
+    * prepare rolls back newest first, so the last shard of a gid is still
+    * prepared exactly when the decision was to commit. Transactions prepared less than -Dretail.prepared.recover.ms
+    * (60000) ago are left alone, since their process may still be running.
+    * @return the number of prepared transactions finished
+    **/
+   public static int recoverShardTransactions(Retail esql) throws SQLException {
+      long minAgeMillis = Long.getLong("retail.prepared.recover.ms", 60000);
+      int finished = 0;
+      List<Retail> participants = new ArrayList<Retail>(java.util.Arrays.asList(esql.shards()));
+      if (!participants.isEmpty())
+         participants.add(esql);
+      for (Retail shard : participants) {
+         for (List<String> row : shard.executePreparedQueryAndReturnResult(
+               "SELECT gid FROM pg_prepared_xacts WHERE database = current_database() AND gid LIKE ? "
+               + "AND prepared < now() - ? * interval '1 millisecond'", PREPARED_GID_PREFIX + "%", minAgeMillis)) {
+            String gid = row.get(0);
+            String[] shardList = gid.substring(gid.lastIndexOf(':') + 1).split("\\.");
+            Retail last = esql.shardAt(Integer.parseInt(shardList[shardList.length - 1]));
+            boolean commit = !last.executePreparedQueryAndReturnResult(
+               "SELECT 1 FROM pg_prepared_xacts WHERE database = current_database() AND gid = ?", gid).isEmpty();
+            shard.executeUpdate((commit ? "COMMIT" : "ROLLBACK") + " PREPARED '" + gid + "'");
+            System.out.println((commit ? "Committed" : "Rolled back") + " prepared shard transaction " + gid);
+            ++finished;
+         }
       }
-      
-      String query = "SELECT * from product where productname = '" + productName + "' AND storeid = '" + storeID + "';";
-      int rowCount = esql.executeQuery(query);
-      if (rowCount < 1) {
-         System.out.println("Product not found, returning to main menu...");
-         return;
+      return finished;
+   }
+
+   // * Orders the cart lines of one shard; runs inside that shard's transaction *
+   private static void checkoutShard(Retail shard, List<CartLine> cart, int customerID, String orderTime) throws SQLException {
+      StringBuilder keys = new StringBuilder();
+      List<Object> params = new ArrayList<Object>();
+      for (CartLine line : cart) {
+         keys.append(keys.length() == 0 ? "(?, ?)" : ", (?, ?)");
+         params.add(line.store);
+         params.add(line.productID);
+      }
+      Map<String, String> prices = new HashMap<String, String>();
+      for (List<String> row : shard.executePreparedQueryAndReturnResult(
+            "SELECT storeid, productid, pricecents FROM product WHERE (storeid, productid) IN (" + keys + ")", params.toArray()))
+         prices.put(row.get(0) + ":" + row.get(1), row.get(2));
+
+      List<Object[]> decrements = new ArrayList<Object[]>();
+      List<Object[]> orders = new ArrayList<Object[]>();
+      for (CartLine line : cart) {
+         String price = prices.get(productKey(line.storeID, line.productID));
+         if (price == null) {
+            throw new IllegalArgumentException("ERR: Store " + line.store + " does not sell " + line.productName);
+         }
+         line.priceCents = Long.parseLong(price);
+         decrements.add(new Object[] {line.units, line.store, line.productID, line.units});
+         orders.add(new Object[] {customerID, line.store, line.productID, line.units, orderTime});
       }
-      List<List<String>> result = esql.executeQueryAndReturnResult(query);
-      String reStoreID = result.get(0).get(0);
-      String reProductName = result.get(0).get(1).replaceAll("\\s+", ""); ;
-      String reNumUnits = result.get(0).get(2);
-      String rePricePerUnit = result.get(0).get(3);
 
-      System.out.println("Store " + reStoreID + " has " + reNumUnits + " units of " + reProductName + " at $" + rePricePerUnit + " each.");
-      return;
+      int[] updated = shard.executePreparedBatch(
+         "UPDATE product SET numberofunits = numberofunits - ? WHERE storeid = ? AND productid = ? AND numberofunits >= ?", decrements);
+      for (int i = 0; i < updated.length; ++i) {
+         if (updated[i] < 1) {
+            throw new IllegalArgumentException("ERR: Store " + cart.get(i).store + " does not have " + cart.get(i).units + " units of " + cart.get(i).productName + " left");
+         }
+      }
+      shard.executePreparedBatch(
+         "INSERT INTO orders (customerid, storeid, productid, unitsordered, ordertime) VALUES (?, ?, ?, ?, CAST(? AS timestamp))", orders);
+   }
 
+   // * Sum of the totalcost column of a receipt, in dollars *
+   public static String receiptTotal(List<List<String>> receipt) {
+      long cents = 0;
+      for (List<String> item : receipt)
+         cents += parseCents(item.get(5));
+      return formatCents(cents);
+   }
 
-      }catch(Exception e){
-         System.err.println(e.getMessage());
+   static final String[] USER_CHANGE_COLUMNS = {"change", "userid", "name", "password", "latitude", "longitude", "type"};
+   static final String[] PRODUCT_CHANGE_COLUMNS = {"change", "storeid", "productname", "numberofunits", "priceperunit"};
+
+   // * Rows sent per batched insert when a bulk update stages its changes *
+   static final int BULK_BATCH = Math.max(1, Integer.getInteger("retail.bulk.batch", 1000));
+
+   /*
+    * Reads a bulk change file: one change per line, fields separated by
+    * commas. A first line starting with headerStart is skipped.
+    * @return the fields of every line by line number
+    **/
+   public static Map<Integer, String[]> readChangeFile(String path, String headerStart, int fieldCount) throws IOException {
+      Map<Integer, String[]> lines = new LinkedHashMap<Integer, String[]>();
+      BufferedReader file = new BufferedReader(new FileReader(path));
+      try {
+         int lineNumber = 0;
+         String line;
+         while ((line = file.readLine()) != null) {
+            ++lineNumber;
+            if (line.trim().isEmpty() || (lineNumber == 1 && line.startsWith(headerStart))) {
+               continue;
+            }
+            String[] fields = line.split(",", -1);
+            if (fields.length != fieldCount) {
+               throw new IllegalArgumentException("ERR: line " + lineNumber + " has " + fields.length + " fields instead of " + fieldCount);
+            }
+            lines.put(lineNumber, fields);
+         }
+      } finally {
+         file.close();
+      }
+      return lines;
+   }
+
+   // * A trimmed field of a change line; null when empty, meaning "keep the current value" *
+   private static String changeField(String[] fields, int index) {
+      String value = fields[index].trim();
+      return value.isEmpty() ? null : value;
+   }
+
+   // * "old -> new" for a changed value, the value itself otherwise *
+   private static String changeCell(String before, String after) {
+      if (after == null) {
+         return "";
+      }
+      if (before == null || before.trim().equals(after.trim())) {
+         return after.trim();
+      }
+      return before.trim() + " -> " + after.trim();
+   }
+
+   // * Adds one timed step to a bulk update's report *
+   private static void timed(List<String> report, String step, int rows, long startedNanos) {
+      report.add(String.format("%-36s %8d rows %10.1f ms", step, rows, (System.nanoTime() - startedNanos) / 1e6));
+   }
+
+   // * Sends rows to a staging table BULK_BATCH rows at a time *
+   private static void stageChanges(Retail db, String insert, List<Object[]> rows, String step, List<String> report) throws SQLException {
+      for (int from = 0, batch = 1; from < rows.size(); from += BULK_BATCH, ++batch) {
+         List<Object[]> part = rows.subList(from, Math.min(rows.size(), from + BULK_BATCH));
+         long started = System.nanoTime();
+         db.executePreparedBatch(insert, part);
+         timed(report, step + ": stage batch " + batch, part.size(), started);
+      }
+   }
+
+   /*
+    * Bulk user changes from lines of userID,name,password,latitude,longitude,
+    * type; empty fields keep the current value, and a line whose userID is
+    * empty or unknown adds a user (every other field is then required).
+    * The lines are staged into a temporary table with batched inserts and
+    * applied with one UPDATE ... FROM and one INSERT ... SELECT, all in one
+    * transaction. With preview set nothing is applied and the transaction is
+    * rolled back; the diff is computed either way.
+    * @return one USER_CHANGE_COLUMNS record per user that changes
+    **/
+   public static List<List<String>> bulkUpdateUsers(final Retail esql, Map<Integer, String[]> lines, final boolean preview, final List<String> report) throws SQLException {
+      // * the last line for a user wins *
+      Map<String, Object[]> changes = new LinkedHashMap<String, Object[]>();
+      for (Map.Entry<Integer, String[]> line : lines.entrySet()) {
+         String[] fields = line.getValue();
+         try {
+            String userID = changeField(fields, 0);
+            String latitude = changeField(fields, 3);
+            String longitude = changeField(fields, 4);
+            String type = changeField(fields, 5);
+            if (type != null && !type.equals("customer") && !type.equals("manager") && !type.equals("admin")) {
+               throw new IllegalArgumentException("unknown type " + type);
+            }
+            changes.put(userID == null ? "line " + line.getKey() : userID, new Object[] {line.getKey(),
+               userID == null ? null : Integer.valueOf(userID), changeField(fields, 1), changeField(fields, 2),
+               latitude == null ? null : new java.math.BigDecimal(latitude),
+               longitude == null ? null : new java.math.BigDecimal(longitude), type});
+         } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("ERR: line " + line.getKey() + ": " + e.getMessage());
+         }
       }
+      final List<Object[]> rows = new ArrayList<Object[]>(changes.values());
+
+      UnitOfWork<List<List<String>>> work = new UnitOfWork<List<List<String>>>() {
+         public List<List<String>> run() throws SQLException {
+            report.clear();
+            esql.executePreparedUpdate(
+               "CREATE TEMP TABLE user_changes (line integer, userid integer, name varchar(50), password varchar(11), "
+               + "latitude decimal(8,6), longitude decimal(9,6), type user_role) ON COMMIT DROP");
+            stageChanges(esql, "INSERT INTO user_changes VALUES (?, ?, ?, ?, ?, ?, ?)", rows, "users", report);
+
+            long started = System.nanoTime();
+            List<List<String>> diff = new ArrayList<List<String>>();
+            for (List<String> row : esql.executePreparedQueryAndReturnResult(
+                  "SELECT CASE WHEN u.userid IS NOT NULL THEN 'update' "
+                  + "WHEN c.name IS NULL OR c.password IS NULL OR c.latitude IS NULL OR c.longitude IS NULL OR c.type IS NULL THEN 'skip' "
+                  + "ELSE 'insert' END, c.userid, u.name, c.name, u.password, c.password, "
+                  + "u.latitude, c.latitude, u.longitude, c.longitude, u.type, c.type "
+                  + "FROM user_changes c LEFT JOIN users u ON u.userid = c.userid "
+                  + "WHERE u.userid IS NULL OR COALESCE(c.name, u.name) <> u.name OR COALESCE(c.password, u.password) <> u.password "
+                  + "OR COALESCE(c.latitude, u.latitude) <> u.latitude OR COALESCE(c.longitude, u.longitude) <> u.longitude "
+                  + "OR COALESCE(c.type, u.type) <> u.type ORDER BY c.line")) {
+               List<String> change = new ArrayList<String>();
+               change.add(row.get(0));
+               change.add(row.get(1) == null ? "" : row.get(1));
+               for (int i = 2; i < row.size(); i += 2)
+                  change.add(changeCell(row.get(i), row.get(i + 1) == null ? row.get(i) : row.get(i + 1)));
+               diff.add(change);
+            }
+            timed(report, "users: diff", diff.size(), started);
+            if (preview) {
+               return diff;
+            }
 
+            started = System.nanoTime();
+            int updated = esql.executePreparedUpdate(
+               "UPDATE users u SET name = COALESCE(c.name, u.name), password = COALESCE(c.password, u.password), "
+               + "latitude = COALESCE(c.latitude, u.latitude), longitude = COALESCE(c.longitude, u.longitude), type = COALESCE(c.type, u.type) "
+               + "FROM user_changes c WHERE u.userid = c.userid");
+            timed(report, "users: update", updated, started);
+            started = System.nanoTime();
+            int inserted = esql.executePreparedUpdate(
+               "INSERT INTO users (userid, name, password, latitude, longitude, type) "
+               + "SELECT COALESCE(c.userid, nextval('users_userid_seq')), c.name, c.password, c.latitude, c.longitude, c.type FROM user_changes c "
+               + "WHERE NOT EXISTS (SELECT 1 FROM users u WHERE u.userid = c.userid) AND c.name IS NOT NULL AND c.password IS NOT NULL "
+               + "AND c.latitude IS NOT NULL AND c.longitude IS NOT NULL AND c.type IS NOT NULL ORDER BY c.line");
+            esql.executePreparedQueryAndReturnResult("SELECT setval('users_userid_seq', (SELECT max(userid) FROM users))");
+            timed(report, "users: insert", inserted, started);
+            return diff;
+         }
+      };
+      List<List<String>> diff = preview ? retries.preview(esql, work) : retries.execute("bulkUpdateUsers", esql, work);
+      if (!preview) {
+         for (Object[] row : rows)
+            if (row[2] != null)
+               rememberUserName((String) row[2]);
+         invalidations.publish("users", null);
+      }
+      return diff;
    }
-   public static void adminUpdateProduct(Retail esql) {
+
+   /*
+    * Bulk product changes from lines of storeID,productName,numberOfUnits,
+    * pricePerUnit; empty fields keep the current value, and a product the
+    * store does not carry yet is added (both values are then required).
+    * Each shard stages its lines into ProductChanges under this run's runID
+    * with batched inserts and applies them with one UPDATE ... FROM and one
+    * INSERT ... SELECT. Names new to the catalog are registered, and the
+    * units this process holds in escrow for the products are returned to
+    * their rows, in the same transaction; with shards, the main database's
+    * catalog and every shard commit together through inShardTransactions.
+    * With preview set nothing is applied; the diff is computed either way.
+    * @return one PRODUCT_CHANGE_COLUMNS record per product that changes
+    **/
+   public static List<List<String>> bulkUpdateProducts(final Retail esql, Map<Integer, String[]> lines, final boolean preview, List<String> report) throws SQLException {
+      // * the last line for a product wins *
+      Map<String, Object[]> changes = new LinkedHashMap<String, Object[]>();
+      for (Map.Entry<Integer, String[]> line : lines.entrySet()) {
+         String[] fields = line.getValue();
+         try {
+            String storeID = changeField(fields, 0);
+            String productName = changeField(fields, 1);
+            String units = changeField(fields, 2);
+            String price = changeField(fields, 3);
+            if (storeID == null || productName == null) {
+               throw new IllegalArgumentException("storeID and productName are required");
+            }
+            if (units != null && Integer.parseInt(units) < 0) {
+               throw new IllegalArgumentException("numberOfUnits cannot be negative");
+            }
+            changes.put(storeID + ":" + productName, new Object[] {line.getKey(), Integer.valueOf(storeID), productName,
+               units == null ? null : Integer.valueOf(units), price == null ? null : Integer.valueOf(parseCents(price))});
+         } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("ERR: line " + line.getKey() + ": " + e.getMessage());
+         }
+      }
+
+      // * shards have no Store table, so the stores are checked here *
+      java.util.Set<Object> stores = new java.util.LinkedHashSet<Object>();
+      final java.util.Set<String> names = new java.util.LinkedHashSet<String>();
+      for (Object[] row : changes.values()) {
+         stores.add(row[1]);
+         names.add((String) row[2]);
+      }
+      if (stores.isEmpty()) {
+         return new ArrayList<List<String>>();
+      }
+      StringBuilder placeholders = new StringBuilder();
+      for (int i = 0; i < stores.size(); ++i)
+         placeholders.append(i == 0 ? "?" : ", ?");
+      java.util.Set<Object> unknown = new java.util.LinkedHashSet<Object>(stores);
+      for (List<String> store : esql.executePreparedQueryAndReturnResult(
+            "SELECT storeid FROM store WHERE storeid IN (" + placeholders + ")", stores.toArray()))
+         unknown.remove(Integer.valueOf(store.get(0).trim()));
+      if (!unknown.isEmpty()) {
+         throw new IllegalArgumentException("ERR: Unknown store(s) " + unknown);
+      }
+
+      final long runID = ThreadLocalRandom.current().nextLong();
+      final boolean sharded = esql.shards().length > 0;
+      final TreeMap<Integer, List<Object[]>> byShard = new TreeMap<Integer, List<Object[]>>();
+      for (Object[] row : changes.values()) {
+         int shard = esql.shardIndex((Integer) row[1]);
+         if (!byShard.containsKey(shard))
+            byShard.put(shard, new ArrayList<Object[]>());
+         byShard.get(shard).add(new Object[] {runID, row[0], row[1], row[2], row[3], row[4]});
+      }
+      List<Integer> participants = new ArrayList<Integer>(byShard.keySet());
+      if (sharded && !preview)
+         participants.add(0, MAIN_DATABASE);
+
+      // * keyed by participant, since a retried transaction redoes its work *
+      final Map<Integer, List<List<String>>> diffs = new TreeMap<Integer, List<List<String>>>();
+      final Map<Integer, List<String>> reports = new TreeMap<Integer, List<String>>();
+      final Map<String, Integer> registered = new LinkedHashMap<String, Integer>();
+      // * {store, productID, units} returned from escrow, given back if the transaction rolls back *
+      final Map<Integer, List<int[]>> returned = new TreeMap<Integer, List<int[]>>();
       try {
-      // * (fxn) Check if user is an admin *
-      if (!isAdmin(esql)) {
-         return;
+         inShardTransactions("bulkUpdateProducts", esql, participants, preview, new ShardWork() {
+            public void run(Retail shard, int shardIndex) throws SQLException {
+               List<String> shardReport = new ArrayList<String>();
+               reports.put(shardIndex, shardReport);
+               giveBackToEscrow(returned.remove(shardIndex));
+               if (!preview && (shardIndex == MAIN_DATABASE || !sharded)) {
+                  long started = System.nanoTime();
+                  registered.clear();
+                  registered.putAll(catalog.register(shard, names));
+                  timed(shardReport, "catalog: register", names.size(), started);
+                  if (shardIndex == MAIN_DATABASE) {
+                     return;
+                  }
+               } else if (!preview) {
+                  ProductCatalog.copy(shard, registered);
+               }
+
+               String step = "products (shard " + shardIndex + ")";
+               stageChanges(shard, "INSERT INTO productchanges VALUES (?, ?, ?, ?, ?, ?)", byShard.get(shardIndex), step, shardReport);
+               long started = System.nanoTime();
+               shard.executePreparedQueryAndReturnResult(
+                  "SELECT 1 FROM product WHERE (storeid, productid) IN ("
+                  + "SELECT c.storeid, k.productid FROM productchanges c JOIN productcatalog k USING (productname) WHERE c.runid = ?) "
+                  + "ORDER BY storeid, productid FOR UPDATE", runID);
+               if (!preview) {
+                  List<int[]> units = new ArrayList<int[]>();
+                  returned.put(shardIndex, units);
+                  for (Object[] row : byShard.get(shardIndex)) {
+                     int store = (Integer) row[2];
+                     int productID = registered.get(((String) row[3]).trim());
+                     int held = escrow.returnHeld(shard, store, productID);
+                     if (held > 0)
+                        units.add(new int[] {store, productID, held});
+                  }
+               }
+               List<List<String>> diff = shard.executePreparedQueryAndReturnResult(
+                  "SELECT CASE WHEN p.storeid IS NOT NULL THEN 'update' "
+                  + "WHEN c.numberofunits IS NULL OR c.pricecents IS NULL THEN 'skip' ELSE 'insert' END, "
+                  + "c.storeid, c.productname, p.numberofunits, COALESCE(c.numberofunits, p.numberofunits), "
+                  + "(p.pricecents / 100.0)::numeric(12,2), (COALESCE(c.pricecents, p.pricecents) / 100.0)::numeric(12,2), c.line "
+                  + "FROM productchanges c LEFT JOIN productcatalog k USING (productname) "
+                  + "LEFT JOIN product p ON p.storeid = c.storeid AND p.productid = k.productid "
+                  + "WHERE c.runid = ? AND (p.storeid IS NULL OR COALESCE(c.numberofunits, p.numberofunits) <> p.numberofunits "
+                  + "OR COALESCE(c.pricecents, p.pricecents) <> p.pricecents)", runID);
+               timed(shardReport, step + ": diff", diff.size(), started);
+               diffs.put(shardIndex, diff);
+               if (preview) {
+                  return;
+               }
+
+               started = System.nanoTime();
+               int updated = shard.executePreparedUpdate(
+                  "UPDATE product p SET numberofunits = COALESCE(c.numberofunits, p.numberofunits), pricecents = COALESCE(c.pricecents, p.pricecents) "
+                  + "FROM productchanges c JOIN productcatalog k USING (productname) "
+                  + "WHERE c.runid = ? AND p.storeid = c.storeid AND p.productid = k.productid", runID);
+               timed(shardReport, step + ": update", updated, started);
+               started = System.nanoTime();
+               int inserted = shard.executePreparedUpdate(
+                  "INSERT INTO product (storeid, productid, numberofunits, pricecents) "
+                  + "SELECT c.storeid, k.productid, c.numberofunits, c.pricecents FROM productchanges c JOIN productcatalog k USING (productname) "
+                  + "WHERE c.runid = ? AND c.numberofunits IS NOT NULL AND c.pricecents IS NOT NULL "
+                  + "AND NOT EXISTS (SELECT 1 FROM product p WHERE p.storeid = c.storeid AND p.productid = k.productid)", runID);
+               timed(shardReport, step + ": insert", inserted, started);
+               shard.executePreparedUpdate("DELETE FROM productchanges WHERE runid = ?", runID);
+            }
+         });
+      } catch (SQLException | RuntimeException e) {
+         for (List<int[]> units : returned.values())
+            giveBackToEscrow(units);
+         throw e;
       }
-      System.out.println("Please enter the productname of the product you wish to update:");
-      String productName = in.readLine();
-      System.out.println("Please enter the storeid of the product you wish to update:");
-      String storeID = in.readLine();
-      if (!isProductAtStore(esql, productName, storeID)) {
-         System.out.println("Invalid parameters, returning to main menu...");
-         return;
+
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (List<List<String>> diff : diffs.values())
+         rows.addAll(diff);
+      Collections.sort(rows, new java.util.Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            return Integer.compare(Integer.parseInt(a.get(7)), Integer.parseInt(b.get(7)));
+         }
+      });
+      List<List<String>> diff = new ArrayList<List<String>>();
+      for (List<String> row : rows) {
+         List<String> change = new ArrayList<String>();
+         change.add(row.get(0));
+         change.add(row.get(1));
+         change.add(row.get(2).trim());
+         change.add(changeCell(row.get(3), row.get(4)));
+         change.add(changeCell(row.get(5), row.get(6)));
+         diff.add(change);
       }
-      
-      String query = "SELECT * from product where productname = '" + productName + "' AND storeid = '" + storeID + "';";
-      int rowCount = esql.executeQuery(query);
-      if (rowCount < 1) {
-         System.out.println("Product not found, returning to main menu...");
-         return;
+      for (List<String> shardReport : reports.values())
+         report.addAll(shardReport);
+      if (!preview) {
+         catalog.remember(registered);
+         for (Object[] row : changes.values())
+            productFilter.remember(String.valueOf(row[1]), (String) row[2]);
+         invalidations.publish("product", null);
       }
-      List<List<String>> result = esql.executeQueryAndReturnResult(query);
-      String reStoreID = result.get(0).get(0);
-      String reProductName = result.get(0).get(1).replaceAll("\\s+", ""); ;
-      String reNumUnits = result.get(0).get(2);
-      String rePricePerUnit = result.get(0).get(3);
+      return diff;
+   }
 
-      System.out.println("Store " + reStoreID + " has " + reNumUnits + " units of " + reProductName + " at $" + rePricePerUnit + " each.");
+   // * Units returned from escrow by a bulk transaction that rolled back *
+   private static void giveBackToEscrow(List<int[]> units) {
+      if (units != null)
+         for (int[] held : units)
+            escrow.giveBack(held[0], held[1], held[2]);
+   }
 
-      String choice = "";
-      String update = "";
-      System.out.println("Would you like to update the number of units for the product?");
-      System.out.println("1. Yes\n2. No");
-      choice = in.readLine();
-      if (choice.equals("1")) {
-         System.out.println("Please enter the new number of units: ");
-         update = in.readLine();
-         query = "UPDATE product SET numberofunits = '" + update + "' where productname = '" + productName + "' AND storeid = '" + storeID + "';";
-         esql.executeUpdate(query); 
+   /*
+    * Places an order for units of a product at storeID and, when that store
+    * is short, fills the rest from its nearest neighbours (storeNeighbors)
+    * that have the product. The stock of those stores, escrowed units
+    * included, is read with one query per shard; the plan takes what each store has, nearest first,
+    * and the orders are placed with submitCart, so either all of them are
+    * placed or none.
+    * @return one ORDER_RECEIPT_COLUMNS record per store used
+    **/
+   public static List<List<String>> submitSplitOrder(Retail esql, Session session, String storeID, String productName, String numberofUnits) throws SQLException {
+      int store = Integer.parseInt(storeID.trim());
+      int units = Integer.parseInt(numberofUnits.trim());
+      if (units < 1) {
+         throw new IllegalArgumentException("ERR: You must order at least one unit");
+      }
+      Integer productID = catalog.idOf(esql, productName);
+      if (productID == null) {
+         throw new IllegalArgumentException("ERR: No store sells " + productName + "." + didYouMean(esql, productName));
       }
 
-      System.out.println("Would you like to update the price per unit for the product?");
-      System.out.println("1. Yes\n2. No");
-      choice = in.readLine();
-      if (choice.equals("1")) {
-         System.out.println("Please enter the new price per unit: ");
-         update = in.readLine();
-         query = "UPDATE product SET priceperunit = '" + update + "' where productname = '" + productName + "' AND storeid = '" + storeID + "';";
-         esql.executeUpdate(query); 
+      List<String> candidates = new ArrayList<String>();
+      candidates.add(String.valueOf(store));
+      for (int neighbor : storeNeighbors.of(esql, store))
+         candidates.add(String.valueOf(neighbor));
+      Map<String, Integer> stock = new HashMap<String, Integer>();
+      for (List<String> row : esql.scatterStores(session, candidates,
+            "SELECT storeid, numberofunits + " + EscrowInventory.HELD + " FROM product "
+            + "WHERE productid = ? AND numberofunits + " + EscrowInventory.HELD + " > 0 AND storeid IN (%s)", productID))
+         stock.put(row.get(0).trim(), Integer.parseInt(row.get(1).trim()));
+
+      List<List<String>> lines = new ArrayList<List<String>>();
+      int remaining = units;
+      for (String candidate : candidates) {
+         Integer available = stock.get(candidate);
+         if (remaining == 0 || available == null)
+            continue;
+         int take = Math.min(available, remaining);
+         List<String> line = new ArrayList<String>();
+         line.add(candidate);
+         line.add(productName);
+         line.add(String.valueOf(take));
+         lines.add(line);
+         remaining -= take;
       }
-      System.out.println("Updates completed succesfully! Returning to main menu.");
-      return;
-      }catch(Exception e){
-         System.err.println(e.getMessage());
+      if (remaining > 0) {
+         throw new IllegalArgumentException("ERR: Store " + store + " and the stores near it only have " + (units - remaining) + " units of " + productName.trim() + " left");
+      }
+      return submitCart(esql, session, lines);
+   }
+
+   static final String[] SUPPLY_COLUMNS = {"productname", "unitsrequested", "numberofunits"};
+
+   /*
+    * Places one supply request for several products of a store, all from
+    * one warehouse. lines are {productName, units}. Validation is one query:
+    * every line is checked with one query on the store's shard, and the
+    * warehouse against warehouseRouter's in-memory copy of Warehouse (which
+    * lives in the main database, not on the shard), so only a warehouse the
+    * router has not seen yet costs a lookup. A single transaction then adds
+    * the units to the products and writes their ProductSupplyRequests and
+    * ProductUpdates rows, one batched statement each.
+    * @return one SUPPLY_COLUMNS record per product, with its new count
+    **/
+   public static List<List<String>> submitSupplyRequest(Retail esql, Session session, String storeID, String warehouseID, List<List<String>> lines) throws SQLException {
+      if (!session.isManager() || !session.managesStore(storeID)) {
+         throw new IllegalArgumentException("ERR: You do not have managerial access to store " + storeID.trim());
+      }
+      if (lines.isEmpty()) {
+         throw new IllegalArgumentException("ERR: The supply request is empty");
+      }
+      final int store = Integer.parseInt(storeID.trim());
+      final int warehouse = Integer.parseInt(warehouseID.trim());
+      final int managerID = Integer.parseInt(session.userID);
+      if (!warehouseRouter.knows(esql, warehouse)) {
+         throw new IllegalArgumentException("ERR: Warehouse " + warehouse + " does not exist");
+      }
+
+      // * units per product, products in id order so concurrent requests lock rows in the same order *
+      final TreeMap<Integer, Integer> units = new TreeMap<Integer, Integer>();
+      Map<Integer, String> names = new HashMap<Integer, String>();
+      for (List<String> line : lines) {
+         String productName = line.get(0).trim();
+         int requested = Integer.parseInt(line.get(1).trim());
+         if (requested < 1) {
+            throw new IllegalArgumentException("ERR: You must request at least one unit of " + productName);
+         }
+         Integer productID = catalog.idOf(esql, productName);
+         if (productID == null) {
+            throw new IllegalArgumentException("ERR: Store " + store + " does not sell " + productName + "." + didYouMean(esql, productName));
+         }
+         units.put(productID, units.containsKey(productID) ? units.get(productID) + requested : requested);
+         names.put(productID, productName);
+      }
+
+      final Retail shard = esql.shardFor(storeID);
+      StringBuilder placeholders = new StringBuilder();
+      final List<Object> keys = new ArrayList<Object>();
+      keys.add(store);
+      for (Integer productID : units.keySet()) {
+         placeholders.append(placeholders.length() == 0 ? "?" : ", ?");
+         keys.add(productID);
+      }
+      final String counts = "SELECT productid, numberofunits FROM product WHERE storeid = ? AND productid IN (" + placeholders + ")";
+      java.util.Set<Integer> missing = new java.util.TreeSet<Integer>(units.keySet());
+      for (List<String> product : shard.executePreparedQueryAndReturnResult(counts, keys.toArray()))
+         missing.remove(Integer.valueOf(product.get(0).trim()));
+      if (!missing.isEmpty()) {
+         throw new IllegalArgumentException("ERR: Store " + store + " does not sell " + names.get(missing.iterator().next()));
+      }
+
+      final Timestamp requestedOn = new Timestamp(System.currentTimeMillis());
+      List<List<String>> restocked = retries.execute("placeProductSupplyRequests", shard, new UnitOfWork<List<List<String>>>() {
+         public List<List<String>> run() throws SQLException {
+            List<Object[]> increments = new ArrayList<Object[]>();
+            List<Object[]> requests = new ArrayList<Object[]>();
+            List<Object[]> audit = new ArrayList<Object[]>();
+            for (Map.Entry<Integer, Integer> product : units.entrySet()) {
+               increments.add(new Object[] {product.getValue(), store, product.getKey()});
+               requests.add(new Object[] {managerID, warehouse, store, product.getKey(), product.getValue()});
+               audit.add(new Object[] {managerID, store, product.getKey(), requestedOn});
+            }
+            shard.executePreparedBatch("UPDATE product SET numberofunits = numberofunits + ? WHERE storeid = ? AND productid = ?", increments);
+            shard.executePreparedBatch(
+               "INSERT INTO productsupplyrequests (managerid, warehouseid, storeid, productid, unitsrequested) VALUES (?, ?, ?, ?, ?)", requests);
+            shard.executePreparedBatch(AuditWriter.INSERT_UPDATE, audit);
+            return shard.executePreparedQueryAndReturnResult(counts, keys.toArray());
+         }
+      });
+      session.markWrite();
+
+      Map<Integer, String> newCounts = new HashMap<Integer, String>();
+      for (List<String> product : restocked)
+         newCounts.put(Integer.valueOf(product.get(0).trim()), product.get(1));
+      List<List<String>> placed = new ArrayList<List<String>>();
+      for (Map.Entry<Integer, Integer> product : units.entrySet()) {
+         List<String> record = new ArrayList<String>();
+         record.add(names.get(product.getKey()));
+         record.add(String.valueOf(product.getValue()));
+         record.add(newCounts.get(product.getKey()));
+         placed.add(record);
+         invalidations.publish("product", productKey(storeID, product.getKey()));
+      }
+      return placed;
+   }
+
+   // * Times a manager or admin is shown fresh values after a conflicting change *
+   static final int MAX_EDIT_ATTEMPTS = 3;
+
+   /*
+    * Reads a Product row for an interactive edit.
+    * @return {numberofunits, priceperunit, version} or null if the row is gone;
+    * version is the row's xmin, which changes with every update of the row
+    **/
+   public static List<String> readProductVersion(Retail shard, String storeID, int productID) throws SQLException {
+      List<List<String>> product = shard.executePreparedQueryAndReturnResult(
+         "SELECT numberofunits, (pricecents / 100.0)::numeric(12,2), xmin::text FROM product WHERE storeid = ? AND productid = ?",
+         Integer.parseInt(storeID.trim()), productID);
+      return product.isEmpty() ? null : product.get(0);
+   }
+
+   /*
+    * Writes the given columns (null = keep) only if the row still has the
+    * version returned by readProductVersion.
+    * @return false when another order or update changed the row in between
+    **/
+   public static boolean updateProductIfUnchanged(String operation, final Retail shard, String storeID, int productID, String version, Integer units, Integer priceCents) throws SQLException {
+      if (units == null && priceCents == null) {
+         return true;
+      }
+      List<Object> params = new ArrayList<Object>();
+      StringBuilder set = new StringBuilder();
+      if (units != null) {
+         set.append("numberofunits = ?");
+         params.add(units);
+      }
+      if (priceCents != null) {
+         set.append(set.length() == 0 ? "pricecents = ?" : ", pricecents = ?");
+         params.add(priceCents);
+      }
+      params.add(Integer.parseInt(storeID.trim()));
+      params.add(productID);
+      params.add(version);
+      final String update = "UPDATE product SET " + set + " WHERE storeid = ? AND productid = ? AND xmin::text = ?";
+      final Object[] values = params.toArray();
+      return retries.execute(operation, shard, new UnitOfWork<Boolean>() {
+         public Boolean run() throws SQLException {
+            return shard.executePreparedUpdate(update, values) == 1;
+         }
+      });
+   }
+
+   // * Cache key of one Product row, matching the payload of the notify trigger *
+   public static String productKey(String storeID, int productID) {
+      return storeID.trim() + ":" + productID;
+   }
+
+   /*
+    * Logs a product change in ProductUpdates. With the audit writer running
+    * the row is only queued and written later in a batch; otherwise it is
+    * inserted right away on the caller's connection.
+    **/
+   public static void recordProductUpdate(Retail esql, String managerID, String storeID, int productID) throws SQLException {
+      Object[] record = {Integer.parseInt(managerID), Integer.parseInt(storeID.trim()), productID, new Timestamp(System.currentTimeMillis())};
+      AuditWriter writer = auditWriter;
+      if (writer == null || !writer.enqueue(record)) {
+         esql.shardFor(storeID).executePreparedUpdate(AuditWriter.INSERT_UPDATE, record);
+      }
+   }
+
+   /*
+    * Chain-wide Product change: in every given store, the price of one
+    * product (or of every product when productName is null) is changed by
+    * pricePercent and/or its numberOfUnits set to units (null = keep). Each
+    * shard runs one UPDATE over all selected rows and logs them in
+    * ProductUpdates with one INSERT ... SELECT, in the same transaction; the
+    * shard transactions commit together through inShardTransactions, so the
+    * change applies to all stores or to none. When units are set, the units
+    * this process holds in escrow for the rows are returned to them first,
+    * in the same transaction.
+    * @return the number of Product rows changed
+    **/
+   public static int adjustProducts(Retail esql, final Session session, List<String> storeIDs, String productName, final java.math.BigDecimal pricePercent, final Integer units) throws SQLException {
+      if (pricePercent == null && units == null) {
+         return 0;
+      }
+      if (pricePercent != null && pricePercent.compareTo(new java.math.BigDecimal(-100)) <= 0) {
+         throw new IllegalArgumentException("ERR: A price cannot drop by 100% or more");
+      }
+      if (units != null && units < 0) {
+         throw new IllegalArgumentException("ERR: The number of units cannot be negative");
+      }
+      final Integer productID = productName == null ? null : catalog.idOf(esql, productName);
+      if (productName != null && productID == null) {
+         throw new IllegalArgumentException("ERR: No store sells " + productName);
+      }
+      final TreeMap<Integer, List<Object>> byShard = new TreeMap<Integer, List<Object>>();
+      java.util.Set<Integer> stores = new java.util.TreeSet<Integer>();
+      for (String storeID : storeIDs) {
+         if (session.isManager() && !session.managesStore(storeID)) {
+            throw new IllegalArgumentException("ERR: You do not manage store " + storeID.trim());
+         }
+         stores.add(Integer.parseInt(storeID.trim()));
+      }
+      for (Integer store : stores) {
+         int shard = esql.shardIndex(store);
+         if (!byShard.containsKey(shard))
+            byShard.put(shard, new ArrayList<Object>());
+         byShard.get(shard).add(store);
+      }
+      final Timestamp updatedOn = new Timestamp(System.currentTimeMillis());
+      final Map<Integer, Integer> perShard = new HashMap<Integer, Integer>();
+      // * {store, productID, units} returned from escrow, given back if the transaction rolls back *
+      final Map<Integer, List<int[]>> returned = new TreeMap<Integer, List<int[]>>();
+      try {
+         inShardTransactions("adjustProducts", esql, new ArrayList<Integer>(byShard.keySet()), false, new ShardWork() {
+            public void run(Retail shard, int shardIndex) throws SQLException {
+               giveBackToEscrow(returned.remove(shardIndex));
+               List<Object> shardStores = byShard.get(shardIndex);
+               StringBuilder where = new StringBuilder("storeid IN (");
+               for (int i = 0; i < shardStores.size(); ++i)
+                  where.append(i == 0 ? "?" : ", ?");
+               where.append(")");
+               List<Object> keys = new ArrayList<Object>(shardStores);
+               if (productID != null) {
+                  where.append(" AND productid = ?");
+                  keys.add(productID);
+               }
+               // * escrowed units would be lost when the count is overwritten *
+               if (units != null) {
+                  shard.executePreparedQueryAndReturnResult(
+                     "SELECT 1 FROM product WHERE " + where + " ORDER BY storeid, productid FOR UPDATE", keys.toArray());
+                  returned.put(shardIndex, escrow.returnHeld(shard, shardStores, productID));
+               }
+
+               List<Object> params = new ArrayList<Object>();
+               StringBuilder set = new StringBuilder();
+               if (units != null) {
+                  set.append("numberofunits = ?");
+                  params.add(units);
+               }
+               if (pricePercent != null) {
+                  set.append(set.length() == 0 ? "" : ", ").append("pricecents = round(pricecents * (100 + ?) / 100.0)::integer");
+                  params.add(pricePercent);
+               }
+               params.addAll(keys);
+               List<Object> audit = new ArrayList<Object>();
+               audit.add(Integer.parseInt(session.userID));
+               audit.add(updatedOn);
+               audit.addAll(keys);
+
+               perShard.put(shardIndex, shard.executePreparedUpdate("UPDATE product SET " + set + " WHERE " + where, params.toArray()));
+               shard.executePreparedUpdate(
+                  "INSERT INTO productupdates (managerid, storeid, productid, updatedon) SELECT ?, storeid, productid, ? FROM product WHERE " + where,
+                  audit.toArray());
+            }
+         });
+      } catch (SQLException | RuntimeException e) {
+         for (List<int[]> held : returned.values())
+            giveBackToEscrow(held);
+         throw e;
+      }
+      int changed = 0;
+      for (int rows : perShard.values())
+         changed += rows;
+      session.markWrite();
+      invalidations.publish("product", null);
+      return changed;
+   }
+
+   /*
+    * Starts the write-behind audit writer on a dedicated connection. Queue
+    * capacity, batch size and flush interval come from
+    * -Dretail.audit.capacity, -Dretail.audit.batch and -Dretail.audit.flush.ms.
+    **/
+   public static void startAuditWriter(String dbname, String dbport, String user) throws SQLException {
+      auditWriter = new AuditWriter(new Retail(dbname, dbport, user, ""),
+         Integer.getInteger("retail.audit.capacity", 10000),
+         Integer.getInteger("retail.audit.batch", 200),
+         Long.getLong("retail.audit.flush.ms", 250));
+      auditWriter.start();
+   }
+
+   /*
+    * Starts escrow inventory for the products in -Dretail.escrow, a comma
+    * separated list of storeID:productName entries, on a dedicated
+    * connection. Without the property every order goes to the Product row.
+    **/
+   public static void startEscrow(String dbname, String dbport, String user) throws SQLException {
+      String hot = System.getProperty("retail.escrow", "").trim();
+      if (hot.isEmpty()) {
+         return;
+      }
+      Retail esql = new Retail(dbname, dbport, user, "");
+      for (String entry : hot.split(",")) {
+         int colon = entry.indexOf(':');
+         Integer productID = colon < 0 ? null : catalog.idOf(esql, entry.substring(colon + 1));
+         if (productID == null) {
+            System.err.println("Ignoring escrow entry " + entry + ": expected storeID:productName of an existing product");
+            continue;
+         }
+         escrow.add(Integer.parseInt(entry.substring(0, colon).trim()), productID);
+      }
+      escrow.start(esql);
+   }
+
+   // * Returns the units held by escrow of processes that died; see EscrowInventory *
+   public static void recoverEscrow(Retail esql) {
+      try {
+         int restored = EscrowInventory.recover(esql);
+         if (restored > 0) {
+            System.out.println("Returned escrowed units of " + restored + " product(s) held by stopped processes");
+         }
+      } catch (SQLException e) {
+         System.err.println("Could not recover escrowed units: " + e.getMessage());
+      }
+   }
+
+   // * Starts the replenishment job on a dedicated connection, unless -Dretail.replenish.ms is 0 *
+   public static void startReplenisher(String dbname, String dbport, String user) throws SQLException {
+      if (replenisher.enabled()) {
+         replenisher.start(new Retail(dbname, dbport, user, ""));
+      }
+   }
+
+   // * Prints records the same way executeQueryAndPrintResult does *
+   public static int printRecords(String[] header, List<List<String>> records) {
+      if (records.isEmpty()) {
+         return 0;
+      }
+      for (String column : header)
+         System.out.print(column + "\t");
+      System.out.println();
+      for (List<String> record : records) {
+         for (String value : record)
+            System.out.print(value + "\t");
+         System.out.println();
+      }
+      return records.size();
+   }
+   // *----*
+
+   // *----*
+   // * (Kobe) admin *
+   public static void adminViewUsers(Retail esql, Session session) {
+      try {      
+         // * (fxn) Check if user is an admin *
+         if (!isAdmin(session)) {
+            return;
+         }
+
+         System.out.println("Please enter the userid of the user you wish to view:");
+         String userID = in.readLine();
+
+         List<List<String>> result = queryUser(esql, session, userID);
+         if (result.isEmpty()) {
+            System.out.println("User not found, returning to main menu...");
+            return;
+         }
+         String reUserID = result.get(0).get(0);
+         String reUserName = result.get(0).get(1).trim();
+         String reUserLat = result.get(0).get(2);
+         String reUserLong = result.get(0).get(3);
+         String reUserType = result.get(0).get(4);
+
+         System.out.println("User: " + reUserName + " (" + reUserID + ")" + "\nCoordiates: " + reUserLat + ", " + reUserLong + "\nType: " + reUserType);
+         return;
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+
+   }
+   public static void adminUpdateUsers(Retail esql, Session session) {
+      try {
+      // * (fxn) Check if user is an admin *
+      if (!isAdmin(session)) {
+         return;
+      }
+
+      System.out.println("Please enter the userid of the user you wish to update:");
+      String userID = in.readLine();
+
+      List<List<String>> result = esql.executePreparedQueryAndReturnResult(
+         "SELECT * FROM users WHERE userid = ?", Integer.parseInt(userID));
+      if (result.isEmpty()) {
+         System.out.println("User not found, returning to main menu...");
+         return;
+      }
+      String reUserID = result.get(0).get(0);
+      String reUserName = result.get(0).get(1).trim();
+      String reUserLat = result.get(0).get(3);
+      String reUserLong = result.get(0).get(4);
+      String reUserType = result.get(0).get(5);
+
+      // * Every answer adds one "column = ?" clause; they are sent as one UPDATE *
+      List<String> columns = new ArrayList<String>();
+      List<Object> values = new ArrayList<Object>();
+      String choice = "";
+      String update = "";
+      System.out.println("User: " + reUserName + " (" + reUserID + ")");
+      System.out.println("Would you like to update the user's username?");
+      System.out.println("1. Yes\n2. No");
+      choice = in.readLine();
+      if (choice.equals("1")) {
+         System.out.println("Please enter the new user's username: ");
+         update = in.readLine();
+         columns.add("name");
+         values.add(update);
+         rememberUserName(update);
+      }
+
+      System.out.println("Would you like to update the user's password?");
+      System.out.println("1. Yes\n2. No");
+      choice = in.readLine();
+      if (choice.equals("1")) {
+         System.out.println("Please enter the new user's password: ");
+         update = in.readLine();
+         columns.add("password");
+         values.add(update);
+      }
+
+      System.out.println("Coordiates: " + reUserLat + ", " + reUserLong);
+      System.out.println("Would you like to update the user's latitude?");
+      System.out.println("1. Yes\n2. No");
+      choice = in.readLine();
+      if (choice.equals("1")) {
+         System.out.println("Please enter the new user's latitude: (00.000000)");
+         update = in.readLine();
+         columns.add("latitude");
+         values.add(new java.math.BigDecimal(update.trim()));
+      }
+
+      System.out.println("Would you like to update the user's longitude?");
+      System.out.println("1. Yes\n2. No");
+      choice = in.readLine();
+      if (choice.equals("1")) {
+         System.out.println("Please enter the new user's longitude: (00.000000)");
+         update = in.readLine();
+         columns.add("longitude");
+         values.add(new java.math.BigDecimal(update.trim()));
+      }
+
+      System.out.println("Type: " + reUserType);
+      System.out.println("Would you like to update the user's type?");
+      System.out.println("1. Yes\n2. No");
+      choice = in.readLine();
+      if (choice.equals("1")) {
+         System.out.println("Please choose the user's type: \n1. Customer\n2.Manager\n3.Admin");
+         choice = in.readLine();
+         if (choice.equals("1")) {
+            update = "customer";
+         }
+         else if (choice.equals("2")) {
+            update = "manager";
+         }
+         else if (choice.equals("3")) {
+            update = "admin";
+         }
+         else {
+            System.out.println("Option unrecognized, changes unsaved.");
+            update = reUserType;
+         }
+         columns.add("type");
+         values.add(update);
+      }
+
+      if (columns.isEmpty()) {
+         return;
+      }
+      StringBuilder query = new StringBuilder("UPDATE users SET ");
+      for (int i = 0; i < columns.size(); ++i)
+         query.append(i == 0 ? "" : ", ").append(columns.get(i)).append(" = ?");
+      query.append(" WHERE userid = ?");
+      values.add(Integer.parseInt(reUserID));
+      esql.executePreparedUpdate(query.toString(), values.toArray());
+
+      session.markWrite();
+      invalidations.publish("users", reUserID);
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+
+   }
+   public static void adminViewProduct(Retail esql, Session session) {
+      try {
+      // * (fxn) Check if user is an admin *
+      if (!isAdmin(session)) {
+         return;
+      }
+      System.out.println("Please enter the productname of the product you wish to view:");
+      String productName = in.readLine();
+      System.out.println("Please enter the storeid of the product you wish to view:");
+      String storeID = in.readLine();
+      if (!isProductAtStore(esql, productName, storeID)) {
+         System.out.println("Invalid parameters, returning to main menu...");
+         return;
+      }
+      
+      List<List<String>> result = queryProduct(esql, session, storeID, productName);
+      if (result.isEmpty()) {
+         System.out.println("Product not found, returning to main menu...");
+         return;
+      }
+      String reStoreID = result.get(0).get(0);
+      String reProductName = result.get(0).get(1).trim();
+      String reNumUnits = result.get(0).get(2);
+      String rePricePerUnit = result.get(0).get(3);
+
+      System.out.println("Store " + reStoreID + " has " + reNumUnits + " units of " + reProductName + " at $" + rePricePerUnit + " each.");
+      return;
+
+
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+
+   }
+   public static void adminUpdateProduct(Retail esql, Session session) {
+      try {
+      // * (fxn) Check if user is an admin *
+      if (!isAdmin(session)) {
+         return;
+      }
+      System.out.println("Please enter the productname of the product you wish to update:");
+      String productName = in.readLine();
+      System.out.println("Please enter the storeid of the product you wish to update:");
+      String storeID = in.readLine();
+      if (!isProductAtStore(esql, productName, storeID)) {
+         System.out.println("Invalid parameters, returning to main menu...");
+         return;
+      }
+      
+      int productID = catalog.idOf(esql, productName);
+      Retail shard = esql.shardFor(storeID);
+      for (int attempt = 1; ; ++attempt) {
+         escrow.release(shard, Integer.parseInt(storeID.trim()), productID);
+         List<String> product = readProductVersion(shard, storeID, productID);
+         if (product == null) {
+            System.out.println("Product not found, returning to main menu...");
+            return;
+         }
+         System.out.println("Store " + storeID.trim() + " has " + product.get(0) + " units of " + productName.trim() + " at $" + product.get(1) + " each.");
+
+         String choice = "";
+         Integer newUnits = null;
+         Integer newPriceCents = null;
+         System.out.println("Would you like to update the number of units for the product?");
+         System.out.println("1. Yes\n2. No");
+         choice = in.readLine();
+         if (choice.equals("1")) {
+            System.out.println("Please enter the new number of units: ");
+            newUnits = Integer.parseInt(in.readLine().trim());
+         }
+
+         System.out.println("Would you like to update the price per unit for the product?");
+         System.out.println("1. Yes\n2. No");
+         choice = in.readLine();
+         if (choice.equals("1")) {
+            System.out.println("Please enter the new price per unit: ");
+            newPriceCents = parseCents(in.readLine());
+         }
+
+         if (updateProductIfUnchanged("adminUpdateProduct", shard, storeID, productID, product.get(2), newUnits, newPriceCents)) {
+            break;
+         }
+         if (attempt == MAX_EDIT_ATTEMPTS) {
+            System.out.println("The product kept changing while you were editing it; nothing was saved. Returning to main menu.");
+            return;
+         }
+         System.out.println("Someone else changed this product while you were editing it. Here are the current values, please enter your changes again.");
+      }
+      session.markWrite();
+      invalidations.publish("product", productKey(storeID, productID));
+      System.out.println("Updates completed succesfully! Returning to main menu.");
+      return;
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+
+   }
+   public static void adminBulkUpdate(Retail esql, Session session) {
+      try {
+      // * (fxn) Check if user is an admin *
+      if (!isAdmin(session)) {
+         return;
+      }
+      System.out.println("What does the CSV file change?");
+      System.out.println("1. Users (userID,name,password,latitude,longitude,type)\n2. Products (storeID,productName,numberOfUnits,pricePerUnit)");
+      String choice = in.readLine();
+      boolean users = choice.equals("1");
+      if (!users && !choice.equals("2")) {
+         System.out.println("Option unrecognized, returning to main menu...");
+         return;
+      }
+      System.out.println("Empty fields keep the current value; lines for users or products that do not exist yet add them.");
+      System.out.println("Please enter the path of the CSV file:");
+      Map<Integer, String[]> lines = readChangeFile(in.readLine().trim(), users ? "userID" : "storeID", users ? 6 : 4);
+
+      // * dry run first: the changes are staged and diffed, then rolled back *
+      List<String> report = new ArrayList<String>();
+      List<List<String>> changes = users ? bulkUpdateUsers(esql, lines, true, report) : bulkUpdateProducts(esql, lines, true, report);
+      printRecords(users ? USER_CHANGE_COLUMNS : PRODUCT_CHANGE_COLUMNS, changes);
+      for (String step : report)
+         System.out.println(step);
+      if (changes.isEmpty()) {
+         System.out.println("Nothing to change, returning to main menu...");
+         return;
+      }
+      System.out.println("Would you like to apply these " + changes.size() + " changes?");
+      System.out.println("1. Yes\n2. No");
+      if (!in.readLine().equals("1")) {
+         System.out.println("Changes unsaved, returning to main menu...");
+         return;
+      }
+
+      report.clear();
+      changes = users ? bulkUpdateUsers(esql, lines, false, report) : bulkUpdateProducts(esql, lines, false, report);
+      for (String step : report)
+         System.out.println(step);
+      session.markWrite();
+      System.out.println(changes.size() + " changes applied succesfully! Returning to main menu.");
+      return;
+      }catch(IllegalArgumentException e){
+         System.out.println(e.getMessage());
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+
+   }
+   // *----*
+
+   // *----*
+   // * (Jason) manager *
+   public static void viewOrders(Retail esql, Session session) {
+      try{
+         if (!isManager(session)) {
+            return;
+         }
+         printRecords(ORDER_COLUMNS, queryStoreOrders(esql, session));
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+   // *----*
+   // * Regular *
+
+   // * Jason *
+   public static void viewStores(Retail esql, Session session) {
+      try{
+         List<List<String>> storeresult = queryStoresWithin(esql, session, 30);
+
+         System.out.println("storeid  name                  latitude  longitude  managerid  dateestablished");
+         for (List<String> i : storeresult)
+            System.out.println(i);
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+   // * Jason *
+   public static void viewProducts(Retail esql, Session session) {
+      try{
+         System.out.print("\tEnter store ID (must be a number): ");
+         String input = in.readLine();
+         printRecords(PRODUCT_COLUMNS, queryProducts(esql, session, input));
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+
+   public static void searchProducts(Retail esql, Session session) {
+      try{
+         System.out.print("\tEnter the start of a product name (or a misspelled one): ");
+         String typed = in.readLine();
+         List<List<String>> names = searchProductNames(esql, typed, 10);
+         if (names.isEmpty()) {
+            System.out.println("No product matches " + typed.trim() + ".");
+            return;
+         }
+         printRecords(PRODUCT_NAME_COLUMNS, names);
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+
+   public static void findProductNearby(Retail esql, Session session) {
+      try{
+         System.out.print("\tEnter product name: ");
+         String productName = in.readLine();
+         System.out.print("\tEnter the minimum number of units: ");
+         int units = Integer.parseInt(in.readLine().trim());
+         List<List<String>> stores = queryStockNearby(esql, session, productName, units, 30);
+         if (stores.isEmpty()) {
+            System.out.println("No store within 30 miles has " + units + " units of " + productName.trim() + ".");
+            return;
+         }
+         printRecords(STOCK_COLUMNS, stores);
+      }catch(IllegalArgumentException e){
+         System.out.println (e.getMessage());
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+
+   // * Kobe *
+   public static void placeOrder(Retail esql, Session session) {
+      try {
+         System.out.println("Please enter storeID: ");
+         String storeID = in.readLine();
+         System.out.println("Please enter productName: ");
+         String productName = in.readLine();
+         System.out.println("Please enter numberofUnits: ");
+         String numberofUnits = in.readLine();
+
+         // The 30 mile range check is intentionally disabled (the distance
+         // used to be forced to 0), so the user/store coordinates are no
+         // longer fetched here.
+         List<String> receipt = submitOrder(esql, session, storeID, productName, numberofUnits);
+         System.out.println("You have successfully placed an order at " + receipt.get(1) + "(" + storeID + ") for " + numberofUnits + " units of " + productName + " each costing $" + receipt.get(4) + ", totaling $" + receipt.get(5) + ". Thank you!");
+         return;
+      }
+      catch(IllegalArgumentException e){
+         System.out.println (e.getMessage ());
+      }
+      catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }
+   public static void placeSplitOrder(Retail esql, Session session) {
+      try {
+         System.out.println("Please enter storeID: ");
+         String storeID = in.readLine();
+         System.out.println("Please enter productName: ");
+         String productName = in.readLine();
+         System.out.println("Please enter numberofUnits: ");
+         String numberofUnits = in.readLine();
+
+         List<List<String>> receipt = submitSplitOrder(esql, session, storeID, productName, numberofUnits);
+         printRecords(ORDER_RECEIPT_COLUMNS, receipt);
+         System.out.println("Your order has been placed at " + receipt.size() + " store(s), totaling $" + receiptTotal(receipt) + ". Thank you!");
+         return;
+      }
+      catch(IllegalArgumentException e){
+         System.out.println (e.getMessage ());
+      }
+      catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }
+   // * Kobe *
+   public static void checkoutCart(Retail esql, Session session) {
+      try {
+         List<List<String>> lines = new ArrayList<List<String>>();
+         while (true) {
+            System.out.println("Please enter storeID (leave empty to check out): ");
+            String storeID = in.readLine();
+            if (storeID == null || storeID.trim().isEmpty()) {
+               break;
+            }
+            System.out.println("Please enter productName: ");
+            String productName = in.readLine();
+            System.out.println("Please enter numberofUnits: ");
+            String numberofUnits = in.readLine();
+            List<String> line = new ArrayList<String>();
+            line.add(storeID);
+            line.add(productName);
+            line.add(numberofUnits);
+            lines.add(line);
+            System.out.println(lines.size() + " item(s) in your cart.");
+         }
+         if (lines.isEmpty()) {
+            return;
+         }
+
+         List<List<String>> receipt = submitCart(esql, session, lines);
+         printRecords(ORDER_RECEIPT_COLUMNS, receipt);
+         System.out.println("Your order of " + receipt.size() + " item(s) has been placed, totaling $" + receiptTotal(receipt) + ". Thank you!");
+         return;
+      }
+      catch(IllegalArgumentException e){
+         System.out.println (e.getMessage ());
+      }
+      catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }
+
+   public static void viewRecentOrders(Retail esql, Session session) {
+      try {
+         List<List<String>> recent = queryRecentOrders(esql, session);
+         if (recent.isEmpty()) {
+            System.out.println("ERR: You don't have any recent orders");
+            return;
+         }
+         printRecords(RECENT_ORDER_COLUMNS, recent);
+
+         return;
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+
+   }
+   // * Kobe *
+   public static void updateProduct(Retail esql, Session session) {
+      try {
+      //2 Managers can view last 5 recent updates of his/her store(s)
+
+      // * (fxn) Check if user is a manager *
+      if (!isManager(session)) {
+         return;
+      }
+
+      // * (fxn) Ask for storeID and check if managerID matches it *
+      System.out.println("Please enter the store's ID: ");
+      String storeID = in.readLine();
+      if (!isManagerOwnerStore(session, storeID)) {
+         return;
+      }
+
+      // * (fxn) Ask for product name and check if it exists at that store *
+      System.out.println("Please enter the product's name: ");
+      String productName = in.readLine();
+      if (!isProductAtStore(esql, productName, storeID)) {
+         return;
+      }
+
+      // * Showcase product's current [numberofunits] and [priceperunit] and ask *
+      // * No lock is held while the manager types; the update only applies if the row is unchanged *
+      int productID = catalog.idOf(esql, productName);
+      Retail shard = esql.shardFor(storeID);
+      for (int attempt = 1; ; ++attempt) {
+         // * units held in escrow go back first, so the manager sees and edits the real count *
+         escrow.release(shard, Integer.parseInt(storeID.trim()), productID);
+         List<String> currProduct = readProductVersion(shard, storeID, productID);
+         if (currProduct == null) {
+            System.out.println("ERR: This product does not exist at this store.");
+            return;
+         }
+         String numUnits = currProduct.get(0);
+         String priceUnits = currProduct.get(1);
+         Integer newUnits = null;
+         Integer newPriceCents = null;
+         System.out.println("\n" + productName + " currently has " + numUnits + " priced at " + priceUnits + " each. Would you like to update this?\n 1. Update number of units.\n 2. Update price per unit.\n 3. Update both.\n 4. Return to menu.");
+         String userChoice = in.readLine();
+         if (userChoice.equals("1")) {
+            System.out.println("Please enter the new number of units.");
+            newUnits = Integer.parseInt(in.readLine().trim());
+         }
+         else if (userChoice.equals("2")) {
+            System.out.println("Please enter the new price per unit.");
+            newPriceCents = parseCents(in.readLine());
+         }
+         else if (userChoice.equals("3")) {
+            System.out.println("Please enter the new number of units.");
+            newUnits = Integer.parseInt(in.readLine().trim());
+            System.out.println("Please enter the new price per unit.");
+            newPriceCents = parseCents(in.readLine());
+         }
+         else if (userChoice.equals("4")) {
+            return;
+         }
+         else {
+            System.out.println("unrecognized option, returning to menu ...");
+            return;
+         }
+
+         // * Update the product table *
+         if (updateProductIfUnchanged("updateProduct", shard, storeID, productID, currProduct.get(2), newUnits, newPriceCents)) {
+            break;
+         }
+         if (attempt == MAX_EDIT_ATTEMPTS) {
+            System.out.println("The product kept changing while you were editing it; nothing was saved. Returning to menu ...");
+            return;
+         }
+         System.out.println("Someone else changed this product while you were editing it (e.g. a customer placed an order). Please review the current values and enter your update again.");
+      }
+      session.markWrite();
+      invalidations.publish("product", productKey(storeID, productID));
+      System.out.println("You have successfully updated the product.");
+
+      // * Update the productupdates table *
+      recordProductUpdate(esql, session.userID, storeID, productID);
+
+
+      // **Ask for storeID,
+      // **Check if storeID matches managerID
+      // **Ask for productname
+      // **Showcase current numberofunits and priceperunit; ask if they would like to make an update | else "this productname doesn't exist at this store" == doublequery
+      // **Ask for update to numberofunits?
+      // **Ask for update to priceperunit?
+      // **update query
+      // **insert productUpdates
+      //
+      // stores have one manager; managers have multiple stores
+      return;
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+
+   }
+   // * Kobe *
+   public static void viewRecentUpdates(Retail esql, Session session) {
+      try {
+      //2 Managers can view last 5 recent updates of his/her store(s)
+      if (!isManager(session)) {
+         return;
+      }
+      printRecords(UPDATE_COLUMNS, queryRecentUpdates(esql, session));
+      return;
+      }
+      catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
+
+   // * Jason *
+   public static void viewPopularProducts(Retail esql, Session session) {
+      try{
+         if (!isManager(session)) {
+            return;
+         }
+         printRecords(POPULAR_PRODUCT_COLUMNS, queryPopularProducts(esql, session));
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+   // * Jason *
+   public static void viewPopularCustomers(Retail esql, Session session) {
+      try{
+         if (!isManager(session)) {
+            return;
+         }
+         printRecords(POPULAR_CUSTOMER_COLUMNS, queryPopularCustomers(esql, session));
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+
+   // * Kobe *
+   public static void placeProductSupplyRequests(Retail esql, Session session) {
+      try {
+         // * (fxn) Check if user is a manager *
+         if (!isManager(session)) {
+            return;
+         }
+
+         // * (fxn) Ask for storeID and check if managerID matches it *
+         System.out.println("Please enter the store's ID: ");
+         String storeID = in.readLine();
+         if (!isManagerOwnerStore(session, storeID)) {
+            return;
+         }
+
+         // * one line per product; the lines are checked and placed together *
+         List<List<String>> lines = new ArrayList<List<String>>();
+         while (true) {
+            System.out.println("Please enter the product's name (leave empty when done): ");
+            String productName = in.readLine();
+            if (productName == null || productName.trim().isEmpty()) {
+               break;
+            }
+            System.out.println("Please enter the requested amount of units.");
+            String units = in.readLine();
+            List<String> line = new ArrayList<String>();
+            line.add(productName);
+            line.add(units);
+            lines.add(line);
+            System.out.println(lines.size() + " product(s) in this request.");
+         }
+         if (lines.isEmpty()) {
+            return;
+         }
+
+         // * grab warehouse ID; the nearest warehouses are offered first *
+         List<double[]> nearest = warehouseRouter.nearest(esql, Integer.parseInt(storeID.trim()), 3);
+         for (double[] warehouse : nearest)
+            System.out.println(String.format("Warehouse %d is %.2f miles away.", (int) warehouse[0], warehouse[1]));
+         System.out.println("Please enter the warehouse ID you would like to request supplies from" + (nearest.isEmpty() ? ":" : " (leave empty for the nearest):"));
+         String warehouseID = in.readLine().trim();
+         if (warehouseID.isEmpty() && !nearest.isEmpty()) {
+            warehouseID = String.valueOf((int) nearest.get(0)[0]);
+         }
+
+         List<List<String>> placed = submitSupplyRequest(esql, session, storeID, warehouseID, lines);
+         System.out.println("Product supply request has been successfully placed at " + warehouseID);
+         String storeName = queryStoreName(esql, session, storeID);
+         for (List<String> product : placed)
+            System.out.println(storeName + " (" + storeID.trim() + ")" + " now has " + product.get(2) + " units of " + product.get(0) + ".");
+         return;
+      }catch(IllegalArgumentException e){
+         System.out.println(e.getMessage());
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
+
+   public static void adjustStoreProducts(Retail esql, Session session) {
+      try {
+         // * managers change their own stores, admins any store *
+         if (!session.isManager() && !isAdmin(session)) {
+            return;
+         }
+         System.out.println("Please enter the store IDs separated by commas (leave empty for " + (session.isManager() ? "all your stores" : "every store") + "): ");
+         String input = in.readLine().trim();
+         List<String> storeIDs = new ArrayList<String>();
+         if (!input.isEmpty()) {
+            Collections.addAll(storeIDs, input.split(","));
+         }
+         else if (session.isManager()) {
+            storeIDs.addAll(session.managedStores);
+         }
+         else {
+            for (List<String> store : esql.executeSharedQuery(session, "SELECT storeid FROM store"))
+               storeIDs.add(store.get(0));
+         }
+
+         System.out.println("Please enter the product's name (leave empty for every product): ");
+         String productName = in.readLine().trim();
+         System.out.println("Please enter the price change in percent, e.g. 5 or -10 (leave empty to keep the prices): ");
+         String percent = in.readLine().trim();
+         System.out.println("Please enter the new number of units (leave empty to keep the counts): ");
+         String units = in.readLine().trim();
+
+         int changed = adjustProducts(esql, session, storeIDs, productName.isEmpty() ? null : productName,
+            percent.isEmpty() ? null : new java.math.BigDecimal(percent), units.isEmpty() ? null : Integer.valueOf(units));
+         System.out.println("You have successfully updated " + changed + " products in " + storeIDs.size() + " stores.");
+         return;
+      }catch(IllegalArgumentException e){
+         System.out.println(e.getMessage());
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /**
+    * Escrow inventory for hot products. Normally every order locks and
+    * decrements the same Product row. For a hot product, the process
+    * instead moves a block of units (blockSize, or the order size if that
+    * is larger) out of the row into an in-memory counter. Orders take
+    * units from the counter with a compare-and-set, so only their Orders
+    * insert reaches the database. When the counter runs short the next
+    * block is reserved. If the row cannot cover the order, the held units
+    * go back and the order takes the normal path, so nothing is oversold.
+    * A background thread puts back reservations unused for idleMillis, and
+    * stop() puts back the rest.
+    * Every move is also recorded in the EscrowLedger table (see
+    * create_escrow_tables.sql), in the same transaction as the move: +units
+    * when a block is reserved, -units for each order sold from escrow and
+    * for units put back. A holder's SUM(units) is what it still holds, so
+    * readers add HELD to numberofunits to see the real stock. The ledger
+    * row of a sale is part of the order's INSERT statement: it costs one
+    * more index entry per hot order but no extra round trip, and because
+    * it commits with the order, a crash can never return units that were
+    * already sold. Rows are only ever inserted on the order path, and the
+    * background thread folds them together.
+    * The rows are keyed by this process's escrow connection. When a process
+    * dies holding units, recover() returns its ledger balance to Product
+    * once that connection is gone from pg_stat_activity. main and the HTTP
+    * service call it at startup. All Retail processes must log in as the
+    * same database user, so that they can see each other's connections.
+    */
+   static class EscrowInventory implements Runnable {
+      static final String LEDGER = "INSERT INTO escrowledger (holder, storeid, productid, units) VALUES (?, ?, ?, ?)";
+      // * Units of a product row's hot product held in escrow by any process *
+      static final String HELD = heldBy("product");
+
+      // * HELD for the Product row named row in the query *
+      static String heldBy(String row) {
+         return "COALESCE((SELECT SUM(l.units) FROM escrowledger l "
+            + "WHERE l.storeid = " + row + ".storeid AND l.productid = " + row + ".productid), 0)";
+      }
+      // * '<pid>:<backend start in microseconds>' of the connection the query runs on *
+      private static final String HOLDER_OF = "(a.pid || ':' || (extract(epoch FROM a.backend_start) * 1000000)::bigint)";
+
+      private static class Reservation {
+         final int store;
+         final int productID;
+         final AtomicInteger units = new AtomicInteger();
+         // * orders sold from escrow since the ledger was last compacted *
+         final AtomicInteger sales = new AtomicInteger();
+         volatile long lastUsed = System.currentTimeMillis();
+
+         Reservation(int store, int productID) {
+            this.store = store;
+            this.productID = productID;
+         }
+      }
+
+      private final ConcurrentHashMap<String, Reservation> hot = new ConcurrentHashMap<String, Reservation>();
+      private final int blockSize;
+      private final long idleMillis;
+      private final AtomicBoolean stopped = new AtomicBoolean(false);
+      private volatile Retail esql = null;
+      private volatile Thread thread = null;
+      // * ledger holder of this process, by shardIndex *
+      private final Map<Integer, String> holders = new ConcurrentHashMap<Integer, String>();
+
+      EscrowInventory(int blockSize, long idleMillis) {
+         this.blockSize = Math.max(1, blockSize);
+         this.idleMillis = Math.max(1, idleMillis);
+      }
+
+      void add(int store, int productID) {
+         hot.putIfAbsent(store + ":" + productID, new Reservation(store, productID));
+      }
+
+      void start(Retail esql) throws SQLException {
+         for (int shardIndex = 0; shardIndex < Math.max(1, esql.shards().length); ++shardIndex)
+            holders.put(shardIndex, esql.shardAt(shardIndex).executePreparedQueryAndReturnResult(
+               "SELECT " + HOLDER_OF + " FROM pg_stat_activity a WHERE a.pid = pg_backend_pid()").get(0).get(0));
+         this.esql = esql;
+         thread = new Thread(this, "escrow-inventory");
+         thread.setDaemon(true);
+         thread.start();
+      }
+
+      /*
+       * Takes units from escrow, reserving more from the row on the caller's
+       * shard connection if needed.
+       * @return false when the product is not hot or the row cannot cover
+       * the order; the caller then orders against the row itself
+       **/
+      boolean take(Retail shard, int store, int productID, int units) throws SQLException {
+         Reservation reservation = hot.get(store + ":" + productID);
+         // * esql is set once start() knows this process's ledger holders *
+         if (reservation == null || stopped.get() || esql == null) {
+            return false;
+         }
+         reservation.lastUsed = System.currentTimeMillis();
+         if (tryTake(reservation.units, units)) {
+            return true;
+         }
+         synchronized (reservation) {
+            if (tryTake(reservation.units, units)) {
+               return true;
+            }
+            if (reserve(shard, reservation, units - reservation.units.get()) && tryTake(reservation.units, units)) {
+               return true;
+            }
+            putBack(shard, reservation);
+            return false;
+         }
+      }
+
+      // * Ledger holder to write a sale from escrow under, for the store's shard *
+      String holderFor(int store) throws SQLException {
+         return holders.get(esql.shardIndex(store));
+      }
+
+      // * An order sold from escrow committed; its ledger row gets folded in later *
+      void sold(int store, int productID) {
+         Reservation reservation = hot.get(store + ":" + productID);
+         if (reservation != null) {
+            reservation.sales.incrementAndGet();
+         }
+      }
+
+      /*
+       * Returns the ledger balance of every holder whose connection is gone
+       * (a process that died holding units) to Product, with one statement
+       * per shard, so two processes starting together cannot return the
+       * same units twice.
+       * @return the number of Product rows given units back
+       **/
+      static int recover(Retail esql) throws SQLException {
+         int restored = 0;
+         for (int shardIndex = 0; shardIndex < Math.max(1, esql.shards().length); ++shardIndex) {
+            restored += esql.shardAt(shardIndex).executePreparedUpdate(
+               "WITH gone AS (DELETE FROM escrowledger l WHERE NOT EXISTS (SELECT 1 FROM pg_stat_activity a WHERE " + HOLDER_OF + " = l.holder) "
+               + "RETURNING storeid, productid, units) "
+               + "UPDATE product p SET numberofunits = p.numberofunits + g.units "
+               + "FROM (SELECT storeid, productid, SUM(units) AS units FROM gone GROUP BY storeid, productid) g "
+               + "WHERE p.storeid = g.storeid AND p.productid = g.productid AND g.units <> 0");
+         }
+         if (restored > 0) {
+            invalidations.publish("product", null);
+         }
+         return restored;
+      }
+
+      // * Units of an order that failed after take() succeeded *
+      void giveBack(int store, int productID, int units) {
+         Reservation reservation = hot.get(store + ":" + productID);
+         if (reservation != null) {
+            reservation.units.addAndGet(units);
+         }
+      }
+
+      /*
+       * Returns a hot product's held units to its row inside the caller's
+       * transaction, for a bulk update that rewrites the row; the caller
+       * gives them back with giveBack if that transaction rolls back. The
+       * reservation is not locked, since a reserve() holding it may be
+       * waiting for the row the caller has locked.
+       * @return the units returned
+       **/
+      int returnHeld(Retail shard, int store, int productID) throws SQLException {
+         Reservation reservation = hot.get(store + ":" + productID);
+         int units = reservation == null ? 0 : reservation.units.getAndSet(0);
+         if (units == 0) {
+            return 0;
+         }
+         try {
+            shard.executePreparedUpdate(
+               "UPDATE product SET numberofunits = numberofunits + ? WHERE storeid = ? AND productid = ?", units, store, productID);
+            shard.executePreparedUpdate(LEDGER, holderFor(store), store, productID, -units);
+         } catch (SQLException e) {
+            reservation.units.addAndGet(units);
+            throw e;
+         }
+         return units;
+      }
+
+      // * Puts a hot product's held units back into its row, before a manager edits it *
+      void release(Retail shard, int store, int productID) throws SQLException {
+         Reservation reservation = hot.get(store + ":" + productID);
+         if (reservation != null) {
+            synchronized (reservation) {
+               putBack(shard, reservation);
+            }
+         }
+      }
+
+      // * returnHeld() for every hot product of the stores (only productID's, unless it is null); returns {store, productID, units} *
+      List<int[]> returnHeld(Retail shard, java.util.Collection<Object> stores, Integer productID) throws SQLException {
+         List<int[]> returned = new ArrayList<int[]>();
+         for (Reservation reservation : hot.values()) {
+            if (stores.contains(reservation.store) && (productID == null || productID == reservation.productID)) {
+               int held = returnHeld(shard, reservation.store, reservation.productID);
+               if (held > 0) {
+                  returned.add(new int[] {reservation.store, reservation.productID, held});
+               }
+            }
+         }
+         return returned;
+      }
+
+      private static boolean tryTake(AtomicInteger counter, int units) {
+         while (true) {
+            int held = counter.get();
+            if (held < units) {
+               return false;
+            }
+            if (counter.compareAndSet(held, held - units)) {
+               return true;
+            }
+         }
+      }
+
+      // * Moves max(blockSize, needed) units, or what is left if that still covers needed, into escrow *
+      private boolean reserve(final Retail shard, final Reservation reservation, final int needed) throws SQLException {
+         int reserved = retries.execute("escrowReserve", shard, new UnitOfWork<Integer>() {
+            public Integer run() throws SQLException {
+               List<List<String>> row = shard.executePreparedQueryAndReturnResult(
+                  "SELECT numberofunits FROM product WHERE storeid = ? AND productid = ? FOR UPDATE",
+                  reservation.store, reservation.productID);
+               int available = row.isEmpty() ? 0 : Integer.parseInt(row.get(0).get(0));
+               int take = Math.min(available, Math.max(blockSize, needed));
+               if (take < needed) {
+                  return 0;
+               }
+               shard.executePreparedUpdate(
+                  "UPDATE product SET numberofunits = numberofunits - ? WHERE storeid = ? AND productid = ?",
+                  take, reservation.store, reservation.productID);
+               shard.executePreparedUpdate(LEDGER, holders.get(esql.shardIndex(reservation.store)), reservation.store, reservation.productID, take);
+               return take;
+            }
+         });
+         if (reserved == 0) {
+            return false;
+         }
+         reservation.units.addAndGet(reserved);
+         invalidations.publish("product", reservation.store + ":" + reservation.productID);
+         return true;
+      }
+
+      private void putBack(final Retail shard, final Reservation reservation) throws SQLException {
+         final int units = reservation.units.getAndSet(0);
+         if (units == 0) {
+            return;
+         }
+         try {
+            retries.execute("escrowPutBack", shard, new UnitOfWork<Void>() {
+               public Void run() throws SQLException {
+                  shard.executePreparedUpdate(
+                     "UPDATE product SET numberofunits = numberofunits + ? WHERE storeid = ? AND productid = ?",
+                     units, reservation.store, reservation.productID);
+                  shard.executePreparedUpdate(LEDGER, holders.get(esql.shardIndex(reservation.store)), reservation.store, reservation.productID, -units);
+                  return null;
+               }
+            });
+         } catch (SQLException e) {
+            reservation.units.addAndGet(units);
+            throw e;
+         }
+         invalidations.publish("product", reservation.store + ":" + reservation.productID);
+      }
+
+      // * Folds a reservation's ledger rows into one, in one statement so concurrent sales are not lost *
+      private void compact(Retail shard, Reservation reservation) throws SQLException {
+         reservation.sales.set(0);
+         String holder = holders.get(esql.shardIndex(reservation.store));
+         shard.executePreparedUpdate(
+            "WITH gone AS (DELETE FROM escrowledger WHERE holder = ? AND storeid = ? AND productid = ? RETURNING units) "
+            + "INSERT INTO escrowledger (holder, storeid, productid, units) SELECT ?, ?, ?, SUM(units) FROM gone HAVING SUM(units) <> 0",
+            holder, reservation.store, reservation.productID, holder, reservation.store, reservation.productID);
+      }
+
+      public void run() {
+         while (!Thread.currentThread().isInterrupted()) {
+            try {
+               Thread.sleep(idleMillis);
+            } catch (InterruptedException e) {
+               break;
+            }
+            long idleSince = System.currentTimeMillis() - idleMillis;
+            for (Reservation reservation : hot.values()) {
+               try {
+                  if (reservation.sales.get() > 0) {
+                     compact(esql.shardFor(String.valueOf(reservation.store)), reservation);
+                  }
+                  if (reservation.lastUsed > idleSince || reservation.units.get() == 0) {
+                     continue;
+                  }
+                  synchronized (reservation) {
+                     putBack(esql.shardFor(String.valueOf(reservation.store)), reservation);
+                  }
+               } catch (SQLException e) {
+                  System.err.println("Could not return escrowed units: " + e.getMessage());
+               }
+            }
+         }
+      }
+
+      void stop() {
+         Retail db = esql;
+         if (db == null || !stopped.compareAndSet(false, true)) {
+            return;
+         }
+         thread.interrupt();
+         try {
+            thread.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         for (Reservation reservation : hot.values()) {
+            synchronized (reservation) {
+               try {
+                  putBack(db.shardFor(String.valueOf(reservation.store)), reservation);
+                  compact(db.shardFor(String.valueOf(reservation.store)), reservation);
+               } catch (SQLException e) {
+                  System.err.println("Could not return " + reservation.units.get() + " escrowed units of product "
+                     + reservation.productID + " at store " + reservation.store + ": " + e.getMessage());
+               }
+            }
+         }
+         db.cleanup();
+      }
+   }//end EscrowInventory
+
+   /**
+    * The last ordersPerCustomer orders of recently active customers, as
+    * RECENT_ORDER_COLUMNS records, so viewRecentOrders is answered from
+    * memory. A customer's ring buffer is loaded from the database on their
+    * first view. Every order this process places for them is appended to
+    * it. At most maxCustomers rings are kept; the least recently used one
+    * is dropped first.
+    * An Orders change for a customer drops their ring, and one without a
+    * key drops every ring, unless it carries the write tag of the orders
+    * record() just appended: the caller publishes its write under the same
+    * tag it recorded them with. The NOTIFYs of this process's own orders
+    * never get here (see InvalidationBus).
+    */
+   static class RecentOrders {
+      private static class Ring {
+         final Object[] slots;
+         int next = 0;
+         int size = 0;
+         // * write tag of the orders last appended by record() *
+         String recorded = null;
+
+         Ring(int capacity) {
+            slots = new Object[capacity];
+         }
+
+         void add(List<String> order) {
+            slots[next] = order;
+            next = (next + 1) % slots.length;
+            size = Math.min(size + 1, slots.length);
+         }
+
+         @SuppressWarnings("unchecked")
+         List<List<String>> newestFirst() {
+            List<List<String>> orders = new ArrayList<List<String>>(size);
+            for (int i = 1; i <= size; ++i)
+               orders.add((List<String>) slots[(next - i + slots.length) % slots.length]);
+            return orders;
+         }
+      }
+
+      private final int ordersPerCustomer;
+      private final LinkedHashMap<String, Ring> rings;
+
+      RecentOrders(final int maxCustomers, int ordersPerCustomer) {
+         this.ordersPerCustomer = Math.max(1, ordersPerCustomer);
+         this.rings = new LinkedHashMap<String, Ring>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Ring> eldest) {
+               return size() > maxCustomers;
+            }
+         };
+      }
+
+      // * newest first, or null when the customer's orders are not cached *
+      synchronized List<List<String>> get(String customerID) {
+         Ring ring = rings.get(customerID.trim());
+         return ring == null ? null : ring.newestFirst();
+      }
+
+      // * Caches what the database returned, newest first *
+      synchronized void fill(String customerID, List<List<String>> newestFirst) {
+         Ring ring = new Ring(ordersPerCustomer);
+         for (int i = Math.min(newestFirst.size(), ordersPerCustomer) - 1; i >= 0; --i)
+            ring.add(newestFirst.get(i));
+         rings.put(customerID.trim(), ring);
+      }
+
+      // * Appends orders just committed by this process under a write tag, oldest first *
+      synchronized void record(String customerID, List<List<String>> orders, String tag) {
+         Ring ring = rings.get(customerID.trim());
+         if (ring == null) {
+            return;
+         }
+         for (List<String> order : orders)
+            ring.add(order);
+         ring.recorded = tag;
+      }
+
+      // * An Orders change; tag is null unless this process made it *
+      synchronized void changed(String customerID, String tag) {
+         if (customerID == null) {
+            rings.clear();
+            return;
+         }
+         Ring ring = rings.get(customerID.trim());
+         if (ring == null) {
+            return;
+         }
+         if (tag != null && tag.equals(ring.recorded)) {
+            ring.recorded = null;
+         } else {
+            rings.remove(customerID.trim());
+         }
+      }
+   }//end RecentOrders
+
+   // * One transaction's worth of statements, run by TransactionRetrier *
+   interface UnitOfWork<T> {
+      T run() throws SQLException;
+   }
+
+   /**
+    * Runs a UnitOfWork as one transaction on a Retail's connection and
+    * retries it when PostgreSQL aborts it with a serialization failure
+    * (SQLSTATE 40001) or a deadlock (40P01). Retries wait with exponential
+    * backoff and full jitter, and stop after maxAttempts. They are also capped
+    * process-wide by a retry budget: every call earns budgetRatio of a
+    * token and every retry spends one, so under heavy contention retries
+    * add at most that fraction of extra load instead of piling on.
+    * Calls, retries and give-ups are counted per operation name.
+    */
+   static class TransactionRetrier {
+      private static final double MAX_BUDGET = 100;
+
+      private static class OperationStats {
+         final AtomicLong calls = new AtomicLong();
+         final AtomicLong retries = new AtomicLong();
+         final AtomicLong gaveUp = new AtomicLong();
+      }
+
+      private final int maxAttempts;
+      private final long baseDelayMillis;
+      private final long maxDelayMillis;
+      private final double budgetRatio;
+      private double budget = MAX_BUDGET;
+      private final ConcurrentHashMap<String, OperationStats> stats = new ConcurrentHashMap<String, OperationStats>();
+
+      TransactionRetrier(int maxAttempts, long baseDelayMillis, long maxDelayMillis, double budgetRatio) {
+         this.maxAttempts = Math.max(1, maxAttempts);
+         this.baseDelayMillis = Math.max(1, baseDelayMillis);
+         this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+         this.budgetRatio = budgetRatio;
+      }
+
+      <T> T execute(String operation, Retail db, UnitOfWork<T> work) throws SQLException {
+         return execute(operation, db._connection, work);
+      }
+
+      <T> T execute(String operation, final Connection conn, final UnitOfWork<T> work) throws SQLException {
+         return retry(operation, new UnitOfWork<T>() {
+            public T run() throws SQLException {
+               conn.setAutoCommit(false);
+               try {
+                  T result = work.run();
+                  conn.commit();
+                  return result;
+               } catch (SQLException | RuntimeException e) {
+                  rollback(conn);
+                  throw e;
+               } finally {
+                  conn.setAutoCommit(true);
+               }
+            }
+         });
+      }
+
+      // * Retries work, which commits or rolls back its own transactions, like execute *
+      <T> T retry(String operation, UnitOfWork<T> work) throws SQLException {
+         OperationStats counters = statsFor(operation);
+         counters.calls.incrementAndGet();
+         deposit();
+         for (int attempt = 1; ; ++attempt) {
+            try {
+               return work.run();
+            } catch (SQLException e) {
+               if (!isRetryable(e)) {
+                  throw e;
+               }
+               if (attempt >= maxAttempts || !withdraw()) {
+                  counters.gaveUp.incrementAndGet();
+                  throw e;
+               }
+               counters.retries.incrementAndGet();
+               backOff(attempt, e);
+            }
+         }
+      }
+
+      // * Runs work in a transaction that is always rolled back, to show what it would change *
+      <T> T preview(Retail db, UnitOfWork<T> work) throws SQLException {
+         Connection conn = db._connection;
+         conn.setAutoCommit(false);
+         try {
+            return work.run();
+         } finally {
+            rollback(conn);
+            conn.setAutoCommit(true);
+         }
+      }
+
+      // * The 7.3 driver leaves SQLState unset, so the server's message is checked as well *
+      static boolean isRetryable(SQLException e) {
+         for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+            String state = cause.getSQLState();
+            String message = String.valueOf(cause.getMessage());
+            if ("40001".equals(state) || "40P01".equals(state)
+                  || message.contains("could not serialize access") || message.contains("deadlock detected"))
+               return true;
+         }
+         return false;
+      }
+
+      // * Exponential in the attempt number, capped at maxDelayMillis *
+      long backOffCeiling(int attempt) {
+         return Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+      }
+
+      private void backOff(int attempt, SQLException cause) throws SQLException {
+         try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(backOffCeiling(attempt) + 1));
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw cause;
+         }
+      }
+
+      private synchronized void deposit() {
+         budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+      }
+
+      private synchronized boolean withdraw() {
+         if (budget < 1) {
+            return false;
+         }
+         budget -= 1;
+         return true;
+      }
+
+      private static void rollback(Connection conn) {
+         try {
+            conn.rollback();
+         } catch (SQLException ignored) {
+            // the connection is unusable; the caller sees the original error
+         }
+      }
+
+      private OperationStats statsFor(String operation) {
+         OperationStats counters = stats.get(operation);
+         if (counters == null) {
+            OperationStats fresh = new OperationStats();
+            counters = stats.putIfAbsent(operation, fresh);
+            if (counters == null)
+               counters = fresh;
+         }
+         return counters;
+      }
+
+      String stats() {
+         StringBuilder line = new StringBuilder("transactions:");
+         for (Map.Entry<String, OperationStats> entry : stats.entrySet()) {
+            OperationStats counters = entry.getValue();
+            line.append(String.format(" %s calls=%d retries=%d gaveUp=%d;", entry.getKey(),
+               counters.calls.get(), counters.retries.get(), counters.gaveUp.get()));
+         }
+         return line.toString();
+      }
+
+      void printStats() {
+         if (!stats.isEmpty())
+            System.out.println(stats());
+      }
+   }//end TransactionRetrier
+
+   /**
+    * Bloom filter over strings. mightContain is false only for values that
+    * were never added; true may be a false positive at roughly the rate the
+    * filter was sized for. Adds are lock-free, so the filter can be updated
+    * while other threads read it.
+    */
+   static class BloomFilter {
+      private final AtomicLongArray words;
+      private final int bitCount;
+      private final int hashCount;
+
+      BloomFilter(int expected, double falsePositiveRate) {
+         int n = Math.max(expected, 1);
+         double bitsNeeded = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+         bitCount = (int) Math.min(Math.max(Math.ceil(bitsNeeded), 64), Integer.MAX_VALUE - 64);
+         hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+         words = new AtomicLongArray((bitCount + 63) / 64);
+      }
+
+      void add(String value) {
+         long hash = hash64(value);
+         for (int i = 0; i < hashCount; ++i) {
+            int bit = bitFor(hash, i);
+            long mask = 1L << bit;
+            long word;
+            do {
+               word = words.get(bit >>> 6);
+            } while ((word & mask) == 0 && !words.compareAndSet(bit >>> 6, word, word | mask));
+         }
+      }
+
+      boolean mightContain(String value) {
+         long hash = hash64(value);
+         for (int i = 0; i < hashCount; ++i) {
+            int bit = bitFor(hash, i);
+            if ((words.get(bit >>> 6) & (1L << bit)) == 0)
+               return false;
+         }
+         return true;
+      }
+
+      // * i-th probe by double hashing the two halves of the 64-bit hash *
+      private int bitFor(long hash, int i) {
+         int combined = (int) hash + i * (int) (hash >>> 32);
+         return (combined & Integer.MAX_VALUE) % bitCount;
+      }
+
+      // * FNV-1a over the chars, finished with the MurmurHash3 mixer *
+      private static long hash64(String value) {
+         long hash = 0xcbf29ce484222325L;
+         for (int i = 0; i < value.length(); ++i) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+         }
+         hash ^= hash >>> 33;
+         hash *= 0xff51afd7ed558ccdL;
+         hash ^= hash >>> 33;
+         hash *= 0xc4ceb9fe1a85ec53L;
+         hash ^= hash >>> 33;
+         return hash;
+      }
+   }//end BloomFilter
+
+   /**
+    * One Bloom filter per store over the names of the products it carries.
+    * A store's filter is loaded from Product the first time the store is
+    * checked, and it grows with every product notification that names a row.
+    * Notifications without a payload (the 7.3 driver drops them) only mark
+    * the filters stale. A miss is only trusted when nothing changed since
+    * the filter was loaded. A stale filter that misses is reloaded if it is
+    * older than reloadMillis; otherwise the product is looked up in the
+    * database. So a product added by another process is never refused once
+    * its notification has arrived.
+    */
+   static class ProductFilter {
+      private static class StoreFilter {
+         final BloomFilter names;
+         final long loadedAt;
+
+         StoreFilter(BloomFilter names, long loadedAt) {
+            this.names = names;
+            this.loadedAt = loadedAt;
+         }
+      }
+
+      private final ConcurrentHashMap<String, StoreFilter> stores = new ConcurrentHashMap<String, StoreFilter>();
+      private final long reloadMillis;
+      private volatile long changedAt = 0;
+
+      ProductFilter(long reloadMillis) {
+         this.reloadMillis = reloadMillis;
+      }
+
+      // * false means the store definitely does not carry the product *
+      boolean mightCarry(Retail esql, String storeID, String productName) throws SQLException {
+         String store = storeID.trim();
+         String name = productName.trim();
+         StoreFilter filter = stores.get(store);
+         if (filter == null)
+            filter = load(esql, store);
+         if (filter.names.mightContain(name))
+            return true;
+         if (changedAt < filter.loadedAt)
+            return false;
+         if (System.currentTimeMillis() - filter.loadedAt >= reloadMillis)
+            return load(esql, store).names.mightContain(name);
+         // * changed since the load, but reloaded too recently: ask the database *
+         boolean carried = !esql.shardFor(store).executePreparedQueryAndReturnResult(
+            "SELECT 1 FROM product JOIN productcatalog USING (productid) WHERE storeid = ? AND productname = ?", Integer.parseInt(store), name).isEmpty();
+         if (carried)
+            filter.names.add(name);
+         return carried;
+      }
+
+      private StoreFilter load(Retail esql, String store) throws SQLException {
+         long loadedAt = System.currentTimeMillis();
+         List<List<String>> products = esql.shardFor(store).executePreparedQueryAndReturnResult(
+            "SELECT productname FROM product JOIN productcatalog USING (productid) WHERE storeid = ?", Integer.parseInt(store));
+         BloomFilter names = new BloomFilter(Math.max(2 * products.size(), 64), 0.01);
+         for (List<String> product : products)
+            names.add(product.get(0).trim());
+         StoreFilter filter = new StoreFilter(names, loadedAt);
+         stores.put(store, filter);
+         return filter;
+      }
+
+      // * Adds a product inserted by this process *
+      void remember(String storeID, String productName) {
+         StoreFilter filter = stores.get(storeID.trim());
+         if (filter != null)
+            filter.names.add(productName.trim());
+      }
+
+      // * Product row changed; key is storeID:productID, or null when unknown *
+      void changed(String key) {
+         int colon = key == null ? -1 : key.indexOf(':');
+         String name = colon < 0 ? null : catalog.cachedName(Integer.parseInt(key.substring(colon + 1)));
+         if (name == null)
+            changedAt = System.currentTimeMillis();
+         else
+            remember(key.substring(0, colon), name);
+      }
+   }//end ProductFilter
+
+   /**
+    * In-memory copy of the ProductCatalog table, mapping each product name to
+    * its integer productID and back. Everything is loaded from the main
+    * database on first use. A name or id it has not seen yet is looked up
+    * once in the database, which picks up products added by other processes.
+    */
+   static class ProductCatalog {
+      private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+      private final ConcurrentHashMap<Integer, String> names = new ConcurrentHashMap<Integer, String>();
+      private volatile boolean loaded = false;
+
+      synchronized void load(Retail esql) throws SQLException {
+         if (loaded)
+            return;
+         for (List<String> entry : esql.executePreparedQueryAndReturnResult("SELECT productid, productname FROM productcatalog"))
+            put(Integer.parseInt(entry.get(0)), entry.get(1));
+         loaded = true;
+      }
+
+      private void put(int productID, String productName) {
+         ids.put(productName.trim(), productID);
+         names.put(productID, productName.trim());
+      }
+
+      // * productID of the name, or null when no such product exists *
+      Integer idOf(Retail esql, String productName) throws SQLException {
+         if (!loaded)
+            load(esql);
+         String name = productName.trim();
+         Integer productID = ids.get(name);
+         if (productID == null) {
+            List<List<String>> entry = esql.executePreparedQueryAndReturnResult(
+               "SELECT productid FROM productcatalog WHERE productname = ?", name);
+            if (entry.isEmpty())
+               return null;
+            productID = Integer.parseInt(entry.get(0).get(0));
+            put(productID, name);
+         }
+         return productID;
+      }
+
+      // * every name loaded so far *
+      java.util.Collection<String> names() {
+         return names.values();
+      }
+
+      int size() {
+         return names.size();
+      }
+
+      // * name of an id this process has already seen, without a query *
+      String cachedName(int productID) {
+         return names.get(productID);
+      }
+
+      String nameOf(Retail esql, int productID) throws SQLException {
+         if (!loaded)
+            load(esql);
+         String name = names.get(productID);
+         if (name == null) {
+            List<List<String>> entry = esql.executePreparedQueryAndReturnResult(
+               "SELECT productname FROM productcatalog WHERE productid = ?", productID);
+            if (entry.isEmpty())
+               return String.valueOf(productID);
+            name = entry.get(0).get(0).trim();
+            put(productID, name);
+         }
+         return name;
+      }
+
+      /*
+       * Adds the names missing from db's catalog inside the caller's
+       * transaction and returns the productID of every name. Nothing is
+       * cached, since that transaction may still roll back; remember the
+       * entries once it commits.
+       **/
+      Map<String, Integer> register(Retail db, java.util.Collection<String> productNames) throws SQLException {
+         Map<String, Integer> entries = new LinkedHashMap<String, Integer>();
+         for (String productName : productNames) {
+            String name = productName.trim();
+            db.executePreparedUpdate(
+               "INSERT INTO productcatalog (productname) SELECT ? WHERE NOT EXISTS (SELECT 1 FROM productcatalog WHERE productname = ?)", name, name);
+            entries.put(name, Integer.parseInt(db.executePreparedQueryAndReturnResult(
+               "SELECT productid FROM productcatalog WHERE productname = ?", name).get(0).get(0)));
+         }
+         return entries;
+      }
+
+      // * Copies entries of the main catalog to a shard's, under the same productID, inside the caller's transaction *
+      static void copy(Retail shard, Map<String, Integer> entries) throws SQLException {
+         List<Object[]> rows = new ArrayList<Object[]>();
+         for (Map.Entry<String, Integer> entry : entries.entrySet())
+            rows.add(new Object[] {entry.getValue(), entry.getKey(), entry.getValue()});
+         shard.executePreparedBatch(
+            "INSERT INTO productcatalog (productid, productname) SELECT ?, ? WHERE NOT EXISTS (SELECT 1 FROM productcatalog WHERE productid = ?)", rows);
+      }
+
+      // * Caches entries registered by a transaction that committed *
+      void remember(Map<String, Integer> entries) {
+         for (Map.Entry<String, Integer> entry : entries.entrySet())
+            put(entry.getValue(), entry.getKey());
+      }
+   }//end ProductCatalog
+
+   /**
+    * In-memory name search over the product catalog: prefix matches while
+    * the user types, and "did you mean" suggestions after a typo. Names are
+    * kept lower-cased in a sorted array, so the names starting with a
+    * prefix are one binary search away. Fuzzy matches use a trigram index
+    * (the padded trigrams of pg_trgm, without needing the extension): each
+    * trigram lists the names containing it, and names are ranked by the
+    * share of trigrams they have in common with the input; names of about
+    * the input's length also count as similar when few edits apart. The
+    * index is an immutable snapshot, rebuilt when the catalog has grown.
+    */
+   static class ProductSearch {
+      private static final double MIN_SIMILARITY = 0.3;
+
+      private static class Index {
+         final String[] names;  // sorted by lower-cased name
+         final String[] keys;   // lower-cased names, same order
+         final Map<String, int[]> postings = new HashMap<String, int[]>();
+         final int[] trigramCounts;
+
+         Index(java.util.Collection<String> catalogNames) {
+            names = catalogNames.toArray(new String[0]);
+            java.util.Arrays.sort(names, new java.util.Comparator<String>() {
+               public int compare(String a, String b) {
+                  return a.toLowerCase().compareTo(b.toLowerCase());
+               }
+            });
+            keys = new String[names.length];
+            trigramCounts = new int[names.length];
+            Map<String, List<Integer>> lists = new HashMap<String, List<Integer>>();
+            for (int i = 0; i < names.length; ++i) {
+               keys[i] = names[i].toLowerCase();
+               java.util.Set<String> grams = trigrams(keys[i]);
+               trigramCounts[i] = grams.size();
+               for (String gram : grams) {
+                  if (!lists.containsKey(gram))
+                     lists.put(gram, new ArrayList<Integer>());
+                  lists.get(gram).add(i);
+               }
+            }
+            for (Map.Entry<String, List<Integer>> list : lists.entrySet()) {
+               int[] ids = new int[list.getValue().size()];
+               for (int i = 0; i < ids.length; ++i)
+                  ids[i] = list.getValue().get(i);
+               postings.put(list.getKey(), ids);
+            }
+         }
+      }
+
+      private volatile Index index = null;
+
+      // * Trigrams of the text padded with two blanks in front and one behind *
+      static java.util.Set<String> trigrams(String text) {
+         String padded = "  " + text + " ";
+         java.util.Set<String> grams = new java.util.HashSet<String>();
+         for (int i = 0; i + 3 <= padded.length(); ++i)
+            grams.add(padded.substring(i, i + 3));
+         return grams;
+      }
+
+      private Index current(Retail esql) throws SQLException {
+         if (!catalog.loaded)
+            catalog.load(esql);
+         Index snapshot = index;
+         if (snapshot == null || snapshot.names.length != catalog.size()) {
+            snapshot = new Index(catalog.names());
+            index = snapshot;
+         }
+         return snapshot;
+      }
+
+      /*
+       * Names starting with what was typed (alphabetical), followed by the
+       * names most similar to it.
+       * @return at most limit product names
+       **/
+      List<String> search(Retail esql, String typed, int limit) throws SQLException {
+         Index snapshot = current(esql);
+         String key = typed.trim().toLowerCase();
+         List<String> found = new ArrayList<String>();
+         if (key.isEmpty() || limit < 1) {
+            return found;
+         }
+         int first = java.util.Arrays.binarySearch(snapshot.keys, key);
+         for (int i = first < 0 ? -first - 1 : first; i < snapshot.keys.length && snapshot.keys[i].startsWith(key) && found.size() < limit; ++i)
+            found.add(snapshot.names[i]);
+         for (String name : similar(snapshot, key, limit)) {
+            if (found.size() == limit)
+               break;
+            if (!found.contains(name))
+               found.add(name);
+         }
+         return found;
+      }
+
+      // * Names sharing at least MIN_SIMILARITY of their trigrams with the key, most similar first *
+      private static List<String> similar(final Index snapshot, String key, int limit) {
+         java.util.Set<String> grams = trigrams(key);
+         int[] shared = new int[snapshot.names.length];
+         List<Integer> touched = new ArrayList<Integer>();
+         for (String gram : grams) {
+            int[] ids = snapshot.postings.get(gram);
+            if (ids == null)
+               continue;
+            for (int id : ids)
+               if (shared[id]++ == 0)
+                  touched.add(id);
+         }
+         final Map<Integer, Double> scores = new HashMap<Integer, Double>();
+         for (int id : touched) {
+            double similarity = shared[id] / (double) (grams.size() + snapshot.trigramCounts[id] - shared[id]);
+            // * short words have few trigrams, so one swapped letter is checked by edit distance *
+            String candidate = snapshot.keys[id];
+            if (similarity < MIN_SIMILARITY && Math.abs(candidate.length() - key.length()) <= 2)
+               similarity = Math.max(similarity, 1 - editDistance(key, candidate) / (double) Math.max(key.length(), candidate.length()));
+            if (similarity >= MIN_SIMILARITY)
+               scores.put(id, similarity);
+         }
+         List<Integer> ranked = new ArrayList<Integer>(scores.keySet());
+         Collections.sort(ranked, new java.util.Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+               int closer = Double.compare(scores.get(b), scores.get(a));
+               return closer != 0 ? closer : Integer.compare(a, b);
+            }
+         });
+         List<String> names = new ArrayList<String>();
+         for (int i = 0; i < ranked.size() && i < limit; ++i)
+            names.add(snapshot.names[ranked.get(i)]);
+         return names;
+      }
+
+      // * Edits (insert, delete, replace, swap of neighbours) turning a into b *
+      static int editDistance(String a, String b) {
+         int[][] d = new int[a.length() + 1][b.length() + 1];
+         for (int i = 0; i <= a.length(); ++i)
+            d[i][0] = i;
+         for (int j = 0; j <= b.length(); ++j)
+            d[0][j] = j;
+         for (int i = 1; i <= a.length(); ++i) {
+            for (int j = 1; j <= b.length(); ++j) {
+               int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+               d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+               if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1))
+                  d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+            }
+         }
+         return d[a.length()][b.length()];
+      }
+   }//end ProductSearch
+
+   /**
+    * Precomputed neighbour lists for order splitting: for every store, the
+    * other stores within radius, nearest first, at most maxNeighbors. The
+    * lists are built from Store in one pass that buckets the stores into a
+    * grid of radius-sized cells, so each store is only compared with the
+    * stores of the 3x3 cells around it. Routing an order is then a lookup
+    * instead of a scan of Store. An unknown store triggers a rebuild, at
+    * most once per REBUILD_MILLIS.
+    */
+   static class StoreNeighbors {
+      private static final long REBUILD_MILLIS = 60000;
+
+      private final double radius;
+      private final int maxNeighbors;
+      private volatile Map<Integer, int[]> neighbors = null;
+      private volatile long builtAt = 0;
+
+      StoreNeighbors(double radius, int maxNeighbors) {
+         this.radius = radius;
+         this.maxNeighbors = Math.max(0, maxNeighbors);
+      }
+
+      // * The neighbours of a store, nearest first; empty for an unknown store *
+      int[] of(Retail esql, int store) throws SQLException {
+         Map<Integer, int[]> lists = neighbors;
+         if (lists == null || (!lists.containsKey(store) && System.currentTimeMillis() - builtAt > REBUILD_MILLIS)) {
+            lists = build(esql);
+         }
+         int[] list = lists.get(store);
+         return list == null ? new int[0] : list;
+      }
+
+      private synchronized Map<Integer, int[]> build(Retail esql) throws SQLException {
+         List<List<String>> stores = esql.executePreparedQueryAndReturnResult("SELECT storeid, latitude, longitude FROM store");
+         int count = stores.size();
+         final int[] ids = new int[count];
+         double[] latitudes = new double[count];
+         double[] longitudes = new double[count];
+         Map<Long, List<Integer>> grid = new HashMap<Long, List<Integer>>();
+         for (int i = 0; i < count; ++i) {
+            ids[i] = Integer.parseInt(stores.get(i).get(0).trim());
+            latitudes[i] = Double.parseDouble(stores.get(i).get(1));
+            longitudes[i] = Double.parseDouble(stores.get(i).get(2));
+            long cell = cell(cellOf(latitudes[i]), cellOf(longitudes[i]));
+            if (!grid.containsKey(cell))
+               grid.put(cell, new ArrayList<Integer>());
+            grid.get(cell).add(i);
+         }
+
+         Map<Integer, int[]> lists = new HashMap<Integer, int[]>(count * 2);
+         for (int i = 0; i < count; ++i) {
+            long row = cellOf(latitudes[i]);
+            long column = cellOf(longitudes[i]);
+            final Map<Integer, Double> near = new HashMap<Integer, Double>();
+            for (long r = row - 1; r <= row + 1; ++r) {
+               for (long c = column - 1; c <= column + 1; ++c) {
+                  List<Integer> bucket = grid.get(cell(r, c));
+                  if (bucket == null)
+                     continue;
+                  for (int j : bucket) {
+                     double distance = calculateDistance(latitudes[i], longitudes[i], latitudes[j], longitudes[j]);
+                     if (j != i && distance < radius)
+                        near.put(j, distance);
+                  }
+               }
+            }
+            List<Integer> sorted = new ArrayList<Integer>(near.keySet());
+            Collections.sort(sorted, new java.util.Comparator<Integer>() {
+               public int compare(Integer a, Integer b) {
+                  int nearer = Double.compare(near.get(a), near.get(b));
+                  return nearer != 0 ? nearer : Integer.compare(ids[a], ids[b]);
+               }
+            });
+            int[] list = new int[Math.min(sorted.size(), maxNeighbors)];
+            for (int k = 0; k < list.length; ++k)
+               list[k] = ids[sorted.get(k)];
+            lists.put(ids[i], list);
+         }
+         neighbors = lists;
+         builtAt = System.currentTimeMillis();
+         return lists;
+      }
+
+      private long cellOf(double degrees) {
+         return (long) Math.floor(degrees / radius);
+      }
+
+      private static long cell(long row, long column) {
+         return (row << 32) ^ (column & 0xffffffffL);
+      }
+   }//end StoreNeighbors
+
+   /**
+    * Store x warehouse distance matrix for supply routing. Distances are
+    * kept in one float array (row = store, column = warehouse), and every
+    * row also has its columns ranked nearest first, so the nearest
+    * warehouses of a store are read straight out of the arrays. A changed
+    * store recomputes its row, a new store is appended as a row, and a
+    * changed warehouse recomputes its column and re-ranks the rows. A change
+    * whose key is unknown (the 7.3 driver drops NOTIFY payloads) re-reads
+    * the ids and coordinates of that table and diffs them against the
+    * arrays, so only the rows or columns that moved are recomputed. Only a
+    * new or removed warehouse rebuilds the matrix. Changes are queued by the
+    * invalidation handler and applied on the next lookup, to a copy of the
+    * matrix that is then published through a volatile field; lookups read
+    * the published matrix without a lock and never wait for a refresh
+    * running in another thread.
+    */
+   static class WarehouseRouter {
+      // * One version of the matrix; never changed once it is published in matrix *
+      private static final class Matrix {
+         int[] storeIDs = new int[0];
+         double[] storeLatitudes = new double[0];
+         double[] storeLongitudes = new double[0];
+         Map<Integer, Integer> storeRows = new HashMap<Integer, Integer>();
+         int rows = 0;
+
+         int[] warehouseIDs = new int[0];
+         double[] warehouseLatitudes = new double[0];
+         double[] warehouseLongitudes = new double[0];
+         Map<Integer, Integer> warehouseColumns = new HashMap<Integer, Integer>();
+         int columns = 0;
+
+         float[] distances = new float[0];  // rows x columns
+         int[] ranked = new int[0];         // rows x columns, column indexes nearest first
+
+         // * A private copy to apply changes to *
+         Matrix copy() {
+            Matrix copy = new Matrix();
+            copy.storeIDs = storeIDs.clone();
+            copy.storeLatitudes = storeLatitudes.clone();
+            copy.storeLongitudes = storeLongitudes.clone();
+            copy.storeRows = new HashMap<Integer, Integer>(storeRows);
+            copy.rows = rows;
+            copy.warehouseIDs = warehouseIDs.clone();
+            copy.warehouseLatitudes = warehouseLatitudes.clone();
+            copy.warehouseLongitudes = warehouseLongitudes.clone();
+            copy.warehouseColumns = new HashMap<Integer, Integer>(warehouseColumns);
+            copy.columns = columns;
+            copy.distances = distances.clone();
+            copy.ranked = ranked.clone();
+            return copy;
+         }
+
+         List<double[]> nearest(int storeID, int count) {
+            List<double[]> found = new ArrayList<double[]>();
+            Integer row = storeRows.get(storeID);
+            if (row == null) {
+               return found;
+            }
+            for (int k = 0; k < Math.min(count, columns); ++k) {
+               int column = ranked[row * columns + k];
+               found.add(new double[] {warehouseIDs[column], distances[row * columns + column]});
+            }
+            return found;
+         }
+
+         void allocate(int capacity) {
+            storeIDs = java.util.Arrays.copyOf(storeIDs, capacity);
+            storeLatitudes = java.util.Arrays.copyOf(storeLatitudes, capacity);
+            storeLongitudes = java.util.Arrays.copyOf(storeLongitudes, capacity);
+            distances = java.util.Arrays.copyOf(distances, capacity * columns);
+            ranked = java.util.Arrays.copyOf(ranked, capacity * columns);
+         }
+
+         int addRow(int storeID) {
+            if (rows == storeIDs.length) {
+               allocate(Math.max(16, rows * 2));
+            }
+            storeIDs[rows] = storeID;
+            storeRows.put(storeID, rows);
+            return rows++;
+         }
+
+         void putStore(int row, double latitude, double longitude) {
+            storeLatitudes[row] = latitude;
+            storeLongitudes[row] = longitude;
+            for (int column = 0; column < columns; ++column)
+               distances[row * columns + column] = (float) calculateDistance(latitude, longitude, warehouseLatitudes[column], warehouseLongitudes[column]);
+            rank(row);
+         }
+
+         void putWarehouse(int column, double latitude, double longitude) {
+            warehouseLatitudes[column] = latitude;
+            warehouseLongitudes[column] = longitude;
+            for (int row = 0; row < rows; ++row) {
+               distances[row * columns + column] = (float) calculateDistance(storeLatitudes[row], storeLongitudes[row], latitude, longitude);
+               rank(row);
+            }
+         }
+
+         // * Sorts a row's columns by distance; non-negative floats order like their bit patterns *
+         void rank(int row) {
+            long[] keys = new long[columns];
+            for (int column = 0; column < columns; ++column)
+               keys[column] = ((long) Float.floatToIntBits(distances[row * columns + column]) << 32) | column;
+            java.util.Arrays.sort(keys);
+            for (int k = 0; k < columns; ++k)
+               ranked[row * columns + k] = (int) keys[k];
+         }
+      }
+
+      private volatile Matrix matrix = null;
+      // * one refresh at a time; lookups never wait for it once a matrix exists *
+      private final java.util.concurrent.locks.ReentrantLock refreshing = new java.util.concurrent.locks.ReentrantLock();
+
+      // * a change of unknown key: the table is diffed on the next lookup *
+      private volatile boolean storesDiff = false;
+      private volatile boolean warehousesDiff = false;
+      private final java.util.Set<Integer> changedStores = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+      private final java.util.Set<Integer> changedWarehouses = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+      void storeChanged(String key) {
+         if (key == null)
+            storesDiff = true;
+         else
+            changedStores.add(Integer.parseInt(key.trim()));
+      }
+
+      void warehouseChanged(String key) {
+         if (key == null)
+            warehousesDiff = true;
+         else
+            changedWarehouses.add(Integer.parseInt(key.trim()));
+      }
+
+      /*
+       * The count nearest warehouses of a store, nearest first.
+       * @return {warehouseID, distance} pairs; none for an unknown store
+       **/
+      List<double[]> nearest(Retail esql, int storeID, int count) throws SQLException {
+         return current(esql).nearest(storeID, count);
+      }
+
+      // * true when the warehouse exists; one missing from the matrix is looked up in the database *
+      boolean knows(Retail esql, int warehouseID) throws SQLException {
+         if (current(esql).warehouseColumns.containsKey(warehouseID)) {
+            return true;
+         }
+         if (esql.executePreparedQueryAndReturnResult("SELECT 1 FROM warehouse WHERE warehouseid = ?", warehouseID).isEmpty()) {
+            return false;
+         }
+         // * added by another process and not announced yet; the next lookup rebuilds with it *
+         changedWarehouses.add(warehouseID);
+         return true;
+      }
+
+      private Matrix current(Retail esql) throws SQLException {
+         Matrix current = matrix;
+         if (current == null || changesQueued()) {
+            current = refresh(esql, current == null);
+         }
+         return current;
+      }
+
+      private boolean changesQueued() {
+         return storesDiff || warehousesDiff || !changedStores.isEmpty() || !changedWarehouses.isEmpty();
+      }
+
+      /*
+       * Applies the queued changes to a copy of the matrix and publishes it.
+       * While another thread is doing so, the current matrix is returned
+       * instead, unless there is none yet (wait).
+       **/
+      private Matrix refresh(Retail esql, boolean wait) throws SQLException {
+         if (wait) {
+            refreshing.lock();
+         } else if (!refreshing.tryLock()) {
+            return matrix;
+         }
+         try {
+            Matrix current = matrix;
+            if (current != null && !changesQueued()) {
+               return current;
+            }
+            Matrix next = current == null ? rebuild(esql) : update(esql, current.copy());
+            matrix = next;
+            return next;
+         } finally {
+            refreshing.unlock();
+         }
+      }
+
+      private Matrix update(Retail esql, Matrix next) throws SQLException {
+         if (warehousesDiff) {
+            warehousesDiff = false;
+            List<List<String>> warehouses = esql.executePreparedQueryAndReturnResult("SELECT warehouseid, latitude, longitude FROM warehouse");
+            boolean sameWarehouses = warehouses.size() == next.columns;
+            for (List<String> warehouse : warehouses)
+               sameWarehouses = sameWarehouses && next.warehouseColumns.containsKey(Integer.parseInt(warehouse.get(0).trim()));
+            if (!sameWarehouses) {
+               return rebuild(esql);
+            }
+            for (List<String> warehouse : warehouses) {
+               int column = next.warehouseColumns.get(Integer.parseInt(warehouse.get(0).trim()));
+               double latitude = Double.parseDouble(warehouse.get(1));
+               double longitude = Double.parseDouble(warehouse.get(2));
+               if (latitude != next.warehouseLatitudes[column] || longitude != next.warehouseLongitudes[column])
+                  next.putWarehouse(column, latitude, longitude);
+            }
+         }
+         for (Iterator<Integer> it = changedWarehouses.iterator(); it.hasNext(); ) {
+            int warehouseID = it.next();
+            it.remove();
+            Integer column = next.warehouseColumns.get(warehouseID);
+            List<List<String>> warehouse = esql.executePreparedQueryAndReturnResult(
+               "SELECT latitude, longitude FROM warehouse WHERE warehouseid = ?", warehouseID);
+            if (column == null || warehouse.isEmpty()) {
+               return rebuild(esql);
+            }
+            next.putWarehouse(column, Double.parseDouble(warehouse.get(0).get(0)), Double.parseDouble(warehouse.get(0).get(1)));
+         }
+         if (storesDiff) {
+            storesDiff = false;
+            // * removed stores keep their rows, as below *
+            for (List<String> store : esql.executePreparedQueryAndReturnResult("SELECT storeid, latitude, longitude FROM store")) {
+               Integer row = next.storeRows.get(Integer.parseInt(store.get(0).trim()));
+               double latitude = Double.parseDouble(store.get(1));
+               double longitude = Double.parseDouble(store.get(2));
+               if (row == null)
+                  next.putStore(next.addRow(Integer.parseInt(store.get(0).trim())), latitude, longitude);
+               else if (latitude != next.storeLatitudes[row] || longitude != next.storeLongitudes[row])
+                  next.putStore(row, latitude, longitude);
+            }
+         }
+         for (Iterator<Integer> it = changedStores.iterator(); it.hasNext(); ) {
+            int storeID = it.next();
+            it.remove();
+            List<List<String>> store = esql.executePreparedQueryAndReturnResult(
+               "SELECT latitude, longitude FROM store WHERE storeid = ?", storeID);
+            Integer row = next.storeRows.get(storeID);
+            if (store.isEmpty()) {
+               // * a removed store keeps its row; nothing routes for it any more *
+               continue;
+            }
+            next.putStore(row == null ? next.addRow(storeID) : row, Double.parseDouble(store.get(0).get(0)), Double.parseDouble(store.get(0).get(1)));
+         }
+         return next;
       }
 
-   }
-   // *----* 
-
-   // *----*
-   // * (Jason) manager *
-   public static void viewOrders(Retail esql) {
-      try{
-         String query1 = "SELECT * FROM Users WHERE '" + retail_user_id + "' = userid";
-         List<List<String>> userresult = esql.executeQueryAndReturnResult(query1);
-         String userType = userresult.get(0).get(5).replaceAll("\\s+", "");
-         if (!userType.equals("manager")) { // Can't use == since that checks if they're same object (reference equality) vs value equality
-            System.out.println("ERR: not manager");
-            return;
+      private Matrix rebuild(Retail esql) throws SQLException {
+         storesDiff = false;
+         warehousesDiff = false;
+         changedStores.clear();
+         changedWarehouses.clear();
+         Matrix next = new Matrix();
+         List<List<String>> warehouses = esql.executePreparedQueryAndReturnResult("SELECT warehouseid, latitude, longitude FROM warehouse");
+         next.columns = warehouses.size();
+         next.warehouseIDs = new int[next.columns];
+         next.warehouseLatitudes = new double[next.columns];
+         next.warehouseLongitudes = new double[next.columns];
+         for (int column = 0; column < next.columns; ++column) {
+            List<String> warehouse = warehouses.get(column);
+            next.warehouseIDs[column] = Integer.parseInt(warehouse.get(0).trim());
+            next.warehouseLatitudes[column] = Double.parseDouble(warehouse.get(1));
+            next.warehouseLongitudes[column] = Double.parseDouble(warehouse.get(2));
+            next.warehouseColumns.put(next.warehouseIDs[column], column);
          }
-         String query2 = "SELECT * FROM Orders WHERE storeID in (SELECT storeID FROM Store WHERE " + userresult.get(0).get(0) + " = managerID)";
-         int topresult = esql.executeQueryAndPrintResult(query2);
-      }catch(Exception e){
-         System.err.println (e.getMessage());
-      }
-   }
-   // *----*
-   // * Regular *
 
-   // * Jason *
-   public static void viewStores(Retail esql) {
-      try{
-         String query1 = "SELECT latitude, longitude FROM Users WHERE '" + retail_user_id + "' = userid";
-         List<List<String>> userresult = esql.executeQueryAndReturnResult(query1);
-         double userlat = Double.parseDouble(userresult.get(0).get(0));
-         double userlong = Double.parseDouble(userresult.get(0).get(1));
+         List<List<String>> stores = esql.executePreparedQueryAndReturnResult("SELECT storeid, latitude, longitude FROM store");
+         next.allocate(Math.max(16, stores.size()));
+         for (List<String> store : stores)
+            next.putStore(next.addRow(Integer.parseInt(store.get(0).trim())), Double.parseDouble(store.get(1)), Double.parseDouble(store.get(2)));
+         return next;
+      }
+   }//end WarehouseRouter
 
-         String query2 = "SELECT * FROM Store";
-         List<List<String>> storeresult = esql.executeQueryAndReturnResult(query2);
+   /**
+    * Background replenishment. Every periodMillis it reads, per shard, the
+    * next batchSize Product rows below their reorder point (ReorderPoint,
+    * or defaultPoint) through units_Product_index, continuing after the
+    * last row of the previous pass and starting over once a shard is done.
+    * Units held in escrow count as in stock; the index only narrows the scan
+    * to rows whose own count is low. The rows found are grouped by store
+    * and nearest warehouse (warehouseRouter) and restocked in one
+    * transaction per batch: one
+    * batched UPDATE adds the reorder quantity to each row still below its
+    * point, and batched inserts write the ProductSupplyRequests and
+    * ProductUpdates rows of the restocked ones, on behalf of the store's
+    * manager. Scan time, shortfalls and requests are counted for stats().
+    */
+   static class Replenisher implements Runnable {
+      private final long periodMillis;
+      private final int batchSize;
+      private final int defaultPoint;
+      private final int defaultQuantity;
+      private final AtomicBoolean stopped = new AtomicBoolean(false);
+      private volatile Retail esql = null;
+      private volatile Thread thread = null;
+      // * per shard: {storeID, productID} of the last row scanned *
+      private final Map<Integer, int[]> cursors = new HashMap<Integer, int[]>();
+
+      // * metrics *
+      private final AtomicLong passes = new AtomicLong();
+      private final AtomicLong totalScanNanos = new AtomicLong();
+      private final AtomicLong maxScanNanos = new AtomicLong();
+      private final AtomicLong shortfalls = new AtomicLong();
+      private final AtomicLong requests = new AtomicLong();
+      private final AtomicLong failures = new AtomicLong();
+
+      Replenisher(long periodMillis, int batchSize, int defaultPoint, int defaultQuantity) {
+         this.periodMillis = periodMillis;
+         this.batchSize = Math.max(1, batchSize);
+         this.defaultPoint = defaultPoint;
+         this.defaultQuantity = Math.max(1, defaultQuantity);
+      }
 
-         System.out.println("storeid  name                  latitude  longitude  managerid  dateestablished");
-         for (List<String> i : storeresult)
-            if (calculateDistance(userlat, userlong, Double.parseDouble(i.get(2)), Double.parseDouble(i.get(3))) < 30)
-               System.out.println(i);
-               // System.out.printf("%s %s %s %s %s %s \n", i.get(0), i.get(1), i.get(2), i.get(3), i.get(4), i.get(5));      
-      }catch(Exception e){
-         System.err.println (e.getMessage());
+      boolean enabled() {
+         return periodMillis > 0;
       }
-   }
-   // * Jason *
-   public static void viewProducts(Retail esql) {
-      try{
-         String query = "SELECT * FROM Product WHERE storeID = ";
-         System.out.print("\tEnter store ID (must be a number): ");
-         String input = in.readLine();
-         query += input;
-         int result = esql.executeQueryAndPrintResult(query);
-      }catch(Exception e){
-         System.err.println (e.getMessage());
+
+      void start(Retail esql) {
+         this.esql = esql;
+         thread = new Thread(this, "replenisher");
+         thread.setDaemon(true);
+         thread.start();
       }
-   }
 
-   // * Kobe *
-   public static void placeOrder(Retail esql) {
-      try {
-         // keep track of userid when logged in
-         String userID = retail_user_id;
-         String query = "";
-         List<List<String>> latList;
-         List<List<String>> longList;
-
-         /*
-         query = "SELECT latitude from users where userid = ";
-         query += "'" + userID + "';";
-         //double latUser = esql.executeQuery(query);
-         //double latUser = esql.executeQueryAndPrintResult(query);
-         List<List<String>> latList = esql.executeQueryAndReturnResult(query);
-         String latUserS = latList.get(0).get(0);
-         double latUser = Double.parseDouble(latUserS);
-
-         System.out.println("Answer: " + latUser);
-         //System.out.println("Type: " + latUser.getClass().getSimpleName());
-
-         System.out.println("Outside: " + latList.get(0));
-         */
+      public void run() {
+         while (!Thread.currentThread().isInterrupted()) {
+            try {
+               Thread.sleep(periodMillis);
+            } catch (InterruptedException e) {
+               break;
+            }
+            try {
+               runPass();
+            } catch (SQLException e) {
+               failures.incrementAndGet();
+               System.err.println("Replenishment pass failed: " + e.getMessage());
+            }
+         }
+      }
 
-         System.out.println("Please enter storeID: ");
-         String storeID = in.readLine();
-         //String storeID = "2";
-         System.out.println("Please enter productName: ");
-         String productName = in.readLine();
-         //String productName = "7up";
-         System.out.println("Please enter numberofUnits: ");
-         String numberofUnits = in.readLine();
-         //String numberofUnits = "10";
+      // * One batch per shard *
+      void runPass() throws SQLException {
+         int shards = Math.max(1, esql.shards().length);
+         for (int shardIndex = 0; shardIndex < shards; ++shardIndex) {
+            long started = System.nanoTime();
+            Retail shard = esql.shardAt(shardIndex);
+            int[] cursor = cursors.containsKey(shardIndex) ? cursors.get(shardIndex) : new int[] {-1, -1};
+            List<List<String>> low = shard.executePreparedQueryAndReturnResult(
+               "SELECT p.storeid, p.productid, COALESCE(r.reorderpoint, ?), COALESCE(r.reorderquantity, ?) "
+               + "FROM product p LEFT JOIN reorderpoint r USING (productid) "
+               + "WHERE p.numberofunits < (SELECT GREATEST(?, COALESCE(max(reorderpoint), 0)) FROM reorderpoint) "
+               + "AND p.numberofunits + " + EscrowInventory.heldBy("p") + " < COALESCE(r.reorderpoint, ?) AND (p.storeid, p.productid) > (?, ?) "
+               + "ORDER BY p.storeid, p.productid LIMIT ?",
+               defaultPoint, defaultQuantity, defaultPoint, defaultPoint, cursor[0], cursor[1], batchSize);
+            long scanNanos = System.nanoTime() - started;
+            passes.incrementAndGet();
+            totalScanNanos.addAndGet(scanNanos);
+            if (scanNanos > maxScanNanos.get())
+               maxScanNanos.set(scanNanos);
+            if (low.size() < batchSize) {
+               cursors.remove(shardIndex);
+            } else {
+               List<String> last = low.get(low.size() - 1);
+               cursors.put(shardIndex, new int[] {Integer.parseInt(last.get(0).trim()), Integer.parseInt(last.get(1).trim())});
+            }
+            if (!low.isEmpty()) {
+               shortfalls.addAndGet(low.size());
+               restock(shard, low);
+            }
+         }
+      }
 
-         query = "SELECT * from product where storeid = '" + storeID + "' and productname = '" + productName + "';";
-         int rowCount = esql.executeQuery(query);
-         if (rowCount < 1) {
-            System.out.println("ERR: The product does not exist at this store or the store does not exist. We apologize for the inconvenience.");
+      // * Restocks {storeid, productid, reorderpoint, reorderquantity} rows of one shard in one transaction *
+      private void restock(final Retail shard, List<List<String>> low) throws SQLException {
+         java.util.Set<Object> stores = new java.util.LinkedHashSet<Object>();
+         for (List<String> row : low)
+            stores.add(Integer.valueOf(row.get(0).trim()));
+         StringBuilder placeholders = new StringBuilder();
+         for (int i = 0; i < stores.size(); ++i)
+            placeholders.append(i == 0 ? "?" : ", ?");
+         Map<Integer, Integer> managers = new HashMap<Integer, Integer>();
+         for (List<String> store : esql.executePreparedQueryAndReturnResult(
+               "SELECT storeid, managerid FROM store WHERE storeid IN (" + placeholders + ")", stores.toArray()))
+            managers.put(Integer.valueOf(store.get(0).trim()), Integer.valueOf(store.get(1).trim()));
+
+         // * {warehouseID, storeID, productID, point, quantity, managerID}, grouped by warehouse and store *
+         final List<int[]> lines = new ArrayList<int[]>();
+         for (List<String> row : low) {
+            int store = Integer.parseInt(row.get(0).trim());
+            List<double[]> nearest = warehouseRouter.nearest(esql, store, 1);
+            if (nearest.isEmpty() || !managers.containsKey(store))
+               continue;
+            lines.add(new int[] {(int) nearest.get(0)[0], store, Integer.parseInt(row.get(1).trim()),
+               Integer.parseInt(row.get(2).trim()), Integer.parseInt(row.get(3).trim()), managers.get(store)});
+         }
+         Collections.sort(lines, new java.util.Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+               return a[0] != b[0] ? Integer.compare(a[0], b[0]) : a[1] != b[1] ? Integer.compare(a[1], b[1]) : Integer.compare(a[2], b[2]);
+            }
+         });
+         if (lines.isEmpty()) {
             return;
          }
 
-         query = "SELECT latitude from users where userid = ";
-         query += "'" + userID + "';";
-         latList = esql.executeQueryAndReturnResult(query);
-         String latUserS = latList.get(0).get(0);
-         double latUser = Double.parseDouble(latUserS);
-         
-         query = "SELECT longitude from users where userid = ";
-         query += "'" + userID + "';";
-         longList = esql.executeQueryAndReturnResult(query);
-         String longUserS = longList.get(0).get(0);
-         double longUser = Double.parseDouble(longUserS);
-
-         query = "SELECT latitude from store where storeid = ";
-         query += "'" + storeID + "';";
-         latList = esql.executeQueryAndReturnResult(query);
-         String latStoreS = latList.get(0).get(0);
-         double latStore = Double.parseDouble(latStoreS);
-
-         query = "SELECT longitude from store where storeid = ";
-         query += "'" + storeID + "';";
-         longList = esql.executeQueryAndReturnResult(query);
-         String longStoreS = longList.get(0).get(0);
-         double longStore = Double.parseDouble(longStoreS);
-
-         //System.out.println("User: " + latUser + ", " + longUser);
-         //System.out.println("Store: " + latStore + ", " + longStore);
-
-         double miles = calculateDistance(latUser, longUser, latStore, longStore);
-         //System.out.println("Distance: " + miles);
-         miles = 0;
-         if (miles > 30) {
-            System.out.println("ERR: Store out of range (> 30)");
-            return;
+         final Timestamp now = new Timestamp(System.currentTimeMillis());
+         int placed = retries.execute("replenish", shard, new UnitOfWork<Integer>() {
+            public Integer run() throws SQLException {
+               List<Object[]> increments = new ArrayList<Object[]>();
+               for (int[] line : lines)
+                  increments.add(new Object[] {line[4], line[1], line[2], line[3]});
+               int[] restocked = shard.executePreparedBatch(
+                  "UPDATE product SET numberofunits = numberofunits + ? WHERE storeid = ? AND productid = ? "
+                  + "AND numberofunits + " + EscrowInventory.HELD + " < ?", increments);
+               List<Object[]> supply = new ArrayList<Object[]>();
+               List<Object[]> audit = new ArrayList<Object[]>();
+               for (int i = 0; i < restocked.length; ++i) {
+                  if (restocked[i] < 1)
+                     continue;
+                  int[] line = lines.get(i);
+                  supply.add(new Object[] {line[5], line[0], line[1], line[2], line[4]});
+                  audit.add(new Object[] {line[5], line[1], line[2], now});
+               }
+               if (!supply.isEmpty()) {
+                  shard.executePreparedBatch(
+                     "INSERT INTO productsupplyrequests (managerid, warehouseid, storeid, productid, unitsrequested) VALUES (?, ?, ?, ?, ?)", supply);
+                  shard.executePreparedBatch(AuditWriter.INSERT_UPDATE, audit);
+               }
+               return supply.size();
+            }
+         });
+         requests.addAndGet(placed);
+         if (placed > 0) {
+            invalidations.publish("product", null);
          }
-         
-         //orders is table of orders going through
-         //product has current inventory of products
-         //**1. pull numberof units from product (productname, storeid) and check if its enough
-         //**2. insert into order (...)
-         //**3. update product set numberofunits='61' where productname='7up' and storeid='2';
-         //**4. select priceperunit from product where ....
-         //**5. select name from store where storeid = ...
-         //**5. print(That will cost you priceperunit * numberofUnits dollars for numberofUnits productname at storename (storeid))
-         //0000
-         //**Check if store has product
-
-
-         /*
-         query = "delete from orders where ordernumber=502;";
-         esql.executeUpdate(query);
-         query = "INSERT INTO orders (ordernumber, customerid, storeid, productname, unitsordered, ordertime) VALUES ('502', '22', '3', 'Brisk', '22', '2017-09-10 23:23:11');";
-         esql.executeUpdate(query);
-         */
-
-
-         // * Creates date format for sql insert *
-         DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-         Date date = new Date();
-         String currDate = dateFormat.format(date);
-
-         // * Grab latest ordernumber from orders *
-         List<List<String>> currOrders;
-         query = "select ordernumber from orders order by ordernumber desc limit 5;";
-         currOrders = esql.executeQueryAndReturnResult(query);
-         String newestOrder = currOrders.get(0).get(0);
-         int newOrder = Integer.parseInt(newestOrder);
-         newOrder += 1;
-         newestOrder = String.valueOf(newOrder);
-
-         // * Grab current numberofunits from product where storeid and productname *
-         List<List<String>> currProduct;
-         query = "select numberofunits, priceperunit from product where productname = '" + productName + "' and storeid = '" + storeID + "';";
-         currProduct = esql.executeQueryAndReturnResult(query);
-         String unitInventory = currProduct.get(0).get(0);
-         
-         // * Check if current product inventory has enough for user's number of units *
-         if (Integer.parseInt(unitInventory) < Integer.parseInt(numberofUnits)) {
-            System.out.println("ERR: You have requested more than what we have at this store, " + unitInventory + " < " + numberofUnits);
+      }
+
+      void stop() {
+         Retail db = esql;
+         if (db == null || !stopped.compareAndSet(false, true)) {
             return;
          }
-         
+         thread.interrupt();
+         try {
+            thread.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         db.cleanup();
+      }
+
+      String stats() {
+         long count = passes.get();
+         return String.format("replenisher: scans=%d avgScan=%.2fms maxScan=%.2fms shortfalls=%d requests=%d failures=%d",
+            count, count == 0 ? 0.0 : totalScanNanos.get() / 1e6 / count, maxScanNanos.get() / 1e6,
+            shortfalls.get(), requests.get(), failures.get());
+      }
+
+      void printStats() {
+         if (esql != null)
+            System.out.println(stats());
+      }
+   }//end Replenisher
+
+   /**
+    * Single-flight coalescing for identical reads. The first caller for a
+    * key runs the query; callers arriving while it is in flight block on the
+    * same FutureTask and get its result instead of issuing their own query.
+    * With a positive ttl the finished result is also served for ttl ms.
+    *
+    * Every entry remembers the tables its query reads (tablesOf), and every
+    * table has a generation that invalidate() bumps. A result is only cached
+    * if none of its tables changed while it was being read, so a query that
+    * started before a write can not put the old rows back.
+    */
+   static class QueryCoalescer {
+      private static final int MAX_CACHED = 1024;
+      private static final String ALIAS = "(?:\\s+(?:as\\s+)?(?!(?:join|inner|left|right|full|cross|natural|on|using|where|group|order|limit)\\b)\\w+)?";
+      private static final java.util.regex.Pattern TABLE_LIST = java.util.regex.Pattern.compile(
+         "\\b(?:from|join)\\s+(\\w+" + ALIAS + "(?:\\s*,\\s*\\w+" + ALIAS + ")*)", java.util.regex.Pattern.CASE_INSENSITIVE);
+      private static final ConcurrentHashMap<String, java.util.Set<String>> tablesByQuery = new ConcurrentHashMap<String, java.util.Set<String>>();
+
+      private final ConcurrentHashMap<String, Load> inFlight = new ConcurrentHashMap<String, Load>();
+      private final ConcurrentHashMap<String, CachedResult> cached = new ConcurrentHashMap<String, CachedResult>();
+      private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+      private final long ttlMillis;
+
+      QueryCoalescer(long ttlMillis) {
+         this.ttlMillis = ttlMillis;
+      }
 
-         // * Insert into Orders the user's order information *
-         //query = String.format("INSERT INTO orders (ordernumber, customerid, storeid, productname, unitsordered, ordertime) VALUES ('%s','%s', %s, %s,'%s', '%s');", newestOrder, userID, storeID, productName, numberofUnits, currDate);
-         query = "INSERT INTO orders (ordernumber, customerid, storeid, productname, unitsordered, ordertime) VALUES ('" + newestOrder + "', '" + userID + "', '" + storeID + "', '" + productName + "', '" + numberofUnits + "', '" + currDate + "');";
-         esql.executeUpdate(query);
+      private static class Load extends FutureTask<List<List<String>>> {
+         final java.util.Set<String> tables;
 
-         // * Update product inventory to reflect new order *
-         int totalUnits = Integer.parseInt(unitInventory) - Integer.parseInt(numberofUnits);
-         String totalUnitsS = String.valueOf(totalUnits); 
-         query = "UPDATE product SET numberofunits = '" + totalUnitsS + "' where storeid = '" + storeID + "' and productname = '" + productName + "';";
-         esql.executeUpdate(query);
+         Load(Callable<List<List<String>>> loader, java.util.Set<String> tables) {
+            super(loader);
+            this.tables = tables;
+         }
+      }
 
-         // * Print information of recent order; Product Price and Store Name
-         List<List<String>> currStore;
-         query = "select name from store where storeid = '" + storeID + "';";
-         currStore = esql.executeQueryAndReturnResult(query);
-         String storeName = currStore.get(0).get(0).replaceAll("\\s+", ""); //removes all whitespace and non-visible characters (e.g. tab \t) https://stackoverflow.com/questions/5455794/removing-whitespace-from-strings-in-java
+      private static class CachedResult {
+         final List<List<String>> records;
+         final java.util.Set<String> tables;
+         final long expiresAt;
 
-         String priceperunit = currProduct.get(0).get(1);
-         int totalCost = Integer.parseInt(priceperunit) * Integer.parseInt(numberofUnits);
-         String totalCostS = String.valueOf(totalCost);
-         System.out.println("You have successfully placed an order at " + storeName + "(" + storeID + ") for " + numberofUnits + " units of " + productName + " each costing $" + priceperunit + ", totaling $" + totalCostS + ". Thank you!");
+         CachedResult(List<List<String>> records, java.util.Set<String> tables, long expiresAt) {
+            this.records = records;
+            this.tables = tables;
+            this.expiresAt = expiresAt;
+         }
+      }
 
+      // * The lower-case names after FROM, JOIN and the commas of a FROM list *
+      static java.util.Set<String> tablesOf(String query) {
+         java.util.Set<String> tables = tablesByQuery.get(query);
+         if (tables != null)
+            return tables;
+         tables = new java.util.HashSet<String>();
+         java.util.regex.Matcher list = TABLE_LIST.matcher(query);
+         while (list.find())
+            for (String item : list.group(1).split(","))
+               tables.add(item.trim().split("\\s+")[0].toLowerCase());
+         tables = Collections.unmodifiableSet(tables);
+         if (tablesByQuery.size() >= MAX_CACHED)
+            tablesByQuery.clear();
+         tablesByQuery.put(query, tables);
+         return tables;
+      }
 
-         // select * from store where false;
-         // select * from store limit 1;
+      List<List<String>> execute(String key, java.util.Set<String> tables, Callable<List<List<String>>> loader) throws SQLException {
+         if (ttlMillis > 0) {
+            CachedResult hit = cached.get(key);
+            if (hit != null && hit.expiresAt > System.currentTimeMillis())
+               return hit.records;
+         }
 
+         long generation = generation(tables);
+         Load task = new Load(loader, tables);
+         Load running = inFlight.putIfAbsent(key, task);
+         if (running == null) {
+            running = task;
+            try {
+               task.run();
+            } finally {
+               inFlight.remove(key, task);
+            }
+         }
 
-         return;
+         try {
+            List<List<String>> records = running.get();
+            if (ttlMillis > 0 && running == task && generation(tables) == generation) {
+               if (cached.size() >= MAX_CACHED)
+                  evictExpired();
+               cached.put(key, new CachedResult(records, tables, System.currentTimeMillis() + ttlMillis));
+            }
+            return records;
+         } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+               throw (SQLException) cause;
+            if (cause instanceof RuntimeException)
+               throw (RuntimeException) cause;
+            throw new SQLException(cause.getMessage());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a shared query");
+         }
       }
-      catch(Exception e){
-         System.err.println (e.getMessage ());
+
+      // * Drops every cached or in-flight result that reads the table *
+      void invalidate(String table) {
+         String name = table.toLowerCase();
+         generationOf(name).incrementAndGet();
+         for (Iterator<Load> loads = inFlight.values().iterator(); loads.hasNext(); )
+            if (loads.next().tables.contains(name))
+               loads.remove();
+         for (Iterator<CachedResult> values = cached.values().iterator(); values.hasNext(); )
+            if (values.next().tables.contains(name))
+               values.remove();
       }
-   }
-   // * Kobe *
-   public static void viewRecentOrders(Retail esql) {
-      //3
-      // SELECT o.storeid, s.name, o.productname, o.unitsordered, o.ordertime FROM orders o INNER JOIN store s ON (o.storeid = s.storeid) order by ordertime desc limit 5;
-      try {
-         String query = "SELECT o.storeid, s.name, o.productname, o.unitsordered, o.ordertime FROM orders o INNER JOIN store s ON (o.storeid = s.storeid) WHERE o.customerid = '" + retail_user_id + "' order by ordertime desc limit 5;";
-         int rowCount = esql.executeQuery(query);
-         if (rowCount < 1) {
-            System.out.println("ERR: You don't have any recent orders");
-            return;
+
+      // * Generations only grow, so the sum changes whenever one of them does *
+      private long generation(java.util.Set<String> tables) {
+         long sum = 0;
+         for (String table : tables)
+            sum += generationOf(table).get();
+         return sum;
+      }
+
+      private AtomicLong generationOf(String table) {
+         AtomicLong generation = generations.get(table);
+         if (generation == null) {
+            AtomicLong created = new AtomicLong();
+            generation = generations.putIfAbsent(table, created);
+            if (generation == null)
+               generation = created;
          }
-         esql.executeQueryAndPrintResult(query);
+         return generation;
+      }
 
-         return;
-      }catch(Exception e){
-         System.err.println(e.getMessage());
+      private void evictExpired() {
+         long now = System.currentTimeMillis();
+         for (Iterator<CachedResult> values = cached.values().iterator(); values.hasNext(); )
+            if (values.next().expiresAt <= now)
+               values.remove();
+         if (cached.size() >= MAX_CACHED)
+            cached.clear();
       }
+   }//end QueryCoalescer
 
+   /**
+    * Receives "row changed" events as (table, key, tag). key identifies the
+    * row (see create_notify_triggers.sql) or is null when only the table is
+    * known. tag is the writeTag() of a write this process made itself, or
+    * null for changes from elsewhere.
+    */
+   interface InvalidationHandler {
+      void invalidate(String table, String key, String tag);
    }
-   // * Kobe *
-   public static void updateProduct(Retail esql) {
-      try {
-         String query = "";
-      //2 Managers can view last 5 recent updates of his/her store(s)
 
-      // * (fxn) Check if user is a manager *
-      if (!isManager(esql)) {
-         return;
+   /**
+    * Cache invalidation bus. Local writes publish directly; listen() also
+    * LISTENs on the retail_* channels fed by the triggers in
+    * create_notify_triggers.sql, so a change made by any other Retail process
+    * evicts the same entries here. The 7.3 driver only hands out
+    * notifications after a statement round trip, so the listener issues a
+    * trivial query every -Dretail.listen.ms (default 100) and drains them.
+    * Notifications sent by this process's own connections are dropped: the
+    * write was published locally already, with its key, whereas the 7.3
+    * driver delivers every NOTIFY without its payload.
+    */
+   static class InvalidationBus implements Runnable {
+      static final String[] TABLES = {"product", "store", "users", "orders", "warehouse"};
+
+      private final List<InvalidationHandler> handlers = new CopyOnWriteArrayList<InvalidationHandler>();
+      private volatile Retail listener = null;
+      private volatile Thread thread = null;
+
+      void register(InvalidationHandler handler) {
+         handlers.add(handler);
       }
 
-      // * (fxn) Ask for storeID and check if managerID matches it *
-      System.out.println("Please enter the store's ID: ");
-      String storeID = in.readLine();
-      if (!isManagerOwnerStore(esql, storeID)) {
-         return;
+      void publish(String table, String key) {
+         publish(table, key, null);
       }
 
-      // * (fxn) Ask for product name and check if it exists at that store *
-      System.out.println("Please enter the product's name: ");
-      String productName = in.readLine();
-      if (!isProductAtStore(esql, productName, storeID)) {
-         return;
+      // * A change made by this process; tag is the writeTag() of the write *
+      void publish(String table, String key, String tag) {
+         for (InvalidationHandler handler : handlers)
+            handler.invalidate(table, key, tag);
       }
 
-      // * Showcase product's current [numberofunits] and [priceperunit] and ask *
-      query = "SELECT numberofunits, priceperunit from product where productname = '" + productName + "' AND storeid = '" + storeID + "';";
-      List<List<String>> currProduct = esql.executeQueryAndReturnResult(query);
-      String numUnits = currProduct.get(0).get(0);
-      String priceUnits = currProduct.get(0).get(1);
-      System.out.println("\n" + productName + " currently has " + numUnits + " priced at " + priceUnits + " each. Would you like to update this?\n 1. Update number of units.\n 2. Update price per unit.\n 3. Update both.\n 4. Return to menu.");
-      String userChoice = in.readLine();
-      if (userChoice.equals("1")) {
-         System.out.println("Please enter the new number of units.");
-         numUnits = in.readLine();
-      }
-      else if (userChoice.equals("2")) {
-         System.out.println("Please enter the new price per unit.");
-         priceUnits = in.readLine();
-      }
-      else if (userChoice.equals("3")) {
-         System.out.println("Please enter the new number of units.");
-         numUnits = in.readLine();
-         System.out.println("Please enter the new price per unit.");
-         priceUnits = in.readLine();
-      }
-      else if (userChoice.equals("4")) {
-         return;
+      void listen(Retail esql) throws SQLException {
+         for (String table : TABLES)
+            esql.executeUpdate("LISTEN retail_" + table);
+         // * per-store tables change in the shard databases *
+         for (Retail shard : esql.shards()) {
+            shard.executeUpdate("LISTEN retail_product");
+            shard.executeUpdate("LISTEN retail_orders");
+         }
+         listener = esql;
+         thread = new Thread(this, "invalidation-listener");
+         thread.setDaemon(true);
+         thread.start();
       }
-      else {
-         System.out.println("unrecognized option, returning to menu ...");
-         return;
+
+      public void run() {
+         long pollMillis = Long.getLong("retail.listen.ms", 100);
+         Retail esql = listener;
+         try {
+            List<Retail> sources = new ArrayList<Retail>();
+            sources.add(esql);
+            Collections.addAll(sources, esql.shards());
+            while (!Thread.currentThread().isInterrupted()) {
+               for (Retail source : sources) {
+                  source.executeQuery("SELECT 1");
+                  PGNotification[] notifications = ((PGConnection) source._connection).getNotifications();
+                  if (notifications != null)
+                     for (PGNotification notification : notifications)
+                        if (!source.ownBackend(notification.getPID()))
+                           publish(notification.getName().substring("retail_".length()), payloadOf(notification));
+               }
+               Thread.sleep(pollMillis);
+            }
+         } catch (InterruptedException e) {
+            // stopListening
+         } catch (SQLException e) {
+            System.err.println("Invalidation listener stopped: " + e.getMessage());
+         }
       }
 
-      // * Update the product table *
-      query = "UPDATE product SET numberofunits = '" + numUnits + "', priceperunit = '" + priceUnits + "' WHERE storeid = '" + storeID + "' AND productname = '" + productName + "';";
-      esql.executeUpdate(query);
-      System.out.println("You have successfully updated the product.");
+      // * Newer drivers expose the NOTIFY payload as getParameter(); the 7.3 driver does not *
+      private static String payloadOf(PGNotification notification) {
+         try {
+            Method parameter = notification.getClass().getMethod("getParameter");
+            String payload = (String) parameter.invoke(notification);
+            return payload == null || payload.isEmpty() ? null : payload;
+         } catch (Exception e) {
+            return null;
+         }
+      }
 
-      // * Update the productupdates table *
-      // -- * Grab current updatenumber to use later (currUpdateNumber) *
-      query = "SELECT * from productUpdates order by updatenumber desc limit 1";
-      List<List<String>> currUpdateTable = esql.executeQueryAndReturnResult(query);
-      String currUpdateNumber = currUpdateTable.get(0).get(0);
-      int currNum = Integer.parseInt(currUpdateNumber);
-      currNum += 1;
-      currUpdateNumber = String.valueOf(currNum);
+      void stopListening() {
+         Thread running = thread;
+         Retail esql = listener;
+         thread = null;
+         listener = null;
+         if (running == null) {
+            return;
+         }
+         running.interrupt();
+         try {
+            running.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         esql.cleanup();
+      }
+   }//end InvalidationBus
 
-      DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-      Date date = new Date();
-      String currDate = dateFormat.format(date);
-      query = "INSERT INTO productUpdates (updatenumber, managerid, storeid, productname, updatedon) VALUES ('" + currUpdateNumber + "', '" + retail_user_id + "', '" + storeID + "', '" + productName + "', '" + currDate + "');";
-      esql.executeUpdate(query);
+   /**
+    * Write-behind buffer for ProductUpdates rows. Writers only enqueue; a
+    * background thread drains the bounded queue and inserts the rows with
+    * one JDBC batch per flush, either when batchSize rows are waiting or
+    * every flushMillis. close() stops the thread and writes whatever is left
+    * before the connection is released.
+    */
+   static class AuditWriter implements Runnable {
+      static final String INSERT_UPDATE = "INSERT INTO productUpdates (managerid, storeid, productid, updatedon) VALUES (?, ?, ?, ?)";
+
+      private final Retail esql;
+      private final BlockingQueue<Object[]> queue;
+      private final int batchSize;
+      private final long flushMillis;
+      private final AtomicBoolean closed = new AtomicBoolean(false);
+      private final Thread worker = new Thread(this, "audit-writer");
+
+      // * metrics *
+      private final AtomicLong flushes = new AtomicLong();
+      private final AtomicLong written = new AtomicLong();
+      private final AtomicLong failures = new AtomicLong();
+      private final AtomicLong totalFlushNanos = new AtomicLong();
+      private final AtomicLong maxFlushNanos = new AtomicLong();
+
+      AuditWriter(Retail esql, int capacity, int batchSize, long flushMillis) {
+         this.esql = esql;
+         this.queue = new ArrayBlockingQueue<Object[]>(capacity);
+         this.batchSize = batchSize;
+         this.flushMillis = flushMillis;
+         worker.setDaemon(true);
+      }
 
+      void start() {
+         worker.start();
+      }
 
-      // **Ask for storeID,
-      // **Check if storeID matches managerID
-      // **Ask for productname
-      // **Showcase current numberofunits and priceperunit; ask if they would like to make an update | else "this productname doesn't exist at this store" == doublequery
-      // **Ask for update to numberofunits?
-      // **Ask for update to priceperunit?
-      // **update query
-      // **insert productUpdates
-      //
-      // stores have one manager; managers have multiple stores
-      return;
-      }catch(Exception e){
-         System.err.println(e.getMessage());
+      // * @return false when closed, so the caller writes the row itself *
+      boolean enqueue(Object[] record) {
+         if (closed.get()) {
+            return false;
+         }
+         try {
+            queue.put(record); // a full queue slows writers down instead of dropping audit rows
+            return true;
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+         }
       }
 
-   }
-   // * Kobe *
-   public static void viewRecentUpdates(Retail esql) {
-      try {
-      //2 Managers can view last 5 recent updates of his/her store(s)
-      String userID = "10";
-      String query = "SELECT type from users where userid = '" + userID + "';";
-      List<List<String>> currUser = esql.executeQueryAndReturnResult(query);
-      String userType = currUser.get(0).get(0).replaceAll("\\s+", "");
-      if (!userType.equals("manager")) { // Can't use == since that checks if they're same object (reference equality) vs value equality
-         System.out.println("ERR: not manager");
-         return;
+      int queueDepth() {
+         return queue.size();
       }
 
-      query = "SELECT * from productUpdates where managerid = '" + userID + "' order by updatedon desc limit 5";
-      esql.executeQueryAndPrintResult(query);
-      return;
+      public void run() {
+         List<Object[]> batch = new ArrayList<Object[]>(batchSize);
+         while (!closed.get()) {
+            try {
+               // a batch that failed to flush is retried as is before taking more rows
+               Object[] first = batch.size() < batchSize ? queue.poll(flushMillis, TimeUnit.MILLISECONDS) : null;
+               if (first != null) {
+                  batch.add(first);
+                  queue.drainTo(batch, batchSize - batch.size());
+               }
+               if (batch.isEmpty())
+                  continue;
+               if (!flush(batch))
+                  Thread.sleep(flushMillis);
+            } catch (InterruptedException e) {
+               break;
+            }
+         }
+         queue.drainTo(batch);
+         if (!batch.isEmpty())
+            flush(batch);
       }
-      catch(Exception e){
-         System.err.println(e.getMessage());
+
+      // * Writes the rows with one transaction per shard; rows that failed stay in the batch for the next round *
+      private boolean flush(List<Object[]> batch) {
+         long started = System.nanoTime();
+         boolean complete = true;
+         try {
+            Map<Retail, List<Object[]>> byShard = new HashMap<Retail, List<Object[]>>();
+            for (Object[] record : batch) {
+               Retail shard = esql.shardFor(String.valueOf(record[1]));
+               List<Object[]> records = byShard.get(shard);
+               if (records == null) {
+                  records = new ArrayList<Object[]>();
+                  byShard.put(shard, records);
+               }
+               records.add(record);
+            }
+            for (Map.Entry<Retail, List<Object[]>> entry : byShard.entrySet()) {
+               if (writeBatch(entry.getKey()._connection, entry.getValue())) {
+                  batch.removeAll(entry.getValue());
+                  written.addAndGet(entry.getValue().size());
+               } else {
+                  complete = false;
+               }
+            }
+         } catch (SQLException e) {
+            failures.incrementAndGet();
+            System.err.println("Audit writer: " + e.getMessage());
+            complete = false;
+         } finally {
+            long elapsed = System.nanoTime() - started;
+            flushes.incrementAndGet();
+            totalFlushNanos.addAndGet(elapsed);
+            if (elapsed > maxFlushNanos.get())
+               maxFlushNanos.set(elapsed);
+         }
+         return complete;
       }
-   }
 
-   // * Jason *
-   public static void viewPopularProducts(Retail esql) {
-      try{
-         String query1 = "SELECT * FROM Users WHERE '" + retail_user_id + "' = userid";
-         List<List<String>> userresult = esql.executeQueryAndReturnResult(query1);
-         String userType = userresult.get(0).get(5).replaceAll("\\s+", "");
-         if (!userType.equals("manager")) { // Can't use == since that checks if they're same object (reference equality) vs value equality
-            System.out.println("ERR: not manager");
-            return;
+      private boolean writeBatch(Connection conn, List<Object[]> records) {
+         try {
+            conn.setAutoCommit(false);
+            PreparedStatement stmt = conn.prepareStatement(INSERT_UPDATE);
+            try {
+               for (Object[] record : records) {
+                  bindParameters(stmt, record);
+                  stmt.addBatch();
+               }
+               stmt.executeBatch();
+            } finally {
+               stmt.close();
+            }
+            conn.commit();
+            return true;
+         } catch (SQLException e) {
+            failures.incrementAndGet();
+            System.err.println("Audit writer: " + e.getMessage());
+            try {
+               conn.rollback();
+            } catch (SQLException ignored) {
+               // the connection is unusable, the next flush will report it
+            }
+            return false;
+         } finally {
+            try {
+               conn.setAutoCommit(true);
+            } catch (SQLException ignored) {
+               // ignored.
+            }
          }
-         String query2 = "SELECT productName, SUM(unitsordered) FROM Orders WHERE storeID in (SELECT storeID FROM Store WHERE " + userresult.get(0).get(0) + " = managerID) GROUP BY productName ORDER BY SUM(unitsordered) DESC LIMIT 5";
-         int topresult = esql.executeQueryAndPrintResult(query2); 
-      }catch(Exception e){
-         System.err.println (e.getMessage());
       }
-   }
-   // * Jason *
-   public static void viewPopularCustomers(Retail esql) {
-      try{
-         String query1 = "SELECT * FROM Users WHERE '" + retail_user_id + "' = userid";
-         List<List<String>> userresult = esql.executeQueryAndReturnResult(query1);
-         String userType = userresult.get(0).get(5).replaceAll("\\s+", "");
-         if (!userType.equals("manager")) { // Can't use == since that checks if they're same object (reference equality) vs value equality
-            System.out.println("ERR: not manager");
+
+      String stats() {
+         long n = flushes.get();
+         return String.format("audit writer: queued=%d written=%d flushes=%d failures=%d avgFlush=%.2fms maxFlush=%.2fms",
+            queueDepth(), written.get(), n, failures.get(),
+            n == 0 ? 0.0 : totalFlushNanos.get() / 1e6 / n, maxFlushNanos.get() / 1e6);
+      }
+
+      void close() {
+         if (!closed.compareAndSet(false, true)) {
             return;
          }
-         String query2 = "SELECT name, SUM(unitsordered) FROM Orders, Users WHERE storeID in (SELECT storeID FROM Store WHERE " + userresult.get(0).get(0) + " = managerID) AND customerID = userID GROUP BY name ORDER BY SUM(unitsordered) DESC LIMIT 5";
-         int topresult = esql.executeQueryAndPrintResult(query2);
-      }catch(Exception e){
-         System.err.println (e.getMessage());
+         worker.interrupt();
+         try {
+            worker.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         System.out.println(stats());
+         esql.cleanup();
       }
-   }
+   }//end AuditWriter
 
-   // * Kobe *
-   public static void placeProductSupplyRequests(Retail esql) {
-      try {
-         String query = "";
-         // * (fxn) Check if user is a manager *
-         if (!isManager(esql)) {
-            return;
+   /**
+    * Embedded HTTP/JSON front end. Runs the query layer above behind a
+    * com.sun.net.httpserver server with a fixed worker pool; every worker
+    * borrows one Retail (one JDBC connection) from a pool of the same size,
+    * so requests never share a connection.
+    *
+    * Clients POST /login with name and password and receive a token, which
+    * they send back in the X-Session-Token header on every other call, and
+    * POST /logout to end the session. A token unused for
+    * -Dretail.http.session.idle.ms (default 30 minutes) expires. Calls that
+    * change data (WRITES) must be POSTs; any other method gets a 405.
+    */
+   static class RetailService implements HttpHandler {
+      static final java.util.Set<String> WRITES = new java.util.HashSet<String>(java.util.Arrays.asList(
+         "/login", "/logout", "/orders", "/cart", "/orders/split", "/manager/supply"));
+      static final long SESSION_IDLE_MILLIS = Long.getLong("retail.http.session.idle.ms", 30 * 60 * 1000L);
+
+      private static class TokenSession {
+         final Session session;
+         volatile long lastUsed = System.currentTimeMillis();
+
+         TokenSession(Session session) {
+            this.session = session;
          }
+      }
 
-         // * (fxn) Ask for storeID and check if managerID matches it *
-         System.out.println("Please enter the store's ID: ");
-         String storeID = in.readLine();
-         if (!isManagerOwnerStore(esql, storeID)) {
-            return;
+      private final BlockingQueue<Retail> pool;
+      private final Map<String, TokenSession> sessions = new ConcurrentHashMap<String, TokenSession>();
+      private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+      private final SecureRandom random = new SecureRandom();
+      private final HttpServer server;
+
+      RetailService(String dbname, String dbport, String user, int httpPort, int threads) throws Exception {
+         pool = new ArrayBlockingQueue<Retail>(threads);
+         for (int i = 0; i < threads; ++i)
+            pool.add(new Retail(dbname, dbport, user, ""));
+         loadUserNames(pool.peek());
+         recoverShardTransactions(pool.peek());
+         recoverEscrow(pool.peek());
+         server = HttpServer.create(new InetSocketAddress(httpPort), 0);
+         server.createContext("/", this);
+         server.setExecutor(Executors.newFixedThreadPool(threads));
+      }
+
+      void start() {
+         server.start();
+         System.out.println("Retail service listening on port " + server.getAddress().getPort());
+      }
+
+      void stop() {
+         server.stop(0);
+         ((ExecutorService) server.getExecutor()).shutdown();
+         shutdownServices();
+         for (Retail esql : pool)
+            esql.cleanup();
+      }
+
+      public void handle(HttpExchange exchange) throws IOException {
+         int status = 200;
+         String body;
+         Retail esql = null;
+         try {
+            String path = exchange.getRequestURI().getPath();
+            if (WRITES.contains(path) && !exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+               exchange.getResponseHeaders().set("Allow", "POST");
+               status = 405;
+               body = jsonError(path + " only accepts POST");
+            } else {
+               Map<String, String> params = readParameters(exchange);
+               esql = pool.take();
+               body = dispatch(esql, path, params, exchange.getRequestHeaders().getFirst("X-Session-Token"));
+            }
+         } catch (SecurityException e) {
+            status = 403;
+            body = jsonError(e.getMessage());
+         } catch (IllegalArgumentException e) {
+            status = 400;
+            body = jsonError(e.getMessage());
+         } catch (Exception e) {
+            status = 500;
+            body = jsonError(e.getMessage());
+         } finally {
+            if (esql != null)
+               pool.add(esql);
          }
+         byte[] bytes = body.getBytes("UTF-8");
+         exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+         exchange.sendResponseHeaders(status, bytes.length);
+         OutputStream out = exchange.getResponseBody();
+         out.write(bytes);
+         out.close();
+      }
 
-         // * (fxn) Ask for product name and check if it exists at that store *
-         System.out.println("Please enter the product's name: ");
-         String productName = in.readLine();
-         if (!isProductAtStore(esql, productName, storeID)) {
-            return;
+      private String dispatch(Retail esql, String path, Map<String, String> params, String token) throws Exception {
+         if (path.equals("/login")) {
+            List<String> user = authenticate(esql, required(params, "name"), required(params, "password"));
+            if (user == null) {
+               throw new SecurityException("Invalid name or password");
+            }
+            byte[] raw = new byte[16];
+            random.nextBytes(raw);
+            StringBuilder newToken = new StringBuilder();
+            for (byte b : raw)
+               newToken.append(String.format("%02x", b));
+            evictIdleSessions();
+            sessions.put(newToken.toString(), new TokenSession(openSession(esql, user)));
+            return "{\"token\":" + jsonString(newToken.toString()) + ",\"userid\":" + jsonString(user.get(0)) + ",\"type\":" + jsonString(user.get(1)) + "}";
          }
 
-         // * Print information of recent order; Product Price and Store Name
-         List<List<String>> currStore;
-         query = "select name from store where storeid = '" + storeID + "';";
-         currStore = esql.executeQueryAndReturnResult(query);
-         String storeName = currStore.get(0).get(0).replaceAll("\\s+", "");
+         TokenSession tokenSession = token == null ? null : sessions.get(token);
+         long now = System.currentTimeMillis();
+         if (tokenSession != null && now - tokenSession.lastUsed > SESSION_IDLE_MILLIS) {
+            sessions.remove(token);
+            tokenSession = null;
+         }
+         if (tokenSession == null) {
+            throw new SecurityException("Missing or expired session token");
+         }
+         tokenSession.lastUsed = now;
+         Session session = tokenSession.session;
 
-         // * Showcase product's current [numberofunits] and [priceperunit] and ask *
-         query = "SELECT numberofunits from product where productname = '" + productName + "' AND storeid = '" + storeID + "';";
-         List<List<String>> currProduct = esql.executeQueryAndReturnResult(query);
-         String numUnits = currProduct.get(0).get(0);
-         String newUnits = "";
-         System.out.println(storeName + " (" + storeID + ") has " + numUnits + " units of " + productName + ". " + "Would you like to update this?\n 1. Update number of units.\n 2. Return to menu.");
-         String userChoice = in.readLine();
-         if (userChoice.equals("1")) {
-            System.out.println("Please enter the requested amount of units.");
-            newUnits = in.readLine();
+         if (path.equals("/logout")) {
+            sessions.remove(token);
+            return "{}";
          }
-         else if (userChoice.equals("2")) {
-            return;
+         // * customer *
+         if (path.equals("/stores"))
+            return toJson(STORE_COLUMNS, queryStoresWithin(esql, session, 30));
+         if (path.equals("/products"))
+            return toJson(PRODUCT_COLUMNS, queryProducts(esql, session, required(params, "storeID")));
+         if (path.equals("/products/search"))
+            return toJson(PRODUCT_NAME_COLUMNS, searchProductNames(esql, required(params, "q"), params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : 10));
+         if (path.equals("/stock"))
+            return toJson(STOCK_COLUMNS, queryStockNearby(esql, session, required(params, "productName"), Integer.parseInt(required(params, "units")), 30));
+         if (path.equals("/orders")) {
+            requireType(session, "customer");
+            List<List<String>> receipt = new ArrayList<List<String>>();
+            receipt.add(submitOrder(esql, session, required(params, "storeID"), required(params, "productName"), required(params, "units")));
+            return toJson(ORDER_RECEIPT_COLUMNS, receipt);
          }
-         else {
-            System.out.println("unrecognized option, returning to menu ...");
-            return;
+         // * lines=storeID,productName,units;storeID,productName,units;... *
+         if (path.equals("/cart")) {
+            requireType(session, "customer");
+            List<List<String>> lines = new ArrayList<List<String>>();
+            for (String line : required(params, "lines").split(";")) {
+               String[] fields = line.split(",");
+               if (fields.length != 3) {
+                  throw new IllegalArgumentException("Cart lines must be storeID,productName,units");
+               }
+               List<String> item = new ArrayList<String>();
+               Collections.addAll(item, fields);
+               lines.add(item);
+            }
+            List<List<String>> receipt = submitCart(esql, session, lines);
+            return "{\"items\":" + toJson(ORDER_RECEIPT_COLUMNS, receipt) + ",\"total\":" + jsonString(receiptTotal(receipt)) + "}";
+         }
+         if (path.equals("/orders/split")) {
+            requireType(session, "customer");
+            List<List<String>> receipt = submitSplitOrder(esql, session, required(params, "storeID"), required(params, "productName"), required(params, "units"));
+            return "{\"items\":" + toJson(ORDER_RECEIPT_COLUMNS, receipt) + ",\"total\":" + jsonString(receiptTotal(receipt)) + "}";
+         }
+         if (path.equals("/orders/recent"))
+            return toJson(RECENT_ORDER_COLUMNS, queryRecentOrders(esql, session));
+         // * manager *
+         if (path.startsWith("/manager/")) {
+            requireType(session, "manager");
+            if (path.equals("/manager/orders"))
+               return toJson(ORDER_COLUMNS, queryStoreOrders(esql, session));
+            if (path.equals("/manager/updates"))
+               return toJson(UPDATE_COLUMNS, queryRecentUpdates(esql, session));
+            if (path.equals("/manager/popular-products"))
+               return toJson(POPULAR_PRODUCT_COLUMNS, queryPopularProducts(esql, session));
+            if (path.equals("/manager/popular-customers"))
+               return toJson(POPULAR_CUSTOMER_COLUMNS, queryPopularCustomers(esql, session));
+            // * lines=productName,units;productName,units;... warehouseID defaults to the nearest *
+            if (path.equals("/manager/supply")) {
+               String storeID = required(params, "storeID");
+               String warehouseID = params.get("warehouseID");
+               if (warehouseID == null || warehouseID.isEmpty()) {
+                  List<double[]> nearest = warehouseRouter.nearest(esql, Integer.parseInt(storeID.trim()), 1);
+                  if (nearest.isEmpty()) {
+                     throw new IllegalArgumentException("Missing parameter warehouseID");
+                  }
+                  warehouseID = String.valueOf((int) nearest.get(0)[0]);
+               }
+               List<List<String>> lines = new ArrayList<List<String>>();
+               for (String line : required(params, "lines").split(";")) {
+                  String[] fields = line.split(",");
+                  if (fields.length != 2) {
+                     throw new IllegalArgumentException("Supply lines must be productName,units");
+                  }
+                  List<String> item = new ArrayList<String>();
+                  Collections.addAll(item, fields);
+                  lines.add(item);
+               }
+               return toJson(SUPPLY_COLUMNS, submitSupplyRequest(esql, session, storeID, warehouseID, lines));
+            }
+         }
+         // * admin *
+         if (path.startsWith("/admin/")) {
+            requireType(session, "admin");
+            if (path.equals("/admin/users"))
+               return toJson(USER_COLUMNS, queryUser(esql, session, required(params, "userID")));
+            if (path.equals("/admin/products"))
+               return toJson(PRODUCT_COLUMNS, queryProduct(esql, session, required(params, "storeID"), required(params, "productName")));
          }
+         throw new IllegalArgumentException("Unknown endpoint " + path);
+      }
 
-         // * grab warehouse ID
-         System.out.println("Please enter the warehouse ID you would like to request supplies from:");
-         String warehouseID = in.readLine();
-         query = "SELECT * from warehouse where warehouseid = '" + warehouseID + "';";
-         int rowCount = esql.executeQuery(query);
-         if (rowCount < 1) {
-            System.out.println("Warehouse not found from warehouse ID. Returning to main menu...");
+      // * Drops expired tokens, at most once a minute, so abandoned logins do not pile up *
+      private void evictIdleSessions() {
+         long now = System.currentTimeMillis();
+         long last = lastSweep.get();
+         if (now - last < 60 * 1000L || !lastSweep.compareAndSet(last, now)) {
             return;
          }
-         
-         // * Grab latest request number *
-         query = "SELECT requestnumber from productsupplyrequests order by requestnumber desc limit 1";
-         List<List<String>> warehouseRequest = esql.executeQueryAndReturnResult(query);
-         String currRequestNumber = warehouseRequest.get(0).get(0);
-         int requestNumber = Integer.parseInt(currRequestNumber);
-         requestNumber += 1;
-         currRequestNumber = String.valueOf(requestNumber);
-
-         // * make insertion into productsupplyrequest *
-         query = "INSERT INTO productsupplyrequests VALUES ('" + currRequestNumber + "', '" + retail_user_id + "', '" + warehouseID + "', '" + storeID + "', '" + productName + "', '" + numUnits + "');";
-         esql.executeUpdate(query);
-         System.out.println("Product supply request has been successfully placed at " + warehouseID);
-
-         // * Update the product table *
-         numUnits = String.valueOf(Integer.parseInt(numUnits) + Integer.parseInt(newUnits));
-         query = "UPDATE product SET numberofunits = '" + numUnits + "' WHERE storeid = '" + storeID + "' AND productname = '" + productName + "';";
-         esql.executeUpdate(query);
-
-         // * Update the productupdates table *
-         // -- * Grab current updatenumber to use later (currUpdateNumber) *
-         query = "SELECT * from productUpdates order by updatenumber desc limit 1";
-         List<List<String>> currUpdateTable = esql.executeQueryAndReturnResult(query);
-         String currUpdateNumber = currUpdateTable.get(0).get(0);
-         int currNum = Integer.parseInt(currUpdateNumber);
-         currNum += 1;
-         currUpdateNumber = String.valueOf(currNum);
-
-         DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-         Date date = new Date();
-         String currDate = dateFormat.format(date);
-         query = "INSERT INTO productUpdates (updatenumber, managerid, storeid, productname, updatedon) VALUES ('" + currUpdateNumber + "', '" + retail_user_id + "', '" + storeID + "', '" + productName + "', '" + currDate + "');";
-         esql.executeUpdate(query);
+         for (Iterator<TokenSession> open = sessions.values().iterator(); open.hasNext(); )
+            if (now - open.next().lastUsed > SESSION_IDLE_MILLIS)
+               open.remove();
+      }
 
+      private static void requireType(Session session, String expected) {
+         if (!session.type.equals(expected)) {
+            throw new SecurityException("ERR: not " + expected);
+         }
+      }
 
-         System.out.println(storeName + " (" + storeID + ")" + " now has " + numUnits + " units of " + productName + ".");
+      private static String required(Map<String, String> params, String name) {
+         String value = params.get(name);
+         if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+         }
+         return value;
+      }
 
-         return;
+      // * Merges the URL query string and a form encoded POST body *
+      private static Map<String, String> readParameters(HttpExchange exchange) throws IOException {
+         Map<String, String> params = new HashMap<String, String>();
+         parseForm(exchange.getRequestURI().getRawQuery(), params);
+         if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            InputStream body = exchange.getRequestBody();
+            StringBuilder form = new StringBuilder();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = body.read(buffer)) > 0)
+               form.append(new String(buffer, 0, read, "UTF-8"));
+            parseForm(form.toString(), params);
+         }
+         return params;
+      }
 
+      private static void parseForm(String form, Map<String, String> params) throws IOException {
+         if (form == null || form.isEmpty()) {
+            return;
+         }
+         for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+               params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+         }
+      }
 
-      }catch(Exception e){
-         System.err.println(e.getMessage());
+      static String toJson(String[] columns, List<List<String>> records) {
+         StringBuilder json = new StringBuilder("[");
+         for (int r = 0; r < records.size(); ++r) {
+            if (r > 0)
+               json.append(',');
+            json.append('{');
+            List<String> record = records.get(r);
+            for (int c = 0; c < columns.length && c < record.size(); ++c) {
+               if (c > 0)
+                  json.append(',');
+               String value = record.get(c);
+               json.append(jsonString(columns[c])).append(':').append(value == null ? "null" : jsonString(value.trim()));
+            }
+            json.append('}');
+         }
+         return json.append(']').toString();
       }
 
+      static String jsonError(String message) {
+         return "{\"error\":" + jsonString(message == null ? "internal error" : message) + "}";
+      }
 
-   }
+      static String jsonString(String value) {
+         StringBuilder json = new StringBuilder("\"");
+         for (int i = 0; i < value.length(); ++i) {
+            char ch = value.charAt(i);
+            if (ch == '"' || ch == '\\')
+               json.append('\\').append(ch);
+            else if (ch < 0x20)
+               json.append(String.format("\\u%04x", (int) ch));
+            else
+               json.append(ch);
+         }
+         return json.append('"').toString();
+      }
+   }//end RetailService
 
 }//end Retail
 
+
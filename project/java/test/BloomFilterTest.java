@@ -0,0 +1,68 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Retail.BloomFilter: a name that was added is always reported, and names
+ * that were not are reported at about the rate the filter was sized for.
+ */
+public class BloomFilterTest {
+
+   public static void main(String[] args) throws Exception {
+      addedNamesAreAlwaysFound();
+      falsePositivesStayNearTheTarget();
+      concurrentAddsAreNotLost();
+      emptyFilterRejectsEverything();
+      System.out.println("BloomFilterTest: ok");
+   }
+
+   static void addedNamesAreAlwaysFound() {
+      Retail.BloomFilter filter = new Retail.BloomFilter(10000, 0.01);
+      for (int i = 0; i < 10000; ++i)
+         filter.add("user" + i);
+      for (int i = 0; i < 10000; ++i)
+         check(filter.mightContain("user" + i), "user" + i + " was added but is not found");
+   }
+
+   static void falsePositivesStayNearTheTarget() {
+      Retail.BloomFilter filter = new Retail.BloomFilter(10000, 0.01);
+      for (int i = 0; i < 10000; ++i)
+         filter.add("user" + i);
+      int hits = 0;
+      for (int i = 0; i < 100000; ++i)
+         if (filter.mightContain("stranger" + i))
+            ++hits;
+      check(hits < 2000, hits + " of 100000 unknown names passed a 1% filter");
+   }
+
+   static void concurrentAddsAreNotLost() throws InterruptedException {
+      final Retail.BloomFilter filter = new Retail.BloomFilter(40000, 0.01);
+      List<Thread> writers = new ArrayList<Thread>();
+      for (int t = 0; t < 4; ++t) {
+         final int first = t * 10000;
+         Thread writer = new Thread() {
+            public void run() {
+               for (int i = first; i < first + 10000; ++i)
+                  filter.add("user" + i);
+            }
+         };
+         writers.add(writer);
+         writer.start();
+      }
+      for (Thread writer : writers)
+         writer.join();
+      for (int i = 0; i < 40000; ++i)
+         check(filter.mightContain("user" + i), "user" + i + " was lost by a concurrent add");
+   }
+
+   static void emptyFilterRejectsEverything() {
+      Retail.BloomFilter filter = new Retail.BloomFilter(0, 0.01);
+      for (int i = 0; i < 1000; ++i)
+         check(!filter.mightContain("user" + i), "an empty filter reported user" + i);
+   }
+
+   static void check(boolean condition, String failure) {
+      if (!condition) {
+         throw new AssertionError(failure);
+      }
+   }
+}//end BloomFilterTest
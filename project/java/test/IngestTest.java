@@ -0,0 +1,77 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Retail.acceptInFeedOrder: the greedy, feed-ordered acceptance that bulk
+ * ingest applies to each staged chunk.
+ */
+public class IngestTest {
+
+   public static void main(String[] args) {
+      acceptsWhileStockLasts();
+      oversizedLineDoesNotBlockLaterOnes();
+      productsAreIndependent();
+      unknownProductsAndEmptyLinesAreRejected();
+      System.out.println("IngestTest: ok");
+   }
+
+   static void acceptsWhileStockLasts() {
+      Map<String, Integer> left = stock("1:7", 10);
+      List<Object[]> rows = rows(row(1, 1, 7, 4), row(2, 1, 7, 4), row(3, 1, 7, 4));
+      check(lines(Retail.acceptInFeedOrder(rows, left)).equals("1,2"), "only the first two lines fit 10 units");
+      check(left.get("1:7") == 2, "2 units should be left, not " + left.get("1:7"));
+   }
+
+   static void oversizedLineDoesNotBlockLaterOnes() {
+      Map<String, Integer> left = stock("1:7", 10);
+      List<Object[]> rows = rows(row(1, 1, 7, 6), row(2, 1, 7, 6), row(3, 1, 7, 3), row(4, 1, 7, 2));
+      check(lines(Retail.acceptInFeedOrder(rows, left)).equals("1,3"), "line 2 oversells, line 3 still fits");
+      check(left.get("1:7") == 1, "1 unit should be left, not " + left.get("1:7"));
+   }
+
+   static void productsAreIndependent() {
+      Map<String, Integer> left = stock("1:7", 5);
+      left.put("2:7", 5);
+      List<Object[]> rows = rows(row(1, 1, 7, 5), row(2, 2, 7, 5), row(3, 1, 7, 1));
+      check(lines(Retail.acceptInFeedOrder(rows, left)).equals("1,2"), "each store's stock is counted separately");
+   }
+
+   static void unknownProductsAndEmptyLinesAreRejected() {
+      Map<String, Integer> left = stock("1:7", 5);
+      List<Object[]> rows = rows(row(1, 1, 8, 1), row(2, 1, 7, 0), row(3, 1, 7, -2), row(4, 1, 7, 5));
+      check(lines(Retail.acceptInFeedOrder(rows, left)).equals("4"), "only line 4 orders a stocked product");
+   }
+
+   // * A staged row: {ingestID, line, customerID, storeID, productID, units, orderTime} *
+   static Object[] row(int line, int store, int productID, int units) {
+      return new Object[] {1L, line, 100, store, productID, units, null};
+   }
+
+   static List<Object[]> rows(Object[]... rows) {
+      List<Object[]> list = new ArrayList<Object[]>();
+      for (Object[] row : rows)
+         list.add(row);
+      return list;
+   }
+
+   static Map<String, Integer> stock(String key, int units) {
+      Map<String, Integer> left = new HashMap<String, Integer>();
+      left.put(key, units);
+      return left;
+   }
+
+   static String lines(List<Object[]> accepted) {
+      StringBuilder lines = new StringBuilder();
+      for (Object[] row : accepted)
+         lines.append(lines.length() == 0 ? "" : ",").append(row[1]);
+      return lines.toString();
+   }
+
+   static void check(boolean condition, String failure) {
+      if (!condition) {
+         throw new AssertionError(failure);
+      }
+   }
+}//end IngestTest
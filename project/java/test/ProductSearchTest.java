@@ -0,0 +1,52 @@
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Retail.ProductSearch: the padded trigrams of the fuzzy index and the
+ * edit distance that rescues short names with one typo.
+ */
+public class ProductSearchTest {
+
+   public static void main(String[] args) {
+      trigramsArePadded();
+      editDistanceCountsSingleEdits();
+      swappedNeighboursAreOneEdit();
+      editDistanceIsSymmetric();
+      System.out.println("ProductSearchTest: ok");
+   }
+
+   static void trigramsArePadded() {
+      check(Retail.ProductSearch.trigrams("egg").equals(new HashSet<String>(Arrays.asList("  e", " eg", "egg", "gg "))),
+         "trigrams of egg, got " + Retail.ProductSearch.trigrams("egg"));
+      check(Retail.ProductSearch.trigrams("").equals(new HashSet<String>(Arrays.asList("   "))),
+         "the empty name still has its padding trigram");
+   }
+
+   static void editDistanceCountsSingleEdits() {
+      check(Retail.ProductSearch.editDistance("milk", "milk") == 0, "equal names are 0 edits apart");
+      check(Retail.ProductSearch.editDistance("milk", "mil") == 1, "a deleted letter is 1 edit");
+      check(Retail.ProductSearch.editDistance("milk", "milks") == 1, "an inserted letter is 1 edit");
+      check(Retail.ProductSearch.editDistance("milk", "silk") == 1, "a replaced letter is 1 edit");
+      check(Retail.ProductSearch.editDistance("", "tea") == 3, "from nothing every letter is an insert");
+      check(Retail.ProductSearch.editDistance("kitten", "sitting") == 3, "kitten -> sitting, got " + Retail.ProductSearch.editDistance("kitten", "sitting"));
+   }
+
+   static void swappedNeighboursAreOneEdit() {
+      check(Retail.ProductSearch.editDistance("tea", "tae") == 1, "a swap of neighbours is 1 edit");
+      check(Retail.ProductSearch.editDistance("apple", "paple") == 1, "a swap at the start is 1 edit");
+      check(Retail.ProductSearch.editDistance("apple", "aplpe") == 1, "a swap in the middle is 1 edit");
+   }
+
+   static void editDistanceIsSymmetric() {
+      String[] names = {"egg", "eggs", "gge", "bread", "broad", "butter", ""};
+      for (String a : names)
+         for (String b : names)
+            check(Retail.ProductSearch.editDistance(a, b) == Retail.ProductSearch.editDistance(b, a), a + " / " + b);
+   }
+
+   static void check(boolean condition, String failure) {
+      if (!condition) {
+         throw new AssertionError(failure);
+      }
+   }
+}//end ProductSearchTest
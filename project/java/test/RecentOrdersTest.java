@@ -0,0 +1,92 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Retail.RecentOrders: ring buffers per customer, least recently used
+ * eviction, and which Orders changes drop a ring.
+ */
+public class RecentOrdersTest {
+
+   public static void main(String[] args) {
+      keepsTheNewestOrders();
+      recordOnlyExtendsLoadedRings();
+      ownTaggedWriteKeepsTheRing();
+      otherChangesDropRings();
+      leastRecentlyUsedCustomerIsEvicted();
+      System.out.println("RecentOrdersTest: ok");
+   }
+
+   static void keepsTheNewestOrders() {
+      Retail.RecentOrders recent = new Retail.RecentOrders(10, 3);
+      check(recent.get("1") == null, "nothing is cached before the first view");
+      recent.fill("1", orders("o5", "o4", "o3", "o2"));
+      check(names(recent.get("1")).equals("o5,o4,o3"), "fill keeps the 3 newest, got " + names(recent.get("1")));
+      recent.record("1", orders("o6", "o7"), "tag");
+      check(names(recent.get("1")).equals("o7,o6,o5"), "recorded orders go first, got " + names(recent.get("1")));
+   }
+
+   static void recordOnlyExtendsLoadedRings() {
+      Retail.RecentOrders recent = new Retail.RecentOrders(10, 3);
+      recent.record("1", orders("o1"), "tag");
+      check(recent.get("1") == null, "a ring is only created by fill, from the database");
+   }
+
+   static void ownTaggedWriteKeepsTheRing() {
+      Retail.RecentOrders recent = new Retail.RecentOrders(10, 3);
+      recent.fill("1", orders("o1"));
+      recent.record("1", orders("o2"), "conn#42/7");
+      recent.changed("1", "conn#42/7");
+      check(names(recent.get("1")).equals("o2,o1"), "the publish of our own recorded write keeps the ring");
+      recent.changed("1", "conn#42/7");
+      check(recent.get("1") == null, "a tag only covers the one publish it was recorded for");
+   }
+
+   static void otherChangesDropRings() {
+      Retail.RecentOrders recent = new Retail.RecentOrders(10, 3);
+      recent.fill("1", orders("o1"));
+      recent.fill("2", orders("o1"));
+      recent.record("1", orders("o2"), "conn#42/7");
+      recent.changed("1", "conn#42/8");
+      check(recent.get("1") == null, "a write under another tag drops the ring");
+      recent.changed("2", null);
+      check(recent.get("2") == null, "a change from another process drops the ring");
+
+      recent.fill("1", orders("o1"));
+      recent.fill("2", orders("o1"));
+      recent.changed(null, null);
+      check(recent.get("1") == null && recent.get("2") == null, "a key-less change drops every ring");
+   }
+
+   static void leastRecentlyUsedCustomerIsEvicted() {
+      Retail.RecentOrders recent = new Retail.RecentOrders(2, 3);
+      recent.fill("1", orders("o1"));
+      recent.fill("2", orders("o1"));
+      recent.get("1");
+      recent.fill("3", orders("o1"));
+      check(recent.get("2") == null, "customer 2 was used least recently");
+      check(recent.get("1") != null && recent.get("3") != null, "customers 1 and 3 stay cached");
+   }
+
+   // * RECENT_ORDER_COLUMNS records whose product name is the given label *
+   static List<List<String>> orders(String... labels) {
+      List<List<String>> orders = new ArrayList<List<String>>();
+      for (String label : labels)
+         orders.add(Arrays.asList("1", "Store", label, "1", "2026-01-01 00:00:00"));
+      return orders;
+   }
+
+   static String names(List<List<String>> orders) {
+      StringBuilder names = new StringBuilder();
+      for (List<String> order : orders == null ? Collections.<List<String>>emptyList() : orders)
+         names.append(names.length() == 0 ? "" : ",").append(order.get(2));
+      return names.toString();
+   }
+
+   static void check(boolean condition, String failure) {
+      if (!condition) {
+         throw new AssertionError(failure);
+      }
+   }
+}//end RecentOrdersTest
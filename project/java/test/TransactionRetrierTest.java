@@ -0,0 +1,137 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Retail.TransactionRetrier against a stub Connection that only counts
+ * commits and rollbacks: which failures are retried, how long the backoff
+ * may grow and when the retry budget runs dry.
+ */
+public class TransactionRetrierTest {
+
+   public static void main(String[] args) throws Exception {
+      serializationFailuresAreRetried();
+      otherFailuresAreNotRetried();
+      givesUpAfterMaxAttempts();
+      backOffDoublesUpToTheCap();
+      emptyBudgetStopsRetries();
+      System.out.println("TransactionRetrierTest: ok");
+   }
+
+   static void serializationFailuresAreRetried() throws SQLException {
+      StubConnection stub = new StubConnection();
+      Retail.TransactionRetrier retrier = new Retail.TransactionRetrier(5, 1, 1, 0.1);
+      String result = retrier.execute("test", stub.connection(), failing(2, "40001"));
+      check("done".equals(result), "the third attempt should have succeeded");
+      check(stub.rollbacks.get() == 2, "expected 2 rollbacks, saw " + stub.rollbacks.get());
+      check(stub.commits.get() == 1, "expected 1 commit, saw " + stub.commits.get());
+      check(retrier.stats().contains("retries=2"), retrier.stats());
+   }
+
+   static void otherFailuresAreNotRetried() {
+      StubConnection stub = new StubConnection();
+      Retail.TransactionRetrier retrier = new Retail.TransactionRetrier(5, 1, 1, 0.1);
+      ScriptedWork work = failing(1, "23505");
+      try {
+         retrier.execute("test", stub.connection(), work);
+         check(false, "a unique violation should not be retried");
+      } catch (SQLException e) {
+         check("23505".equals(e.getSQLState()), "the original error should reach the caller");
+      }
+      check(work.attempts == 1, "expected 1 attempt, saw " + work.attempts);
+   }
+
+   static void givesUpAfterMaxAttempts() {
+      StubConnection stub = new StubConnection();
+      Retail.TransactionRetrier retrier = new Retail.TransactionRetrier(3, 1, 1, 0.1);
+      ScriptedWork work = failing(Integer.MAX_VALUE, "40P01");
+      try {
+         retrier.execute("test", stub.connection(), work);
+         check(false, "a deadlock on every attempt should surface");
+      } catch (SQLException e) {
+         check("40P01".equals(e.getSQLState()), "the last deadlock should reach the caller");
+      }
+      check(work.attempts == 3, "expected 3 attempts, saw " + work.attempts);
+      check(retrier.stats().contains("gaveUp=1"), retrier.stats());
+   }
+
+   static void backOffDoublesUpToTheCap() {
+      Retail.TransactionRetrier retrier = new Retail.TransactionRetrier(10, 10, 200, 0.1);
+      check(retrier.backOffCeiling(1) == 10, "first ceiling " + retrier.backOffCeiling(1));
+      check(retrier.backOffCeiling(2) == 20, "second ceiling " + retrier.backOffCeiling(2));
+      check(retrier.backOffCeiling(5) == 160, "fifth ceiling " + retrier.backOffCeiling(5));
+      check(retrier.backOffCeiling(6) == 200, "sixth ceiling " + retrier.backOffCeiling(6));
+      check(retrier.backOffCeiling(1000) == 200, "ceiling after many attempts " + retrier.backOffCeiling(1000));
+   }
+
+   // * The budget starts full at 100 tokens; with no deposits it allows exactly 100 retries *
+   static void emptyBudgetStopsRetries() throws SQLException {
+      StubConnection stub = new StubConnection();
+      Retail.TransactionRetrier retrier = new Retail.TransactionRetrier(Integer.MAX_VALUE, 1, 1, 0);
+      ScriptedWork work = failing(Integer.MAX_VALUE, "40001");
+      try {
+         retrier.execute("test", stub.connection(), work);
+         check(false, "retries should stop once the budget is spent");
+      } catch (SQLException e) {
+         check("40001".equals(e.getSQLState()), "the last failure should reach the caller");
+      }
+      check(work.attempts == 101, "expected 101 attempts, saw " + work.attempts);
+
+      ScriptedWork next = failing(1, "40001");
+      try {
+         retrier.execute("test", stub.connection(), next);
+         check(false, "an empty budget should not allow another retry");
+      } catch (SQLException e) {
+         check(next.attempts == 1, "expected 1 attempt, saw " + next.attempts);
+      }
+   }
+
+   // * Fails with the given SQLSTATE on the first `failures` attempts, then returns "done" *
+   static ScriptedWork failing(int failures, String state) {
+      return new ScriptedWork(failures, state);
+   }
+
+   static class ScriptedWork implements Retail.UnitOfWork<String> {
+      final int failures;
+      final String state;
+      int attempts = 0;
+
+      ScriptedWork(int failures, String state) {
+         this.failures = failures;
+         this.state = state;
+      }
+
+      public String run() throws SQLException {
+         if (++attempts <= failures)
+            throw new SQLException("attempt " + attempts + " failed", state);
+         return "done";
+      }
+   }
+
+   static class StubConnection implements InvocationHandler {
+      final AtomicInteger commits = new AtomicInteger();
+      final AtomicInteger rollbacks = new AtomicInteger();
+
+      Connection connection() {
+         return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+            new Class<?>[] { Connection.class }, this);
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) {
+         if (method.getName().equals("commit"))
+            commits.incrementAndGet();
+         else if (method.getName().equals("rollback"))
+            rollbacks.incrementAndGet();
+         return null;
+      }
+   }
+
+   static void check(boolean condition, String failure) {
+      if (!condition) {
+         throw new AssertionError(failure);
+      }
+   }
+}//end TransactionRetrierTest
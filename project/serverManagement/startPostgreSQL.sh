@@ -20,6 +20,7 @@ initdb
 
 sleep 1
 #Start folder
+#max_prepared_transactions lets a cart spanning shards commit in two phases
 export PGPORT=6969
-pg_ctl -o "-c unix_socket_directories=$PGSOCKETS -p $PGPORT" -D $PGDATA -l $folder/logfile start
+pg_ctl -o "-c unix_socket_directories=$PGSOCKETS -p $PGPORT -c max_prepared_transactions=64" -D $PGDATA -l $folder/logfile start
 
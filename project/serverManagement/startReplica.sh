@@ -0,0 +1,13 @@
+#! /bin/bash
+# Starts a streaming read replica of the database started by
+# startPostgreSQL.sh (source that first). Run Retail with
+# -Dretail.replicas=$REPLICA_PORT to send read-only work to it.
+export REPLICA_PORT=6970
+export REPLICA_DATA=$folder/myDB/replica
+
+rm -rf $REPLICA_DATA
+pg_basebackup -h localhost -p $PGPORT -D $REPLICA_DATA -R
+chmod 700 $REPLICA_DATA
+sleep 1
+
+pg_ctl -o "-c unix_socket_directories=$PGSOCKETS -p $REPLICA_PORT -c max_prepared_transactions=64" -D $REPLICA_DATA -l $folder/replica_logfile start
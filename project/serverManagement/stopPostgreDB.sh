@@ -1,2 +1,5 @@
 #! /bin/bash
 pg_ctl -o "-c unix_socket_directories=$PGSOCKETS -p $PGPORT" -D $PGDATA -l $folder/logfile stop
+if [ -n "$REPLICA_DATA" ]; then
+	pg_ctl -D $REPLICA_DATA stop
+fi
@@ -3,4 +3,12 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_tables.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
-
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_compact.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_compact_contract.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_catalog.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_search_indexes.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_reorder_points.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_ingest_tables.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_bulk_tables.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_escrow_tables.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_notify_triggers.sql
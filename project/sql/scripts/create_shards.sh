@@ -0,0 +1,25 @@
+#!/bin/bash
+# Creates $SHARDS (default 2) store shard databases <user>_DB_shard<i> on the
+# local server and loads each with the rows of the stores it owns. Run it
+# after create_db.sh, whose product catalog the shards copy. Run Retail
+# with -Dretail.shards=$PGPORT/<user>_DB_shard0,$PGPORT/<user>_DB_shard1,...
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SHARDS=${SHARDS:-2}
+for ((i = 0; i < SHARDS; i++)); do
+	SHARD_DB=$USER"_DB_shard"$i
+	createdb -h localhost -p $PGPORT $SHARD_DB
+	psql -h localhost -p $PGPORT $SHARD_DB < $DIR/../src/create_shard_tables.sql
+	psql -h localhost -p $PGPORT -v shard_count=$SHARDS -v shard_index=$i $SHARD_DB < $DIR/../src/load_shard_data.sql
+	psql -h localhost -p $PGPORT $SHARD_DB < $DIR/../src/migrate_compact.sql
+	psql -h localhost -p $PGPORT $SHARD_DB < $DIR/../src/migrate_compact_contract.sql
+	# product ids must match the main database, so its catalog is copied first
+	psql -h localhost -p $PGPORT $SHARD_DB -c "CREATE TABLE ProductCatalog (productID serial PRIMARY KEY, productName varchar(30) NOT NULL UNIQUE);"
+	psql -h localhost -p $PGPORT $USER"_DB" -c "\copy ProductCatalog TO STDOUT" | psql -h localhost -p $PGPORT $SHARD_DB -c "\copy ProductCatalog FROM STDIN"
+	psql -h localhost -p $PGPORT $SHARD_DB < $DIR/../src/migrate_catalog.sql
+	psql -h localhost -p $PGPORT $SHARD_DB < $DIR/../src/create_search_indexes.sql
+	psql -h localhost -p $PGPORT $SHARD_DB < $DIR/../src/create_reorder_points.sql
+	psql -h localhost -p $PGPORT $SHARD_DB < $DIR/../src/create_ingest_tables.sql
+	psql -h localhost -p $PGPORT $SHARD_DB < $DIR/../src/create_bulk_tables.sql
+	psql -h localhost -p $PGPORT $SHARD_DB < $DIR/../src/create_escrow_tables.sql
+	psql -h localhost -p $PGPORT $SHARD_DB < $DIR/../src/create_notify_triggers.sql
+done
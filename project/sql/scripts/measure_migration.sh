@@ -0,0 +1,53 @@
+#!/bin/bash
+# Measures the schema migrations on a scratch database, never on the one the
+# application uses: creates $USER"_DB_measure", loads the original char/float
+# schema and data into it and records table size, index size and the
+# queries.sql timings. It then applies the same migration chain as
+# create_db.sh, records them again (queries_migrated.sql asks the same
+# questions of the migrated schema) and drops the scratch database.
+# The online migration leaves the dropped columns' bytes in the old rows, so
+# the scratch copy is rewritten with VACUUM FULL first; the sizes are those a
+# live database reaches once pg_repack (or ordinary updates) rewrote its rows.
+# The report is printed and written to ../migration_measurements.txt.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+DB_NAME=$USER"_DB_measure"
+REPORT=$DIR/../migration_measurements.txt
+
+sizes() {
+	psql -h localhost -p $PGPORT $DB_NAME -c "
+		SELECT relname AS table,
+		       pg_size_pretty(pg_relation_size(c.oid)) AS table_size,
+		       pg_size_pretty(pg_indexes_size(c.oid)) AS index_size,
+		       pg_size_pretty(pg_total_relation_size(c.oid)) AS total_size
+		FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace
+		WHERE n.nspname = 'public' AND c.relkind = 'r'
+		ORDER BY pg_total_relation_size(c.oid) DESC;"
+}
+
+timings() {
+	cat <(echo '\timing') $1 | psql -h localhost -p $PGPORT $DB_NAME | grep Time | awk -F "Time" '{print "Query" FNR $2;}'
+}
+
+dropdb -h localhost -p $PGPORT --if-exists $DB_NAME
+createdb -h localhost -p $PGPORT $DB_NAME || exit 1
+trap 'dropdb -h localhost -p $PGPORT --if-exists $DB_NAME' EXIT
+
+psql -h localhost -p $PGPORT $DB_NAME < $DIR/../src/create_tables.sql > /dev/null
+psql -h localhost -p $PGPORT $DB_NAME < $DIR/../src/create_indexes.sql > /dev/null
+psql -h localhost -p $PGPORT $DB_NAME < $DIR/../src/load_data.sql > /dev/null
+psql -h localhost -p $PGPORT $DB_NAME -c "VACUUM ANALYZE;" > /dev/null
+
+{
+	echo "Before migration"
+	sizes
+	timings $DIR/../src/queries.sql
+
+	psql -h localhost -p $PGPORT $DB_NAME < $DIR/../src/migrate_compact.sql > /dev/null
+	psql -h localhost -p $PGPORT $DB_NAME < $DIR/../src/migrate_compact_contract.sql > /dev/null
+	psql -h localhost -p $PGPORT $DB_NAME < $DIR/../src/migrate_catalog.sql > /dev/null
+	psql -h localhost -p $PGPORT $DB_NAME -c "VACUUM FULL ANALYZE;" > /dev/null
+
+	echo "After migration"
+	sizes
+	timings $DIR/../src/queries_migrated.sql
+} | tee $REPORT
@@ -0,0 +1,15 @@
+-- Staging table for bulk product changes (Retail ... bulk products <file>).
+-- Rows only live inside one bulk transaction, so the table is UNLOGGED and
+-- skips the WAL. It is not a temporary table, so the shard transactions of
+-- a bulk update can be PREPAREd for their two-phase commit. runID keeps
+-- concurrent bulk updates apart.
+DROP TABLE IF EXISTS ProductChanges;
+
+CREATE UNLOGGED TABLE ProductChanges ( runID bigint NOT NULL,
+                                       line integer NOT NULL,
+                                       storeID integer NOT NULL,
+                                       productName varchar(30) NOT NULL,
+                                       numberOfUnits integer,
+                                       priceCents integer,
+                                       PRIMARY KEY(runID, line)
+);
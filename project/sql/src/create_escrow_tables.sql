@@ -0,0 +1,23 @@
+-- Ledger of the units Retail's escrow inventory (-Dretail.escrow) holds
+-- for hot products. Every move is one inserted row: +units when a block is
+-- taken out of Product, -units for each order sold from escrow and for
+-- units put back, so a holder's SUM(units) per product is what it still
+-- holds, and numberofunits plus the SUM over all holders is the stock
+-- shown to customers. holder names the holding process's escrow connection as
+-- '<pid>:<backend start in microseconds>'. The units of holders missing
+-- from pg_stat_activity belong to a process that died, and the next Retail
+-- process to start returns them to Product. Rows are only inserted on the
+-- order path, so hot orders do not queue on a shared row; the holding
+-- process folds its rows together in the background. Run on the main
+-- database and on every shard.
+DROP TABLE IF EXISTS EscrowLedger;
+
+CREATE TABLE EscrowLedger ( holder varchar(40) NOT NULL,
+                            storeID integer NOT NULL,
+                            productID integer NOT NULL,
+                            units integer NOT NULL
+);
+
+CREATE INDEX holder_EscrowLedger_index
+ON EscrowLedger
+USING btree (holder, storeID, productID);
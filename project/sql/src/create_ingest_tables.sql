@@ -0,0 +1,15 @@
+-- Staging table for bulk order ingest (Retail ... ingest <file>). Rows only
+-- live inside one ingest transaction, so the table is UNLOGGED and skips the
+-- WAL. ingestID keeps concurrent ingests apart.
+DROP TABLE IF EXISTS OrderIngest;
+
+CREATE UNLOGGED TABLE OrderIngest ( ingestID bigint NOT NULL,
+                                    line integer NOT NULL,
+                                    customerID integer NOT NULL,
+                                    storeID integer NOT NULL,
+                                    productID integer NOT NULL,
+                                    unitsOrdered integer NOT NULL,
+                                    orderTime timestamp NOT NULL,
+                                    accepted boolean NOT NULL DEFAULT false,
+                                    PRIMARY KEY(ingestID, line)
+);
@@ -0,0 +1,61 @@
+-- Change notifications for the Retail caches.
+-- Every insert/update/delete sends NOTIFY retail_<table> with the changed
+-- row's key as payload; running Retail processes LISTEN on these channels
+-- and evict the matching cache entries.
+--   product   -> '<storeID>:<productID>'
+--   store     -> '<storeID>'
+--   users     -> '<userID>'
+--   orders    -> '<customerID>'
+--   warehouse -> '<warehouseID>'
+-- EscrowLedger rows are part of a product's stock (see
+-- create_escrow_tables.sql), so they notify on retail_product.
+
+CREATE OR REPLACE FUNCTION notify_retail_change()
+RETURNS trigger AS
+$notify$
+	DECLARE
+		changed record;
+		row_key text;
+	BEGIN
+		IF TG_OP = 'DELETE' THEN
+			changed := OLD;
+		ELSE
+			changed := NEW;
+		END IF;
+
+		IF TG_TABLE_NAME = 'escrowledger' THEN
+			PERFORM pg_notify('retail_product', changed.storeID || ':' || changed.productID);
+			RETURN NULL;
+		ELSIF TG_TABLE_NAME = 'product' THEN
+			row_key := changed.storeID || ':' || changed.productID;
+		ELSIF TG_TABLE_NAME = 'store' THEN
+			row_key := changed.storeID::text;
+		ELSIF TG_TABLE_NAME = 'users' THEN
+			row_key := changed.userID::text;
+		ELSIF TG_TABLE_NAME = 'orders' THEN
+			row_key := changed.customerID::text;
+		ELSE
+			row_key := changed.warehouseID::text;
+		END IF;
+
+		PERFORM pg_notify('retail_' || TG_TABLE_NAME, row_key);
+		RETURN NULL;
+	END;
+$notify$
+LANGUAGE plpgsql VOLATILE;
+
+-- Shard databases (see create_shard_tables.sql) only hold some of these
+-- tables, so triggers are created on whichever ones exist.
+DO
+$triggers$
+	DECLARE
+		tbl text;
+	BEGIN
+		FOREACH tbl IN ARRAY ARRAY['product', 'store', 'users', 'orders', 'warehouse', 'escrowledger'] LOOP
+			IF to_regclass(tbl) IS NOT NULL THEN
+				EXECUTE format('DROP TRIGGER IF EXISTS %I ON %I', tbl || '_notify', tbl);
+				EXECUTE format('CREATE TRIGGER %I AFTER INSERT OR UPDATE OR DELETE ON %I FOR EACH ROW EXECUTE PROCEDURE notify_retail_change()', tbl || '_notify', tbl);
+			END IF;
+		END LOOP;
+	END;
+$triggers$;
@@ -0,0 +1,24 @@
+-- Reorder points for the background replenishment job (Retail's
+-- Replenisher). A product whose numberOfUnits at a store drops below its
+-- reorderPoint is restocked with reorderQuantity units; products without a
+-- row use -Dretail.reorder.point and -Dretail.reorder.quantity. The job
+-- scans each shard's own table, so on a sharded setup give every shard the
+-- same rows. Run after migrate_catalog.sql, on the main database and on
+-- every shard.
+--
+-- units_Product_index lets the job read only the low-stock rows instead of
+-- scanning Product. It is the one index on a column every order updates,
+-- so those updates are no longer HOT; drop it if the job is not used.
+CREATE TABLE IF NOT EXISTS ReorderPoint ( productID integer NOT NULL,
+                                          reorderPoint integer NOT NULL CHECK (reorderPoint >= 0),
+                                          reorderQuantity integer NOT NULL CHECK (reorderQuantity > 0),
+                                          PRIMARY KEY(productID),
+                                          FOREIGN KEY(productID) REFERENCES ProductCatalog(productID)
+);
+
+DROP INDEX IF EXISTS units_Product_index;
+CREATE INDEX units_Product_index
+ON Product
+USING btree (numberOfUnits);
+
+ANALYZE Product;
@@ -0,0 +1,17 @@
+-- Indexes for the nearby availability search (queryStockNearby). Run after
+-- migrate_catalog.sql, on the main database and on every shard; a table the
+-- database does not have (shards have no Store) is skipped.
+--   * Store(latitude, longitude): the stores in the box around a customer
+--   * Product(productID): the stores carrying one product. numberOfUnits is
+--     left out on purpose, since every order updates it.
+DO $$
+BEGIN
+   IF to_regclass('store') IS NOT NULL THEN
+      DROP INDEX IF EXISTS location_Store_index;
+      CREATE INDEX location_Store_index ON Store USING btree (latitude, longitude);
+      ANALYZE Store;
+   END IF;
+   DROP INDEX IF EXISTS productID_Product_index;
+   CREATE INDEX productID_Product_index ON Product USING btree (productID);
+   ANALYZE Product;
+END $$;
@@ -0,0 +1,60 @@
+-- Schema of one store shard. Only the tables keyed by storeID live here;
+-- Users, Store and Warehouse stay in the main database, so the foreign keys
+-- to them are dropped and only the ones to Product are kept.
+DROP TABLE IF EXISTS Product CASCADE;
+DROP TABLE IF EXISTS Orders CASCADE;
+DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
+DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS ProductCatalog CASCADE;
+DROP TABLE IF EXISTS ReorderPoint CASCADE;
+
+CREATE TABLE Product ( storeID integer NOT NULL, 
+                       productName char(30) NOT NULL,
+                       numberOfUnits integer NOT NULL,
+                       pricePerUnit float NOT NULL,
+                       PRIMARY KEY(storeID, productName)
+);
+
+CREATE TABLE Orders ( 
+					 orderNumber serial NOT NULL,       
+					 customerID integer NOT NULL,
+                     storeID integer NOT NULL,
+                     productName char(30) NOT NULL, 
+                     unitsOrdered integer NOT NULL, 
+                     orderTime timestamp NOT NULL,
+                     PRIMARY KEY(orderNumber),
+                     FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+);
+
+CREATE TABLE ProductSupplyRequests (  
+							   requestNumber serial NOT NULL,
+							   managerID integer NOT NULL,
+							   warehouseID integer NOT NULL,
+                               storeID integer NOT NULL,
+                               productName char(30) NOT NULL, 
+							   unitsRequested integer NOT NULL,
+                               PRIMARY KEY(requestNumber),
+                               FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+);
+
+CREATE TABLE ProductUpdates (
+	 						updateNumber serial,	
+							managerID integer NOT NULL,
+                        	storeID integer NOT NULL,
+                       		productName char(30) NOT NULL, 
+                            updatedOn timestamp NOT NULL,
+                        	PRIMARY KEY(updateNumber),
+                        	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+);
+
+CREATE INDEX storeID_Product_index
+ON Product 
+using btree (storeID);
+
+CREATE INDEX customerID_Orders_index
+ON Orders 
+using btree (customerID);
+
+CREATE INDEX managerID_productupdates_index
+ON productupdates 
+using btree (managerID);
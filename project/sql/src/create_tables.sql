@@ -5,6 +5,8 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS ProductCatalog CASCADE;
+DROP TABLE IF EXISTS ReorderPoint CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -0,0 +1,32 @@
+-- Loads one shard: every per-store row is copied, then the rows of stores
+-- owned by other shards (storeID % shard_count <> shard_index) are removed.
+-- Run with psql -v shard_count=N -v shard_index=I.
+COPY Product
+FROM '/extra/kbrag003/project_phase_3/project/data/products.csv'
+WITH DELIMITER ',' CSV HEADER;
+
+COPY Orders
+FROM '/extra/kbrag003/project_phase_3/project/data/orders.csv'
+WITH DELIMITER ',' CSV HEADER;
+
+COPY ProductSupplyRequests
+FROM '/extra/kbrag003/project_phase_3/project/data/productSupplyRequests.csv'
+WITH DELIMITER ',' CSV HEADER;
+
+COPY ProductUpdates
+FROM '/extra/kbrag003/project_phase_3/project/data/productUpdates.csv'
+WITH DELIMITER ',' CSV HEADER;
+
+DELETE FROM Orders WHERE storeID % :shard_count <> :shard_index;
+DELETE FROM ProductSupplyRequests WHERE storeID % :shard_count <> :shard_index;
+DELETE FROM ProductUpdates WHERE storeID % :shard_count <> :shard_index;
+DELETE FROM Product WHERE storeID % :shard_count <> :shard_index;
+
+-- keys generated by different shards never collide: shard i hands out
+-- start + i, start + i + N, start + i + 2N, ...
+ALTER SEQUENCE orders_orderNumber_seq INCREMENT BY :shard_count;
+SELECT setval('orders_orderNumber_seq', 501 + :shard_index, false);
+ALTER SEQUENCE productsupplyrequests_requestNumber_seq INCREMENT BY :shard_count;
+SELECT setval('productsupplyrequests_requestNumber_seq', 11 + :shard_index, false);
+ALTER SEQUENCE productupdates_updateNumber_seq INCREMENT BY :shard_count;
+SELECT setval('productupdates_updateNumber_seq', 51 + :shard_index, false);
@@ -0,0 +1,66 @@
+-- Moves product identity from (storeID, productName) to (storeID, productID):
+-- every distinct name gets one row in ProductCatalog, and Product, Orders,
+-- ProductSupplyRequests and ProductUpdates keep only the integer productID.
+-- Run after migrate_compact.sql. On a shard, create_shards.sh copies the main
+-- database's catalog in first so every database agrees on the ids; names the
+-- copy lacks are appended here. Rerunning the script is harmless. Unlike
+-- migrate_compact.sql this migration is not online: it rewrites the tables
+-- under exclusive locks, and Retail from the same change only reads productID,
+-- so code and schema go out together during downtime. Stop every Retail
+-- process, run it on the main database and then on every shard, and start the
+-- new version.
+SET lock_timeout = '5s';
+
+CREATE TABLE IF NOT EXISTS ProductCatalog ( productID serial,
+                                            productName varchar(30) NOT NULL,
+                                            PRIMARY KEY(productID),
+                                            UNIQUE(productName)
+);
+
+DO $$
+DECLARE
+   tbl text;
+   fk record;
+BEGIN
+   IF NOT EXISTS (SELECT 1 FROM information_schema.columns
+         WHERE table_name = 'product' AND column_name = 'productname') THEN
+      RETURN;
+   END IF;
+
+   INSERT INTO ProductCatalog (productName)
+      SELECT DISTINCT productName FROM Product
+      WHERE productName NOT IN (SELECT productName FROM ProductCatalog)
+      ORDER BY productName;
+   PERFORM setval('productcatalog_productid_seq', (SELECT max(productID) FROM ProductCatalog));
+
+   FOR fk IN SELECT conrelid::regclass AS tbl, conname FROM pg_constraint
+             WHERE contype = 'f' AND confrelid = 'product'::regclass LOOP
+      EXECUTE format('ALTER TABLE %s DROP CONSTRAINT %I', fk.tbl, fk.conname);
+   END LOOP;
+
+   ALTER TABLE Product ADD COLUMN productID integer;
+   UPDATE Product p SET productID = c.productID FROM ProductCatalog c WHERE c.productName = p.productName;
+   ALTER TABLE Product DROP CONSTRAINT product_pkey,
+                       ALTER COLUMN productID SET NOT NULL,
+                       ADD PRIMARY KEY (storeID, productID),
+                       ADD CONSTRAINT product_catalog_fkey FOREIGN KEY (productID) REFERENCES ProductCatalog(productID),
+                       DROP COLUMN productName;
+
+   FOREACH tbl IN ARRAY ARRAY['orders', 'productsupplyrequests', 'productupdates'] LOOP
+      EXECUTE format('ALTER TABLE %I ADD COLUMN productID integer', tbl);
+      EXECUTE format('UPDATE %I t SET productID = c.productID FROM ProductCatalog c WHERE c.productName = t.productName', tbl);
+      EXECUTE format('ALTER TABLE %I ALTER COLUMN productID SET NOT NULL, DROP COLUMN productName', tbl);
+      EXECUTE format('ALTER TABLE %I ADD CONSTRAINT %I FOREIGN KEY (storeID, productID) '
+                     'REFERENCES Product(storeID, productID) NOT VALID', tbl, tbl || '_product_fkey');
+   END LOOP;
+END $$;
+
+ALTER TABLE Orders VALIDATE CONSTRAINT orders_product_fkey;
+ALTER TABLE ProductSupplyRequests VALIDATE CONSTRAINT productsupplyrequests_product_fkey;
+ALTER TABLE ProductUpdates VALIDATE CONSTRAINT productupdates_product_fkey;
+
+VACUUM ANALYZE ProductCatalog;
+VACUUM ANALYZE Product;
+VACUUM ANALYZE Orders;
+VACUUM ANALYZE ProductSupplyRequests;
+VACUUM ANALYZE ProductUpdates;
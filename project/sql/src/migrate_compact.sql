@@ -0,0 +1,290 @@
+-- Moves an existing database (main or shard) to the compact schema, online:
+--   * names and passwords char(n) -> varchar(n), so rows stop carrying blank padding
+--   * Product.pricePerUnit float -> Product.priceCents integer
+--   * Users.type char(10) -> user_role enum (4 bytes)
+-- No step rewrites a table under an exclusive lock. Retail keeps running
+-- throughout:
+--   1. expand:     each converted column gets a new twin column (name_v, ...),
+--                  an ADD COLUMN without default, so only the catalog changes
+--   2. dual write: row triggers fill the twins from the old columns on every
+--                  insert and update, so new and changed rows are covered
+--   3. backfill:   existing rows are touched in small batches, each in its own
+--                  transaction, so row locks are held for one batch only
+--   4. prepare:    the new key and name indexes are built CONCURRENTLY and
+--                  NOT NULL is proven with CHECK ... NOT VALID + VALIDATE,
+--                  neither of which blocks writes
+--   5. swap:       one short transaction per table drops the old column and
+--                  renames the twin into its place; it only touches the
+--                  catalog, so the ACCESS EXCLUSIVE lock lasts milliseconds
+-- The product foreign keys come back NOT VALID and are validated afterwards,
+-- which also does not block writes. pricePerUnit stays, kept in step with
+-- priceCents by a trigger in both directions, so Retail from before this
+-- change keeps working until it is replaced; migrate_compact_contract.sql
+-- then drops it. The lock_timeout makes a swap fail fast instead of queueing
+-- every reader behind it; rerun the script then. Every step checks the
+-- current columns first, so running it twice is harmless. The backfill's
+-- updates also fire the notify triggers, so caches are refreshed once.
+-- Dropped columns keep their bytes in rows written before the swap until the
+-- rows are rewritten (pg_repack online, VACUUM FULL offline).
+-- Needs PostgreSQL 12 or later (COMMIT in procedures, SET NOT NULL from a
+-- validated CHECK). Shards have no Users or Store.
+SET lock_timeout = '5s';
+
+-- 1. expand
+DO $$
+DECLARE
+   tbl text;
+BEGIN
+   IF NOT EXISTS (SELECT 1 FROM pg_type WHERE typname = 'user_role') THEN
+      CREATE TYPE user_role AS ENUM ('customer', 'manager', 'admin');
+   END IF;
+   IF to_regclass('users') IS NOT NULL AND EXISTS (SELECT 1 FROM information_schema.columns
+         WHERE table_name = 'users' AND column_name = 'type' AND data_type = 'character') THEN
+      ALTER TABLE Users ADD COLUMN IF NOT EXISTS name_v varchar(50),
+                        ADD COLUMN IF NOT EXISTS password_v varchar(11),
+                        ADD COLUMN IF NOT EXISTS type_v user_role;
+   END IF;
+   IF to_regclass('store') IS NOT NULL AND EXISTS (SELECT 1 FROM information_schema.columns
+         WHERE table_name = 'store' AND column_name = 'name' AND data_type = 'character') THEN
+      ALTER TABLE Store ADD COLUMN IF NOT EXISTS name_v varchar(30);
+   END IF;
+   FOREACH tbl IN ARRAY ARRAY['product', 'orders', 'productsupplyrequests', 'productupdates'] LOOP
+      IF EXISTS (SELECT 1 FROM information_schema.columns
+            WHERE table_name = tbl AND column_name = 'productname' AND data_type = 'character') THEN
+         EXECUTE format('ALTER TABLE %I ADD COLUMN IF NOT EXISTS productName_v varchar(30)', tbl);
+      END IF;
+   END LOOP;
+   IF EXISTS (SELECT 1 FROM information_schema.columns
+         WHERE table_name = 'product' AND column_name = 'priceperunit') THEN
+      ALTER TABLE Product ADD COLUMN IF NOT EXISTS priceCents integer;
+   END IF;
+END $$;
+
+-- 2. dual write
+CREATE OR REPLACE FUNCTION compact_users_names() RETURNS trigger AS $$
+BEGIN
+   NEW.name_v := rtrim(NEW.name);
+   NEW.password_v := rtrim(NEW.password);
+   NEW.type_v := rtrim(NEW.type)::user_role;
+   RETURN NEW;
+END $$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION compact_store_names() RETURNS trigger AS $$
+BEGIN
+   NEW.name_v := rtrim(NEW.name);
+   RETURN NEW;
+END $$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION compact_product_names() RETURNS trigger AS $$
+BEGIN
+   NEW.productName_v := rtrim(NEW.productName);
+   RETURN NEW;
+END $$ LANGUAGE plpgsql;
+
+-- old Retail writes pricePerUnit, new Retail writes priceCents; whichever
+-- one a statement set wins, and a row that has no priceCents yet gets it
+CREATE OR REPLACE FUNCTION compact_product_price() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'INSERT' THEN
+      IF NEW.priceCents IS NULL THEN
+         NEW.priceCents := round(NEW.pricePerUnit * 100);
+      ELSIF NEW.pricePerUnit IS NULL THEN
+         NEW.pricePerUnit := NEW.priceCents / 100.0;
+      END IF;
+   ELSIF NEW.priceCents IS NULL OR NEW.pricePerUnit IS DISTINCT FROM OLD.pricePerUnit THEN
+      NEW.priceCents := round(NEW.pricePerUnit * 100);
+   ELSIF NEW.priceCents IS DISTINCT FROM OLD.priceCents THEN
+      NEW.pricePerUnit := NEW.priceCents / 100.0;
+   END IF;
+   RETURN NEW;
+END $$ LANGUAGE plpgsql;
+
+DO $$
+DECLARE
+   tbl text;
+BEGIN
+   IF EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'users' AND column_name = 'name_v') THEN
+      DROP TRIGGER IF EXISTS compact_names ON Users;
+      CREATE TRIGGER compact_names BEFORE INSERT OR UPDATE ON Users FOR EACH ROW EXECUTE PROCEDURE compact_users_names();
+   END IF;
+   IF EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'store' AND column_name = 'name_v') THEN
+      DROP TRIGGER IF EXISTS compact_names ON Store;
+      CREATE TRIGGER compact_names BEFORE INSERT OR UPDATE ON Store FOR EACH ROW EXECUTE PROCEDURE compact_store_names();
+   END IF;
+   FOREACH tbl IN ARRAY ARRAY['product', 'orders', 'productsupplyrequests', 'productupdates'] LOOP
+      IF EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = tbl AND column_name = 'productname_v') THEN
+         EXECUTE format('DROP TRIGGER IF EXISTS compact_names ON %I', tbl);
+         EXECUTE format('CREATE TRIGGER compact_names BEFORE INSERT OR UPDATE ON %I FOR EACH ROW EXECUTE PROCEDURE compact_product_names()', tbl);
+      END IF;
+   END LOOP;
+   IF EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'product' AND column_name = 'priceperunit') THEN
+      DROP TRIGGER IF EXISTS compact_price ON Product;
+      CREATE TRIGGER compact_price BEFORE INSERT OR UPDATE ON Product FOR EACH ROW EXECUTE PROCEDURE compact_product_price();
+   END IF;
+END $$;
+
+-- 3. backfill: touches the rows whose key falls in [lo, lo + step) that
+-- still miss a twin value, and commits after every range
+CREATE OR REPLACE PROCEDURE compact_backfill(tbl text, key text, touch text, pending text, step integer) AS $$
+DECLARE
+   lo bigint;
+   hi bigint;
+BEGIN
+   IF to_regclass(tbl) IS NULL OR NOT EXISTS (SELECT 1 FROM information_schema.columns
+         WHERE table_name = tbl AND column_name = touch) THEN
+      RETURN;
+   END IF;
+   BEGIN
+      EXECUTE format('SELECT min(%I), max(%I) FROM %I WHERE %s', key, key, tbl, pending) INTO lo, hi;
+   EXCEPTION WHEN undefined_column THEN
+      RETURN;
+   END;
+   WHILE lo <= hi LOOP
+      EXECUTE format('UPDATE %I SET %I = %I WHERE %I >= $1 AND %I < $2 AND (%s)', tbl, touch, touch, key, key, pending)
+         USING lo, lo + step;
+      COMMIT;
+      lo := lo + step;
+   END LOOP;
+END $$ LANGUAGE plpgsql;
+
+CALL compact_backfill('users', 'userid', 'name', 'name_v IS NULL', 5000);
+CALL compact_backfill('store', 'storeid', 'name', 'name_v IS NULL', 5000);
+CALL compact_backfill('product', 'storeid', 'productname', 'productname_v IS NULL OR pricecents IS NULL', 50);
+CALL compact_backfill('orders', 'ordernumber', 'productname', 'productname_v IS NULL', 5000);
+CALL compact_backfill('productsupplyrequests', 'requestnumber', 'productname', 'productname_v IS NULL', 5000);
+CALL compact_backfill('productupdates', 'updatenumber', 'productname', 'productname_v IS NULL', 5000);
+DROP PROCEDURE compact_backfill(text, text, text, text, integer);
+
+-- 4. prepare: an interrupted CONCURRENTLY build leaves an invalid index
+-- behind, which is dropped so the rerun builds it again
+DO $$
+DECLARE
+   idx record;
+BEGIN
+   FOR idx IN SELECT c.relname FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid
+              WHERE NOT i.indisvalid AND c.relname IN ('users_compact_name', 'product_compact_key') LOOP
+      EXECUTE format('DROP INDEX %I', idx.relname);
+   END LOOP;
+END $$;
+
+SELECT EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'users' AND column_name = 'name_v') AS users_pending,
+       EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'store' AND column_name = 'name_v') AS store_pending,
+       EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'product' AND column_name = 'productname_v') AS product_pending,
+       EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'product' AND column_name = 'pricecents'
+                  AND is_nullable = 'YES') AS price_pending \gset
+\if :users_pending
+CREATE INDEX CONCURRENTLY IF NOT EXISTS users_compact_name ON Users (name_v);
+ALTER TABLE Users DROP CONSTRAINT IF EXISTS users_compact_nn;
+ALTER TABLE Users ADD CONSTRAINT users_compact_nn
+   CHECK (name_v IS NOT NULL AND password_v IS NOT NULL AND type_v IS NOT NULL) NOT VALID;
+ALTER TABLE Users VALIDATE CONSTRAINT users_compact_nn;
+\endif
+\if :store_pending
+ALTER TABLE Store DROP CONSTRAINT IF EXISTS store_compact_nn;
+ALTER TABLE Store ADD CONSTRAINT store_compact_nn CHECK (name_v IS NOT NULL) NOT VALID;
+ALTER TABLE Store VALIDATE CONSTRAINT store_compact_nn;
+\endif
+\if :product_pending
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS product_compact_key ON Product (storeID, productName_v);
+ALTER TABLE Product DROP CONSTRAINT IF EXISTS product_compact_nn;
+ALTER TABLE Product ADD CONSTRAINT product_compact_nn CHECK (productName_v IS NOT NULL) NOT VALID;
+ALTER TABLE Product VALIDATE CONSTRAINT product_compact_nn;
+ALTER TABLE Orders DROP CONSTRAINT IF EXISTS orders_compact_nn;
+ALTER TABLE Orders ADD CONSTRAINT orders_compact_nn CHECK (productName_v IS NOT NULL) NOT VALID;
+ALTER TABLE Orders VALIDATE CONSTRAINT orders_compact_nn;
+ALTER TABLE ProductSupplyRequests DROP CONSTRAINT IF EXISTS productsupplyrequests_compact_nn;
+ALTER TABLE ProductSupplyRequests ADD CONSTRAINT productsupplyrequests_compact_nn CHECK (productName_v IS NOT NULL) NOT VALID;
+ALTER TABLE ProductSupplyRequests VALIDATE CONSTRAINT productsupplyrequests_compact_nn;
+ALTER TABLE ProductUpdates DROP CONSTRAINT IF EXISTS productupdates_compact_nn;
+ALTER TABLE ProductUpdates ADD CONSTRAINT productupdates_compact_nn CHECK (productName_v IS NOT NULL) NOT VALID;
+ALTER TABLE ProductUpdates VALIDATE CONSTRAINT productupdates_compact_nn;
+\endif
+\if :price_pending
+ALTER TABLE Product DROP CONSTRAINT IF EXISTS product_price_nn;
+ALTER TABLE Product ADD CONSTRAINT product_price_nn CHECK (priceCents IS NOT NULL) NOT VALID;
+ALTER TABLE Product VALIDATE CONSTRAINT product_price_nn;
+\endif
+
+-- 5. swap
+DO $$
+BEGIN
+   IF NOT EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'users' AND column_name = 'name_v') THEN
+      RETURN;
+   END IF;
+   DROP TRIGGER compact_names ON Users;
+   -- validated users_compact_nn spares SET NOT NULL its table scan
+   ALTER TABLE Users ALTER COLUMN name_v SET NOT NULL,
+                     ALTER COLUMN password_v SET NOT NULL,
+                     ALTER COLUMN type_v SET NOT NULL;
+   ALTER TABLE Users DROP CONSTRAINT users_compact_nn,
+                     DROP COLUMN name,
+                     DROP COLUMN password,
+                     DROP COLUMN type;
+   ALTER TABLE Users RENAME COLUMN name_v TO name;
+   ALTER TABLE Users RENAME COLUMN password_v TO password;
+   ALTER TABLE Users RENAME COLUMN type_v TO type;
+   -- dropping the old column dropped its index from create_indexes.sql
+   ALTER INDEX users_compact_name RENAME TO name_index;
+END $$;
+
+DO $$
+BEGIN
+   IF NOT EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'store' AND column_name = 'name_v') THEN
+      RETURN;
+   END IF;
+   DROP TRIGGER compact_names ON Store;
+   ALTER TABLE Store ALTER COLUMN name_v SET NOT NULL;
+   ALTER TABLE Store DROP CONSTRAINT store_compact_nn,
+                     DROP COLUMN name;
+   ALTER TABLE Store RENAME COLUMN name_v TO name;
+END $$;
+
+-- Product and the three tables that reference it swap together: their
+-- foreign keys on (storeID, productName) are dropped and re-added NOT VALID
+DO $$
+DECLARE
+   tbl text;
+   fk record;
+BEGIN
+   IF NOT EXISTS (SELECT 1 FROM information_schema.columns WHERE table_name = 'product' AND column_name = 'productname_v') THEN
+      RETURN;
+   END IF;
+   FOR fk IN SELECT conrelid::regclass AS tbl, conname FROM pg_constraint
+             WHERE contype = 'f' AND confrelid = 'product'::regclass LOOP
+      EXECUTE format('ALTER TABLE %s DROP CONSTRAINT %I', fk.tbl, fk.conname);
+   END LOOP;
+   ALTER TABLE Product DROP CONSTRAINT product_pkey;
+   FOREACH tbl IN ARRAY ARRAY['product', 'orders', 'productsupplyrequests', 'productupdates'] LOOP
+      EXECUTE format('DROP TRIGGER compact_names ON %I', tbl);
+      EXECUTE format('ALTER TABLE %I ALTER COLUMN productName_v SET NOT NULL', tbl);
+      EXECUTE format('ALTER TABLE %I DROP CONSTRAINT %I, DROP COLUMN productName', tbl, tbl || '_compact_nn');
+      EXECUTE format('ALTER TABLE %I RENAME COLUMN productName_v TO productName', tbl);
+   END LOOP;
+   ALTER TABLE Product ADD CONSTRAINT product_pkey PRIMARY KEY USING INDEX product_compact_key;
+   FOREACH tbl IN ARRAY ARRAY['orders', 'productsupplyrequests', 'productupdates'] LOOP
+      EXECUTE format('ALTER TABLE %I ADD CONSTRAINT %I FOREIGN KEY (storeID, productName) '
+                     'REFERENCES Product(storeID, productName) NOT VALID', tbl, tbl || '_product_fkey');
+   END LOOP;
+END $$;
+
+DO $$
+BEGIN
+   IF EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'product_price_nn') THEN
+      ALTER TABLE Product ALTER COLUMN priceCents SET NOT NULL;
+      ALTER TABLE Product DROP CONSTRAINT product_price_nn;
+   END IF;
+END $$;
+
+DROP FUNCTION IF EXISTS compact_users_names();
+DROP FUNCTION IF EXISTS compact_store_names();
+DROP FUNCTION IF EXISTS compact_product_names();
+
+ALTER TABLE Orders VALIDATE CONSTRAINT orders_product_fkey;
+ALTER TABLE ProductSupplyRequests VALIDATE CONSTRAINT productsupplyrequests_product_fkey;
+ALTER TABLE ProductUpdates VALIDATE CONSTRAINT productupdates_product_fkey;
+
+-- Refresh planner statistics; plain ANALYZE takes no lock that blocks writes
+ANALYZE Product;
+ANALYZE Orders;
+ANALYZE ProductSupplyRequests;
+ANALYZE ProductUpdates;
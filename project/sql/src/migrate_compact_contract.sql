@@ -0,0 +1,18 @@
+-- Last step of migrate_compact.sql, for once no Retail from before that
+-- migration runs any more: drops Product.pricePerUnit and the trigger that
+-- kept it in step with priceCents. Dropping a column only changes the
+-- catalog, so the lock is as short as the other swaps. Rerunning the script
+-- is harmless.
+SET lock_timeout = '5s';
+
+DO $$
+BEGIN
+   IF NOT EXISTS (SELECT 1 FROM information_schema.columns
+         WHERE table_name = 'product' AND column_name = 'priceperunit') THEN
+      RETURN;
+   END IF;
+   DROP TRIGGER IF EXISTS compact_price ON Product;
+   ALTER TABLE Product DROP COLUMN pricePerUnit;
+END $$;
+
+DROP FUNCTION IF EXISTS compact_product_price();